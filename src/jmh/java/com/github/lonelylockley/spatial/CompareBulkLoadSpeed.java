@@ -0,0 +1,61 @@
+package com.github.lonelylockley.spatial;
+
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
+import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(value = Scope.Thread)
+@Fork(value = 1, jvmArgs = {"-Xms2G", "-Xmx2G"})
+@Threads(1)
+public class CompareBulkLoadSpeed extends TestBase<String> {
+
+    private static final int SIZE = 500000;
+
+    private final ArrayList<Map.Entry<H3CellId<String>, Integer>> values = new ArrayList<>(SIZE);
+
+    // number of resolutions indexed by a single node of the spatial map
+    @Param({"1", "2"})
+    private int stride;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int i = 0; i < SIZE; i++) {
+            var key = String.valueOf(i);
+            values.add(new AbstractMap.SimpleImmutableEntry<>(generateRandomCell(key), i));
+        }
+        values.sort(Comparator.comparingLong(e -> e.getKey().getAddress()));
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void measurePutOneByOne(Blackhole blackhole) {
+        var concurrentSpatialHamt = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        for (Map.Entry<H3CellId<String>, Integer> e : values) {
+            concurrentSpatialHamt.put(e.getKey(), e.getValue());
+        }
+        blackhole.consume(concurrentSpatialHamt);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void measureBulkLoad(Blackhole blackhole) {
+        blackhole.consume(SpatialConcurrentTrieMap.bulkLoad(values.iterator(), false, stride));
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void measureParallelBulkLoad(Blackhole blackhole) {
+        blackhole.consume(SpatialConcurrentTrieMap.bulkLoad(values.iterator(), true, stride));
+    }
+
+}
@@ -24,10 +24,15 @@ public class CompareMapsGetSpeed extends TestBase<String> {
 
     private ConcurrentHashMap<String, Integer> concurrentHashMap = new ConcurrentHashMap<>();
     private TrieMap<String, Integer> concurrentHamt = new TrieMap<>();
-    private SpatialConcurrentTrieMap<String, Integer> concurrentSpatialHamt = new SpatialConcurrentTrieMap<>();
+    // number of resolutions indexed by a single node of the spatial map
+    @Param({"1", "2"})
+    private int stride;
+
+    private SpatialConcurrentTrieMap<String, Integer> concurrentSpatialHamt;
 
     @Setup(Level.Trial)
     public void setup() {
+        concurrentSpatialHamt = new SpatialConcurrentTrieMap<>(stride);
         for (int i = 0; i < SIZE; i++) {
             var key = String.valueOf(i);
             var cellId = generateRandomCell(key);
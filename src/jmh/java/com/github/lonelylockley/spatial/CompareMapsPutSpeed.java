@@ -24,7 +24,11 @@ public class CompareMapsPutSpeed extends TestBase<String> {
 
     private ConcurrentHashMap<String, Integer> concurrentHashMap = new ConcurrentHashMap<>();
     private TrieMap<String, Integer> concurrentHamt = new TrieMap<>();
-    private SpatialConcurrentTrieMap<String, Integer> concurrentSpatialHamt = new SpatialConcurrentTrieMap<>();
+    // number of resolutions indexed by a single node of the spatial map
+    @Param({"1", "2"})
+    private int stride;
+
+    private SpatialConcurrentTrieMap<String, Integer> concurrentSpatialHamt;
 
     @Setup(Level.Trial)
     public void setup() {
@@ -39,7 +43,7 @@ public class CompareMapsPutSpeed extends TestBase<String> {
     public void reset() {
         concurrentHashMap = new ConcurrentHashMap<>();
         concurrentHamt = new TrieMap<>();
-        concurrentSpatialHamt = new SpatialConcurrentTrieMap<>();
+        concurrentSpatialHamt = new SpatialConcurrentTrieMap<>(stride);
     }
 
     @Benchmark
@@ -0,0 +1,87 @@
+package com.github.lonelylockley.spatial;
+
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
+import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// run with -prof gc to compare allocation rates
+@State(value = Scope.Thread)
+@Fork(value = 1, jvmArgs = {"-Xms1G", "-Xmx1G", "-XX:ActiveProcessorCount=1"})
+@Threads(1)
+public class CompareSubtreeTraversalSpeed extends TestBase<String> {
+
+    private static final int SIZE = 100000;
+
+    private final Random rng = new Random();
+
+    private final ArrayList<H3CellId<String>> cells = new ArrayList<>();
+    // as many cells as a disk of radius 10 has
+    private final long[] disk = new long[331];
+    private SpatialConcurrentTrieMap<String, Integer> snapshot;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var parent = generateNonRandomCell(17, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 3, null);
+        for (int i = 0; i < SIZE; i++) {
+            sctm.put(generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i)), i);
+        }
+        for (int i = 0; i < 100; i++) {
+            final var child = generateRandomChildForCell(parent.getAddress(), 15, null);
+            cells.add(new H3CellId<>(H3CellId.trimToResolution(child.getCellId(), 7), null));
+        }
+        for (int i = 0; i < disk.length; i++) {
+            disk[i] = generateRandomChildForCell(parent.getAddress(), 8, null).getAddress();
+        }
+        snapshot = sctm.readOnlySnapshot();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void measureSubTreeIteration(Blackhole blackhole) {
+        final var cell = cells.get(rng.nextInt(cells.size()));
+        for (Map.Entry<H3CellId<String>, Integer> e : snapshot.subTree(cell).entrySet()) {
+            blackhole.consume(e.getValue());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void measureForEachWithin(Blackhole blackhole) {
+        final var cell = cells.get(rng.nextInt(cells.size()));
+        snapshot.forEachWithin(cell, (k, v) -> blackhole.consume(v));
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void measureForEachWithinAddress(Blackhole blackhole) {
+        final var cell = cells.get(rng.nextInt(cells.size()));
+        snapshot.forEachWithin(cell.getAddress(), 7, (address, id, v) -> blackhole.consume(address));
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void measureForEachWithinCellByCell(Blackhole blackhole) {
+        for (long address : disk) {
+            snapshot.forEachWithin(address, 8, (a, id, v) -> blackhole.consume(v));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void measureForEachWithinCells(Blackhole blackhole) {
+        snapshot.forEachWithin(disk, (k, v) -> blackhole.consume(v));
+    }
+
+}
@@ -0,0 +1,261 @@
+package com.github.lonelylockley.spatial;
+
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An ingest stage in front of a {@link Tracker}. Location updates are buffered in a slot per business entity, a newer
+ * update of an entity replaces the buffered one (last write wins), so a burst of pings of the same entity costs a
+ * single trie update. Buffered updates are drained to the tracker in batches by a virtual thread, either once in
+ * `interval` or as soon as `batchSize` entities are waiting.
+ *
+ * Updates of entities that are not buffered yet are dropped while `capacity` entities are waiting, so a tracker that
+ * cannot keep up pushes back on producers instead of letting the buffer grow. Updates of buffered entities are
+ * always accepted, they take no extra space.
+ *
+ * A batch the tracker fails to apply is lost: the drainer counts its updates as failed, keeps the last failure for
+ * {@link #getLastFailure()} and goes on with the next batch.
+ */
+public class CoalescingIngestor<T, V> implements AutoCloseable {
+
+    private final Tracker<T, V> tracker;
+    private final int batchSize;
+    private final int capacity;
+    private final long intervalNanos;
+    private final ConcurrentHashMap<T, H3CellId<T>> pending = new ConcurrentHashMap<>();
+    // drains are serialized, otherwise an older update of an entity could be applied after a newer one
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder untracked = new LongAdder();
+    // offers share the read lock, so once close() has taken the write lock no update can be buffered after the final
+    // flush
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final Thread drainer;
+    private volatile boolean closed = false;
+    private volatile RuntimeException lastFailure;
+
+    /**
+     * @param tracker a tracker to drain updates to
+     * @param batchSize number of waiting entities to drain without waiting for the interval
+     * @param capacity max number of waiting entities, updates of other entities are dropped
+     * @param interval max time an update waits in the buffer
+     */
+    public CoalescingIngestor(final Tracker<T, V> tracker, final int batchSize, final int capacity, final Duration interval) {
+        if (batchSize < 1 || capacity < batchSize) {
+            throw new IllegalArgumentException("Expected 0 < batchSize <= capacity, got batchSize " + batchSize + " and capacity " + capacity);
+        }
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        this.tracker = tracker;
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        this.intervalNanos = interval.toNanos();
+        this.drainer = Thread.ofVirtual().name("coalescing-ingestor-drainer").start(this::drainLoop);
+    }
+
+    /**
+     * Buffers a new location of a business entity, replacing the one buffered before
+     * @return false if the update is dropped, because the buffer is full or the ingestor is closed
+     */
+    public boolean offer(final T businessEntityId, final H3CellId<T> cellId) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                return false;
+            }
+            if (pending.size() >= capacity && !pending.containsKey(businessEntityId)) {
+                dropped.increment();
+                LockSupport.unpark(drainer);
+                return false;
+            }
+            accepted.increment();
+            if (pending.put(businessEntityId, cellId) != null) {
+                merged.increment();
+            }
+            else
+            if (pending.size() >= batchSize) {
+                LockSupport.unpark(drainer);
+            }
+            return true;
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drains the updates of the entities buffered at the start of the call to the tracker in the calling thread, the
+     * newest update of each of them is drained. Entities buffered later wait for the next flush, so producers that
+     * never pause cannot keep the caller here. If the tracker fails to apply a batch, its updates are counted as failed
+     * and the failure is rethrown, the rest of the updates stay buffered
+     * @return number of updates drained
+     */
+    public int flush() {
+        drainLock.lock();
+        try {
+            // an iterator racing offers may return a key twice
+            final List<T> waiting = new ArrayList<>(new LinkedHashSet<>(pending.keySet()));
+            int total = 0;
+            int next = 0;
+            while (next < waiting.size()) {
+                final var batch = new LinkedHashMap<T, H3CellId<T>>();
+                while (next < waiting.size() && batch.size() < batchSize) {
+                    final T id = waiting.get(next++);
+                    final H3CellId<T> cellId = pending.remove(id);
+                    if (cellId != null) {
+                        batch.put(id, cellId);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                final int ignored;
+                try {
+                    ignored = tracker.updateLocations(batch).size();
+                }
+                catch (RuntimeException e) {
+                    failed.add(batch.size());
+                    lastFailure = e;
+                    throw e;
+                }
+                applied.add(batch.size() - ignored);
+                untracked.add(ignored);
+                batches.increment();
+                total += batch.size();
+            }
+            return total;
+        }
+        finally {
+            drainLock.unlock();
+        }
+    }
+
+    private void drainLoop() {
+        while (!closed) {
+            if (pending.size() < batchSize) {
+                LockSupport.parkNanos(this, intervalNanos);
+            }
+            if (!closed) {
+                try {
+                    flush();
+                }
+                catch (RuntimeException e) {
+                    // already counted by flush(), the drainer must survive a failed batch
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the drainer and drains the rest of the buffered updates. Updates offered afterwards are dropped. If the
+     * calling thread is interrupted while waiting for the drainer, the rest is drained all the same once the drainer
+     * is done with its batch, and the interrupt status is restored
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        }
+        finally {
+            closeLock.writeLock().unlock();
+        }
+        LockSupport.unpark(drainer);
+        boolean interrupted = false;
+        try {
+            drainer.join();
+        }
+        catch (InterruptedException e) {
+            // flushes are serialized, so the final one still comes after the last batch of the drainer
+            interrupted = true;
+        }
+        try {
+            flush();
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Number of entities waiting to be drained
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Number of updates accepted by {@link #offer}
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Number of accepted updates replaced by a newer update of the same entity before they were drained
+     */
+    public long getMerged() {
+        return merged.sum();
+    }
+
+    /**
+     * Number of updates rejected by {@link #offer}
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Number of updates drained to the tracker and applied to tracked entities
+     */
+    public long getApplied() {
+        return applied.sum();
+    }
+
+    /**
+     * Number of batches drained to the tracker
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Number of updates drained to the tracker and ignored, because their entities are not tracked
+     */
+    public long getUntracked() {
+        return untracked.sum();
+    }
+
+    /**
+     * Number of updates lost, because the tracker failed to apply their batches
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * The last failure of the tracker to apply a batch or null if there was none
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+}
@@ -1,33 +1,63 @@
 package com.github.lonelylockley.spatial;
 
 import com.github.lonelylockley.spatial.ctrie.H3CellId;
+import com.github.lonelylockley.spatial.ctrie.QueryPlan;
+import com.github.lonelylockley.spatial.ctrie.ShardedSpatialConcurrentTrieMap;
 import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
 import com.uber.h3core.H3Core;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
-import java.util.stream.Collectors;
 
+/**
+ * Tracker keeps its locations in a {@link ShardedSpatialConcurrentTrieMap}, i.e. in a separate trie per base cell or
+ * per cell of a configurable shard resolution. Writers in different shards never touch the same root, and a query only
+ * snapshots the shards it touches.
+ */
 public class LocationTracker<T, V> implements Tracker<T, V> {
 
-    private final ConcurrentHashMap<T, H3CellId<T>> businessEntityIndex = new ConcurrentHashMap<>();
-    private final SpatialConcurrentTrieMap<T, V> locations = new SpatialConcurrentTrieMap<>();
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Lock writeLock = readWriteLock.writeLock();
-    private final Lock readLock = readWriteLock.readLock();
+    private static final int STRIPES = 64;
+
+    // the cell and the value of every entity, so lookups by entity id never descend the trie
+    private final ConcurrentHashMap<T, LocationWrapper<T, V>> businessEntityIndex = new ConcurrentHashMap<>();
+    private final ShardedSpatialConcurrentTrieMap<T, V> locations;
+    private final Map<QueryPlan, LongAdder> queryPlans = new EnumMap<>(QueryPlan.class);
+    private final LongAdder skippedUpdates = new LongAdder();
+    // updates of the same entity are serialized by the lock of its stripe, so the index and the trie agree on both the
+    // cell and the value
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
     private H3Core h3;
 
     public LocationTracker() {
+        this(0);
+    }
+
+    /**
+     * @param shardResolution resolution of the cells to keep a separate trie per, see
+     *                        {@link ShardedSpatialConcurrentTrieMap#ShardedSpatialConcurrentTrieMap(int, int)}
+     */
+    public LocationTracker(final int shardResolution) {
+        locations = new ShardedSpatialConcurrentTrieMap<>(SpatialConcurrentTrieMap.DEFAULT_STRIDE, shardResolution);
         try {
             h3 = H3Core.newInstance();
         }
         catch (Exception ex) {
             throw new RuntimeException("Could not initialize Uber H3", ex);
         }
+        for (QueryPlan plan : QueryPlan.values()) {
+            queryPlans.put(plan, new LongAdder());
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private int stripeOf(final T businessEntityId) {
+        final int h = businessEntityId.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
     }
 
     /**
@@ -36,27 +66,99 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
     @Override
     public V startTracking(final String cellId, final T businessEntityId, final V value) {
         final var h3CellId = new H3CellId<>(cellId, businessEntityId);
-        businessEntityIndex.computeIfAbsent(businessEntityId, (key) -> {
-            locations.put(h3CellId, value);
-            return h3CellId;
-        });
+        final var lock = stripes[stripeOf(businessEntityId)];
+        lock.lock();
+        try {
+            if (!businessEntityIndex.containsKey(businessEntityId)) {
+                locations.put(h3CellId, value);
+                businessEntityIndex.put(businessEntityId, new LocationWrapper<>(h3CellId, value));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
         return value;
     }
 
     /**
      * {@inheritDoc}
+     *
+     * An update to the cell the entity is already in is a no-op, so it does not touch the trie. The cell is compared
+     * under the lock of the entity's stripe, so a no-op update is ordered with concurrent updates of the same entity
+     * the same way any other update is.
      */
     @Override
     public boolean updateLocation(final T businessEntityId, final H3CellId<T> toCellId) {
-        final var res = businessEntityIndex.computeIfPresent(businessEntityId, (key, fromCellId) -> {
-            writeLock.lock();
-            {
-                locations.put(toCellId, locations.remove(fromCellId));
+        final var lock = stripes[stripeOf(businessEntityId)];
+        lock.lock();
+        try {
+            final var from = businessEntityIndex.get(businessEntityId);
+            if (from == null) {
+                return false;
             }
-            writeLock.unlock();
-            return toCellId;
-        });
-        return res != null;
+            if (from.cellId().getAddress() == toCellId.getAddress()) {
+                skippedUpdates.increment();
+                return true;
+            }
+            locations.move(from.cellId(), toCellId);
+            businessEntityIndex.put(businessEntityId, from.movedTo(toCellId));
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Locks of all the stripes the entities belong to are taken in ascending order, then the moves within each shard
+     * are applied to its trie with a single atomic batch mutation, which sorts them in trie order, so moves within the
+     * same area share the rewritten nodes, see {@link ShardedSpatialConcurrentTrieMap#moveAll}.
+     */
+    @Override
+    public Set<T> updateLocations(final Map<T, H3CellId<T>> updates) {
+        final var untracked = new HashSet<T>();
+        final var ids = new ArrayList<T>(updates.size());
+        final var cells = new ArrayList<H3CellId<T>>(updates.size());
+        final var locked = new BitSet(STRIPES);
+        for (Map.Entry<T, H3CellId<T>> e : updates.entrySet()) {
+            ids.add(e.getKey());
+            cells.add(e.getValue());
+            locked.set(stripeOf(e.getKey()));
+        }
+        locked.stream().forEach(i -> stripes[i].lock());
+        try {
+            final var moved = new ArrayList<Integer>();
+            final var current = new ArrayList<LocationWrapper<T, V>>();
+            final var from = new ArrayList<H3CellId<T>>();
+            final var to = new ArrayList<H3CellId<T>>();
+            for (int i = 0; i < ids.size(); i++) {
+                final var location = businessEntityIndex.get(ids.get(i));
+                if (location == null) {
+                    untracked.add(ids.get(i));
+                    continue;
+                }
+                if (location.cellId().getAddress() == cells.get(i).getAddress()) {
+                    skippedUpdates.increment();
+                    continue;
+                }
+                moved.add(i);
+                current.add(location);
+                from.add(location.cellId());
+                to.add(cells.get(i));
+            }
+            if (!moved.isEmpty()) {
+                locations.moveAll(from, to);
+                for (int j = 0; j < moved.size(); j++) {
+                    businessEntityIndex.put(ids.get(moved.get(j)), current.get(j).movedTo(to.get(j)));
+                }
+            }
+        }
+        finally {
+            locked.stream().forEach(i -> stripes[i].unlock());
+        }
+        return untracked;
     }
 
     /**
@@ -64,20 +166,41 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
      */
     @Override
     public V finishTracking(final T businessEntityId) {
-        var cellId = businessEntityIndex.remove(businessEntityId);
-        if (cellId == null) {
-            return null;
+        final var lock = stripes[stripeOf(businessEntityId)];
+        lock.lock();
+        try {
+            var location = businessEntityIndex.remove(businessEntityId);
+            if (location == null) {
+                return null;
+            }
+            else {
+                return locations.remove(location.cellId());
+            }
         }
-        else {
-            return locations.remove(cellId);
+        finally {
+            lock.unlock();
         }
     }
 
     public void updateValue(final T businessEntityId, final V value) {
-        businessEntityIndex.computeIfPresent(businessEntityId, (key, cellId) -> {
-            locations.put(cellId, value);
-            return cellId;
-        });
+        final var lock = stripes[stripeOf(businessEntityId)];
+        lock.lock();
+        try {
+            final var location = businessEntityIndex.get(businessEntityId);
+            if (location == null) {
+                return;
+            }
+            // compared under the lock, same as the cell in updateLocation
+            if (Objects.equals(location.unwrap(), value)) {
+                skippedUpdates.increment();
+                return;
+            }
+            locations.put(location.cellId(), value);
+            businessEntityIndex.put(businessEntityId, location.updated(value));
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -87,18 +210,17 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
 
     @Override
     public H3CellId<T> getLocation(T businessEntityId) {
-        return businessEntityIndex.get(businessEntityId);
+        var location = businessEntityIndex.get(businessEntityId);
+        return location == null ? null : location.cellId();
     }
 
+    /**
+     * The value is kept in the entity index next to the cell, so this is a single hash lookup without a trie descent
+     */
     @Override
     public V getValue(T businessEntityId) {
-        var cellId = businessEntityIndex.get(businessEntityId);
-        if (cellId == null) {
-            return null;
-        }
-        else {
-            return locations.get(cellId);
-        }
+        var location = businessEntityIndex.get(businessEntityId);
+        return location == null ? null : location.unwrap();
     }
 
     /**
@@ -107,27 +229,9 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
     @Override
     public Collection<Map.Entry<H3CellId<T>, V>> getAllWithinRing(final String cellId, final int resolution, final int range) {
         var trimmed = H3CellId.trimToResolution(cellId, resolution);
-        SpatialConcurrentTrieMap<T, V> snapshot;
-        readLock.lock();
-        {
-            snapshot = locations.readOnlySnapshot();
-        }
-        readLock.unlock();
         var ring = h3.gridRingUnsafe(trimmed, range);
-        // @ToDo there should be a resolution when it's cheaper to get a larger cell encapsulating all desired in a single call and filter the excess entries - a good point for optimization
-        return ring
-                .stream()
-                .flatMap(cid -> snapshot
-                                    .subTree(new H3CellId<>(cid, null))
-                                    .entrySet()
-                                    .stream()
-                                    .map((e) -> {
-                                        var key = e.getKey();
-                                        return (Map.Entry<H3CellId<T>, V>) new AbstractMap.SimpleImmutableEntry(key, e.getValue());
-                                    })
-                                    .filter(e -> e.getValue() != null)
-                )
-                .toList();
+        // a sparse area is cheaper to visit as a single larger cell encapsulating the ring, filtering the excess entries
+        return forEachWithin(toAddresses(ring));
     }
 
     /**
@@ -136,27 +240,47 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
     @Override
     public Collection<Map.Entry<H3CellId<T>, V>> getAllWithinCircle(String cellId, int resolution, int range) {
         var trimmed = H3CellId.trimToResolution(cellId, resolution);
-        SpatialConcurrentTrieMap<T, V> snapshot;
-        readLock.lock();
-        {
-            snapshot = locations.readOnlySnapshot();
-        }
-        readLock.unlock();
         var circle = h3.gridDiskUnsafe(trimmed, range);
-        return circle
-                .stream()
-                .flatMap(Collection::stream)
-                .flatMap(cid -> snapshot
-                        .subTree(new H3CellId<>(cid, null))
-                        .entrySet()
-                        .stream()
-                        .map((e) -> {
-                            var key = e.getKey();
-                            return (Map.Entry<H3CellId<T>, V>) new AbstractMap.SimpleImmutableEntry(key, e.getValue());
-                        })
-                        .filter(e -> e.getValue() != null)
-                )
-                .toList();
+        // all the rings of the disk are visited in a single descent, complete groups of siblings are compacted into their parents
+        return forEachWithin(toAddresses(circle.stream().flatMap(Collection::stream).toList()));
+    }
+
+    /**
+     * Collects the entries within the cells from a snapshot of the shards the cells belong to
+     */
+    private Collection<Map.Entry<H3CellId<T>, V>> forEachWithin(final long[] addresses) {
+        final var snapshot = locations.readOnlySnapshot(locations.shardsWithin(addresses));
+        final var result = new ArrayList<Map.Entry<H3CellId<T>, V>>();
+        final var plans = snapshot.forEachWithinPlanned(addresses, (key, value) -> {
+            if (value != null) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            }
+        });
+        plans.forEach(plan -> queryPlans.get(plan).increment());
+        return result;
+    }
+
+    /**
+     * Number of location and value updates completed without touching the trie, because neither the cell nor the
+     * value of an entity has changed
+     */
+    public long getSkippedUpdates() {
+        return skippedUpdates.sum();
+    }
+
+    /**
+     * Number of ring and circle queries run with a given plan, for diagnostics
+     */
+    public long getQueryPlanCount(final QueryPlan plan) {
+        return queryPlans.get(plan).sum();
+    }
+
+    private long[] toAddresses(final List<String> cellIds) {
+        final var addresses = new long[cellIds.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = new H3CellId<T>(cellIds.get(i), null).getAddress();
+        }
+        return addresses;
     }
 
     /**
@@ -164,10 +288,18 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
      */
     @Override
     public Map<T, H3CellId<T>> getAllBusinessEntitiesLocations() {
-        return locations
-                .keySet()
-                .stream()
-                .map(kv -> new AbstractMap.SimpleImmutableEntry<>(kv.getBusinessEntityId(), kv)).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (x, y) -> y));
+        final var result = new HashMap<T, H3CellId<T>>(businessEntityIndex.size());
+        businessEntityIndex.forEach((id, location) -> result.put(id, location.cellId()));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int countWithin(final String cellId, final int resolution) {
+        final var address = new H3CellId<T>(cellId, null).getAddress();
+        return locations.countWithin(address, resolution);
     }
 
     /**
@@ -176,18 +308,14 @@ public class LocationTracker<T, V> implements Tracker<T, V> {
     @Override
     public Collection<Map.Entry<H3CellId<T>, V>> findAround(String cellId, BiFunction<H3CellId<T>, V, Boolean> predicate, int resolution, int range, int limit) {
         var trimmed = H3CellId.trimToResolution(cellId, resolution);
-        SpatialConcurrentTrieMap<T, V> snapshot;
-        readLock.lock();
-        {
-            snapshot = locations.readOnlySnapshot();
-        }
-        readLock.unlock();
+        var circle = (range == 0) ? List.of(List.of(trimmed)) : h3.gridDiskUnsafe(trimmed, range);
+        var snapshot = locations.readOnlySnapshot(locations.shardsWithin(circle.stream().flatMap(Collection::stream).mapToLong(nxt -> new H3CellId<T>(nxt, null).getAddress()).toArray()));
         var result = new ArrayList<Map.Entry<H3CellId<T>, V>>(limit);
         for (int r = 0; r <= range; r++) {
-            var ring = (range == 0) ? Collections.singleton(trimmed).iterator() : h3.gridRingUnsafe(trimmed, r).iterator();
+            var ring = circle.get(r).iterator();
             while (result.size() < limit && ring.hasNext()) {
-                var nxt = ring.next();
-                var ringData = snapshot.subTree(new H3CellId<>(nxt, null)).entrySet().iterator();
+                var nxt = new H3CellId<T>(ring.next(), null);
+                var ringData = snapshot.subTree(nxt).entrySet().iterator();
                 while (result.size() < limit && ringData.hasNext()) {
                     var entry = ringData.next();
                     var key = entry.getKey();
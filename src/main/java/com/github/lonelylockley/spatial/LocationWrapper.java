@@ -2,57 +2,33 @@ package com.github.lonelylockley.spatial;
 
 import com.github.lonelylockley.spatial.ctrie.H3CellId;
 
-import java.util.Objects;
-import java.util.concurrent.atomic.AtomicReference;
-
+/**
+ * The current cell and value of a business entity, as kept in the entity index of a {@link LocationTracker}. It is
+ * immutable and replaced as a whole, so a reader always sees a cell and a value that were stored in the trie together.
+ */
 class LocationWrapper<T, V> {
 
-    private final AtomicReference<H3CellId<T>> cellId = new AtomicReference<>();
-    private final AtomicReference<V> value = new AtomicReference<>();
+    private final H3CellId<T> cellId;
+    private final V value;
 
     public LocationWrapper(H3CellId<T> cellId, V value) {
-        this.cellId.set(cellId);
-        this.value.set(value);
-    }
-
-    public void swapCellId(H3CellId<T> fromCellId, H3CellId<T> toCellId) {
-        cellId.compareAndSet(fromCellId, toCellId);
+        this.cellId = cellId;
+        this.value = value;
     }
 
     public H3CellId<T> cellId() {
-        return cellId.get();
-    }
-
-    public V unwrap(H3CellId<T> expectedCellId) {
-        if (Objects.equals(expectedCellId, cellId.get())) {
-            return value.get();
-        }
-        else {
-            return null;
-        }
+        return cellId;
     }
 
     public V unwrap() {
-        return value.get();
-    }
-
-    public void update(V value) {
-        this.value.set(value);
+        return value;
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) {
-            return true;
-        }
-        if (o instanceof LocationWrapper lw) {
-            return Objects.equals(lw.value.get(), this.value.get());
-        }
-        return false;
+    public LocationWrapper<T, V> movedTo(H3CellId<T> toCellId) {
+        return new LocationWrapper<>(toCellId, value);
     }
 
-    @Override
-    public int hashCode() {
-        return this.value.get().hashCode();
+    public LocationWrapper<T, V> updated(V value) {
+        return new LocationWrapper<>(cellId, value);
     }
 }
@@ -4,6 +4,7 @@ import com.github.lonelylockley.spatial.ctrie.H3CellId;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.function.BiFunction;
 
@@ -29,6 +30,13 @@ public interface Tracker<T, V> {
       */
      boolean updateLocation(T businessEntityId, H3CellId<T> toCellId);
 
+     /**
+      * Change cells of a batch of business objects at once
+      * @param updates new cell ids by business entity ids
+      * @return ids of the business entities that are not tracked, their updates are ignored
+      */
+     Set<T> updateLocations(Map<T, H3CellId<T>> updates);
+
      /**
       * Remove a registered object from a current location
       * @param cellId cell id locating business object
@@ -44,4 +52,11 @@ public interface Tracker<T, V> {
      Collection<Entry<H3CellId<T>, V>> findAround(String cellId, BiFunction<H3CellId<T>, V, Boolean> predicate, int resolution, int range, int limit);
      Map<T, H3CellId<T>> getAllBusinessEntitiesLocations();
 
+     /**
+      * Count business entities located within a cell
+      * @param cellId H3 cell address in string format
+      * @param resolution resolution of a cell containing `cellId` to count within
+      */
+     int countWithin(String cellId, int resolution);
+
 }
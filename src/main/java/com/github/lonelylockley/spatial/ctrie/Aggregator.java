@@ -0,0 +1,95 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import java.util.Comparator;
+import java.util.function.ToLongFunction;
+
+/**
+ * A monoid summarizing values of a map, see {@link SpatialConcurrentTrieMap#aggregateWithin(H3CellId, Aggregator)}.
+ * `combine` must be associative and `identity()` must be its neutral element, as subtrees are aggregated separately
+ * and combined in trie order afterwards. Aggregates are memoized in the nodes of read-only snapshots per aggregator
+ * instance, so an aggregator should be created once and reused. A node keeps aggregates of up to
+ * {@link com.github.lonelylockley.spatial.ctrie.nodes.BranchNode#MAX_MEMOS} aggregators, more of them used in turn
+ * evict each other, then several aggregates are better combined into one.
+ */
+public interface Aggregator<V, A> {
+
+    /**
+     * An aggregate of no values
+     */
+    A identity();
+
+    /**
+     * An aggregate of a single value
+     */
+    A of(V value);
+
+    A combine(A left, A right);
+
+    /**
+     * Number of values
+     */
+    static <V> Aggregator<V, Long> count() {
+        return sum(value -> 1L);
+    }
+
+    /**
+     * Sum of a property of values, e.g. number of values matching a condition when the property is either 0 or 1
+     */
+    static <V> Aggregator<V, Long> sum(final ToLongFunction<? super V> property) {
+        return new Aggregator<>() {
+            @Override
+            public Long identity() {
+                return 0L;
+            }
+
+            @Override
+            public Long of(final V value) {
+                return property.applyAsLong(value);
+            }
+
+            @Override
+            public Long combine(final Long left, final Long right) {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * The least value, null if there are no values
+     */
+    static <V> Aggregator<V, V> min(final Comparator<? super V> comparator) {
+        return new Aggregator<>() {
+            @Override
+            public V identity() {
+                return null;
+            }
+
+            @Override
+            public V of(final V value) {
+                return value;
+            }
+
+            @Override
+            public V combine(final V left, final V right) {
+                if (left == null) {
+                    return right;
+                }
+                else
+                if (right == null) {
+                    return left;
+                }
+                else {
+                    return comparator.compare(left, right) <= 0 ? left : right;
+                }
+            }
+        };
+    }
+
+    /**
+     * The greatest value, null if there are no values
+     */
+    static <V> Aggregator<V, V> max(final Comparator<? super V> comparator) {
+        return min(comparator.reversed());
+    }
+
+}
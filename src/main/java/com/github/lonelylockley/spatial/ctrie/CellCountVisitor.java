@@ -0,0 +1,11 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+/**
+ * Receives cells of a density map: the raw cell address and the number of entries within the cell
+ */
+@FunctionalInterface
+public interface CellCountVisitor {
+
+    void accept(long address, int count);
+
+}
@@ -0,0 +1,11 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+/**
+ * Receives entries of a map as they are stored in the trie: the raw cell address, the business entity id and the value
+ */
+@FunctionalInterface
+public interface CellVisitor<T, V> {
+
+    void accept(long address, T businessEntityId, V value);
+
+}
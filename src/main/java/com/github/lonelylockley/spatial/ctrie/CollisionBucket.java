@@ -0,0 +1,221 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable bucket of entries sharing all of their cells, i.e. many business entities at the same cell. Entries are
+ * kept in arrays sorted by the hash of the business entity id, so a lookup is a binary search and an update copies the
+ * arrays once (copy-on-write) rather than allocating a node per entry.
+ */
+public final class CollisionBucket<T, V> {
+
+    private static final CollisionBucket<?, ?> EMPTY = new CollisionBucket<>(new int[0], new H3CellId[0], new Object[0]);
+
+    private final int[] hashes;
+    private final H3CellId<T>[] keys;
+    private final V[] values;
+    private final int size;
+
+    private CollisionBucket(final int[] hashes, final H3CellId<T>[] keys, final V[] values) {
+        this.hashes = hashes;
+        this.keys = keys;
+        this.values = values;
+        this.size = keys.length;
+    }
+
+    public static <T, V> CollisionBucket<T, V> empty() {
+        return (CollisionBucket<T, V>) EMPTY;
+    }
+
+    public static <T, V> CollisionBucket<T, V> map(final H3CellId<T> k, final V v) {
+        return CollisionBucket.<T, V>empty().add(k, v);
+    }
+
+    public static <T, V> CollisionBucket<T, V> map(final H3CellId<T> k1, final V v1, final H3CellId<T> k2, final V v2) {
+        return map(k1, v1).add(k2, v2);
+    }
+
+    private static int hash(final Object entityId) {
+        return Objects.hashCode(entityId);
+    }
+
+    // position of the key among the first `len` entries, or `-(insertion point) - 1` if it is absent
+    private static <T> int search(final int[] hashes, final H3CellId<T>[] keys, final int len, final long address, final T entityId, final int hash) {
+        int lo = 0;
+        int hi = len;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (hashes[mid] < hash) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        while (lo < len && hashes[lo] == hash) {
+            if (keys[lo].matches(address, entityId)) {
+                return lo;
+            }
+            lo += 1;
+        }
+        return -lo - 1;
+    }
+
+    private int search(final H3CellId<T> key) {
+        return search(hashes, keys, size, key.getAddress(), key.getBusinessEntityId(), hash(key.getBusinessEntityId()));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(final H3CellId<T> key) {
+        return search(key) >= 0;
+    }
+
+    public Optional<V> get(final H3CellId<T> key) {
+        final int pos = search(key);
+        return pos >= 0 ? Optional.ofNullable(values[pos]) : Optional.empty();
+    }
+
+    /**
+     * Finds a key by its address and business entity id, null if there is none
+     */
+    public H3CellId<T> find(final long address, final T entityId) {
+        final int pos = search(hashes, keys, size, address, entityId, hash(entityId));
+        return pos >= 0 ? keys[pos] : null;
+    }
+
+    public CollisionBucket<T, V> add(final H3CellId<T> key, final V value) {
+        final int pos = search(key);
+        if (pos >= 0) {
+            final H3CellId<T>[] nkeys = keys.clone();
+            final V[] nvalues = values.clone();
+            nkeys[pos] = key;
+            nvalues[pos] = value;
+            return new CollisionBucket<>(hashes, nkeys, nvalues);
+        }
+        else {
+            return addAll(new H3CellId[] { key }, (V[]) new Object[] { value }, 0, 1);
+        }
+    }
+
+    /**
+     * Adds keys from `from` to `to` (exclusive) copying the arrays once, a later key replaces an equal earlier one
+     */
+    public CollisionBucket<T, V> addAll(final H3CellId<T>[] nkeys, final V[] nvalues, final int from, final int to) {
+        final int capacity = size + to - from;
+        final int[] hs = Arrays.copyOf(hashes, capacity);
+        final H3CellId<T>[] ks = Arrays.copyOf(keys, capacity);
+        final V[] vs = Arrays.copyOf(values, capacity);
+        int len = size;
+        for (int i = from; i < to; i++) {
+            final int hash = hash(nkeys[i].getBusinessEntityId());
+            final int pos = search(hs, ks, len, nkeys[i].getAddress(), nkeys[i].getBusinessEntityId(), hash);
+            if (pos >= 0) {
+                ks[pos] = nkeys[i];
+                vs[pos] = nvalues[i];
+            }
+            else {
+                final int at = -pos - 1;
+                System.arraycopy(hs, at, hs, at + 1, len - at);
+                System.arraycopy(ks, at, ks, at + 1, len - at);
+                System.arraycopy(vs, at, vs, at + 1, len - at);
+                hs[at] = hash;
+                ks[at] = nkeys[i];
+                vs[at] = nvalues[i];
+                len += 1;
+            }
+        }
+        if (len < capacity) {
+            return new CollisionBucket<>(Arrays.copyOf(hs, len), Arrays.copyOf(ks, len), Arrays.copyOf(vs, len));
+        }
+        else {
+            return new CollisionBucket<>(hs, ks, vs);
+        }
+    }
+
+    public CollisionBucket<T, V> remove(final H3CellId<T> key) {
+        return removeAll(new H3CellId[] { key }, 0, 1);
+    }
+
+    /**
+     * Removes keys from `from` to `to` (exclusive) copying the arrays once. Returns this bucket if none of the keys is
+     * present
+     */
+    public CollisionBucket<T, V> removeAll(final H3CellId<T>[] rkeys, final int from, final int to) {
+        boolean[] removed = null;
+        int left = size;
+        for (int i = from; i < to && left > 0; i++) {
+            final int pos = search(rkeys[i]);
+            if (pos >= 0 && (removed == null || !removed[pos])) {
+                if (removed == null) {
+                    removed = new boolean[size];
+                }
+                removed[pos] = true;
+                left -= 1;
+            }
+        }
+        if (removed == null) {
+            return this;
+        }
+        else
+        if (left == 0) {
+            return empty();
+        }
+        final int[] hs = new int[left];
+        final H3CellId<T>[] ks = new H3CellId[left];
+        final V[] vs = (V[]) new Object[left];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (!removed[i]) {
+                hs[j] = hashes[i];
+                ks[j] = keys[i];
+                vs[j] = values[i];
+                j += 1;
+            }
+        }
+        return new CollisionBucket<>(hs, ks, vs);
+    }
+
+    public Iterator<Entry<H3CellId<T>, V>> iterator() {
+        return new Iterator<>() {
+            private int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < size;
+            }
+
+            @Override
+            public Entry<H3CellId<T>, V> next() {
+                if (pos >= size) {
+                    throw new NoSuchElementException();
+                }
+                final Entry<H3CellId<T>, V> e = new SimpleImmutableEntry<>(keys[pos], values[pos]);
+                pos += 1;
+                return e;
+            }
+        };
+    }
+
+    /**
+     * Passes every key and value to the action without creating entries
+     */
+    public void forEach(final BiConsumer<? super H3CellId<T>, ? super V> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(keys[i], values[i]);
+        }
+    }
+}
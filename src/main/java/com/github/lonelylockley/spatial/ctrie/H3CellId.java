@@ -4,21 +4,30 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Objects;
 
+/**
+ * A flyweight map key: only the raw address and the business entity id are stored, every other component
+ * (resolution, base cell, per-resolution cells) is extracted from the address with shifts on demand
+ */
 public class H3CellId<T> implements Serializable {
 
+    private static final long serialVersionUID = 2L;
+
     public static final int BASE_OFFSET = 19;
     public static final int MAX_DEPTH = 16; // (base level - 0 and res 1-15)
+    // base cell and cells of all resolutions, i.e. the order in which entries are laid out in the trie
+    public static final long TRIE_ORDER_MASK = 0x000F_FFFF_FFFF_FFFFL;
 
     private final long address;
-    private final int[] cells = new int[15];
-    private final int resolution;
-    private final int baseCell;
     private final T entityId;
 
-    private int position = BASE_OFFSET; // starting offset for resolution layers
-
     public static String trimToResolution(String cellId, int res) {
-        var address = Long.parseLong(cellId, 0, cellId.length(), 16);
+        return Long.toHexString(trimToResolution(Long.parseLong(cellId, 0, cellId.length(), 16), res));
+    }
+
+    /**
+     * Same as {@link #trimToResolution(String, int)} for a raw address
+     */
+    public static long trimToResolution(long address, int res) {
         var resolution = extractSub(address, 8, 4);
         if (resolution < res) {
             throw new IllegalArgumentException("Cannot create cellId with resolution " + res + " out of cell with resolution " + resolution);
@@ -30,7 +39,7 @@ public class H3CellId<T> implements Serializable {
         for (int i = res; i < 15; i++) {
             address = writeSub(address, BASE_OFFSET + i * 3, 3, 7);
         }
-        return Long.toHexString(address);
+        return address;
     }
 
     public H3CellId(String cellId, T businessEntityId) {
@@ -45,17 +54,14 @@ public class H3CellId<T> implements Serializable {
         if (readMode() != 1) { // cell mode
             throw new IllegalArgumentException("Only cell mode is supported");
         }
-        this.resolution = readResolution();
+        final var resolution = readResolution();
         if (resolution < 0 || resolution > 16) {
             throw new IllegalArgumentException("Wrong resolution: " + resolution);
         }
-        this.baseCell = readBaseCell();
+        final var baseCell = readBaseCell();
         if (baseCell < 0 || baseCell > 121) {
             throw new IllegalArgumentException("Wrong base cell id: " + baseCell);
         }
-        for (int i = 0; i < 15; i++) {
-            cells[i] = readCell();
-        }
         this.entityId = businessEntityId;
     }
 
@@ -63,6 +69,42 @@ public class H3CellId<T> implements Serializable {
         return address;
     }
 
+    /**
+     * Compares two addresses in the order entries are laid out in the trie: by base cell and cells of every
+     * resolution first, addresses differing only in the header (i.e. resolution) are ordered by their raw value
+     */
+    public static int compareTrieOrder(long x, long y) {
+        final int cmp = Long.compare(x & TRIE_ORDER_MASK, y & TRIE_ORDER_MASK);
+        return cmp != 0 ? cmp : Long.compare(x, y);
+    }
+
+    /**
+     * Reads a base cell straight from the raw address without validating it
+     */
+    public static int baseCell(long address) {
+        return (int) extractSub(address, 12, 7);
+    }
+
+    /**
+     * Reads a resolution straight from the raw address without validating it
+     */
+    public static int resolution(long address) {
+        return (int) extractSub(address, 8, 4);
+    }
+
+    /**
+     * Checks whether the address lies within a cell of `resolution` given by the parent address, i.e. it is of the
+     * same or finer resolution and shares the base cell and cells of resolutions up to `resolution` with the parent
+     */
+    public static boolean isWithin(long address, long parent, int resolution) {
+        final long mask = (0x7FL << 45) | (((1L << (3 * resolution)) - 1) << (45 - 3 * resolution));
+        return resolution(address) >= resolution && ((address ^ parent) & mask) == 0;
+    }
+
+    public boolean matches(long address, T businessEntityId) {
+        return this.address == address && Objects.equals(entityId, businessEntityId);
+    }
+
     private int readReserved() {
         return (int) extractSub(address, 0, 1);
     }
@@ -79,10 +121,11 @@ public class H3CellId<T> implements Serializable {
         return (int) extractSub(address, 12, 7);
     }
 
-    private int readCell() {
-        var res = extractSub(address, position, 3);
-        position += 3;
-        return (int) res;
+    /**
+     * Reads a cell of a given resolution (1-15) straight from the raw address without validating it
+     */
+    public static int cell(long address, int resolution) {
+        return (int) extractSub(address, BASE_OFFSET + 3 * (resolution - 1), 3);
     }
 
     private static long extractSub(final long source, final int offset, final int nrBits) {
@@ -100,11 +143,11 @@ public class H3CellId<T> implements Serializable {
     }
 
     public int getResolution() {
-        return resolution;
+        return readResolution();
     }
 
     public int getBaseCell() {
-        return baseCell;
+        return readBaseCell();
     }
 
     public String getCellId() {
@@ -112,13 +155,13 @@ public class H3CellId<T> implements Serializable {
     }
 
     public int getCell(int resolution) {
-        if (resolution < 0 || resolution > 16) {
+        if (resolution < 0 || resolution >= MAX_DEPTH) {
             throw new IllegalArgumentException("Wrong resolution: " + resolution);
         }
         if (resolution == 0) {
-            return baseCell;
+            return readBaseCell();
         }
-        return cells[resolution - 1];
+        return cell(address, resolution);
     }
 
     public T getBusinessEntityId() {
@@ -140,12 +183,16 @@ public class H3CellId<T> implements Serializable {
 
     @Override
     public String toString() {
+        final var cells = new int[15];
+        for (int i = 0; i < 15; i++) {
+            cells[i] = cell(address, i + 1);
+        }
         return "H3CellId{" +
                 "cellId=" + getCellId() +
                 ", address=" + address +
                 ", cells=" + Arrays.toString(cells) +
-                ", resolution=" + resolution +
-                ", baseCell=" + baseCell +
+                ", resolution=" + getResolution() +
+                ", baseCell=" + getBaseCell() +
                 ", entityId='" + entityId + '\'' +
                 '}';
     }
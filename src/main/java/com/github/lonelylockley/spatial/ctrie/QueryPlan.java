@@ -0,0 +1,18 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+/**
+ * The way a query for several cells is run, see {@link SpatialConcurrentTrieMap#forEachWithinPlanned}
+ */
+public enum QueryPlan {
+
+    /**
+     * Every cell is looked up on its own (sharing the descent through common nodes), only entries within the cells
+     * are visited
+     */
+    CELLS,
+    /**
+     * A single cell encapsulating all the cells is visited, entries outside the cells are filtered out
+     */
+    PARENT_SCAN
+
+}
@@ -0,0 +1,674 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+/**
+ * A map keeping a separate {@link SpatialConcurrentTrieMap} per shard behind a single map interface. A shard is a base
+ * cell by default, or a cell of a finer shard resolution up to {@link #MAX_SHARD_RESOLUTION}. Every update of a trie
+ * renews the nodes on the path from its root, and every snapshot renews the generation of the whole trie, so with a
+ * single root writers all over the world contend on the same root node and a snapshot slows down all of them. Here
+ * writers in different shards never touch the same root, and a snapshot is only taken of the shards a reader is
+ * interested in, see {@link #readOnlySnapshot(BitSet)}. Shards are numbered in trie order, see {@link #shardIndex}.
+ *
+ * Every operation on a single key is lock-free and linearizable, as it is served by a single trie, and so is a move
+ * within a shard, see {@link SpatialConcurrentTrieMap#move}. A move to another shard cannot be a single trie update:
+ * the value is removed from one trie and then put into the other one. This is weaker than a single trie, where every
+ * move is atomic for every reader: here a reader looking the value up under the old key and then under the new one
+ * may miss it twice while such a move is in flight, and so may a snapshot of a single shard followed by a read of
+ * the other one. A snapshot of several shards never misses it: moves across shards bump the stamps of the shards they
+ * touch before and after they are applied, and the snapshot is retried until no such move has been in flight while
+ * it was taken. Moves and snapshots take no locks, but a snapshot retried {@link #SNAPSHOT_ATTEMPTS} times raises
+ * the gates of its shards, which hold off new moves across them until the snapshot is taken.
+ *
+ * Operations on the whole map, i.e. `size()`, iteration and `clear()`, visit the shards one by one, same as in
+ * {@link java.util.concurrent.ConcurrentHashMap}. Take {@link #readOnlySnapshot()} first for a consistent view. So do
+ * the queries of a cell coarser than the shard resolution, as its entries are spread over several shards.
+ */
+public class ShardedSpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V> implements ConcurrentMap<H3CellId<T>, V>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of base cells in H3, i.e. number of shards of resolution 0
+     */
+    public static final int BASE_CELLS = 122;
+    /**
+     * Shards of resolution 2 are 5978 tries, most of them empty. Finer shards would only add empty tries
+     */
+    public static final int MAX_SHARD_RESOLUTION = 2;
+    /**
+     * Number of times a snapshot of several shards is retried because of the moves across them in flight, before it
+     * holds off new moves, see {@link #readOnlySnapshot(BitSet)}
+     */
+    public static final int SNAPSHOT_ATTEMPTS = 256;
+
+    private final SpatialConcurrentTrieMap<T, V>[] shards;
+    private final int shardResolution;
+    // moves across shards started and finished per shard, a shard is stable while they are equal
+    private final AtomicLongArray started;
+    private final AtomicLongArray finished;
+    // snapshots holding off new moves across shards per shard
+    private final AtomicIntegerArray gates;
+    private final boolean readOnly;
+    private transient Set<Entry<H3CellId<T>, V>> entrySet;
+
+    private ShardedSpatialConcurrentTrieMap(final SpatialConcurrentTrieMap<T, V>[] shards, final int shardResolution, final boolean readOnly) {
+        this.shards = shards;
+        this.shardResolution = shardResolution;
+        this.readOnly = readOnly;
+        // nothing moves within a snapshot
+        this.started = readOnly ? null : new AtomicLongArray(shards.length);
+        this.finished = readOnly ? null : new AtomicLongArray(shards.length);
+        this.gates = readOnly ? null : new AtomicIntegerArray(shards.length);
+    }
+
+    public ShardedSpatialConcurrentTrieMap() {
+        this(SpatialConcurrentTrieMap.DEFAULT_STRIDE);
+    }
+
+    /**
+     * @param stride number of resolutions indexed by a single BranchNode of every shard, see
+     *               {@link SpatialConcurrentTrieMap#SpatialConcurrentTrieMap(int)}
+     */
+    public ShardedSpatialConcurrentTrieMap(final int stride) {
+        this(stride, 0);
+    }
+
+    /**
+     * @param stride number of resolutions indexed by a single BranchNode of every shard, see
+     *               {@link SpatialConcurrentTrieMap#SpatialConcurrentTrieMap(int)}
+     * @param shardResolution resolution of the cells to keep a trie per, from 0 (a trie per base cell) to
+     *                        {@link #MAX_SHARD_RESOLUTION}. Finer shards let more writers and snapshots of a single
+     *                        area go on without touching each other's roots, but more moves cross the shards
+     */
+    public ShardedSpatialConcurrentTrieMap(final int stride, final int shardResolution) {
+        this(new SpatialConcurrentTrieMap[BASE_CELLS * span(checkShardResolution(shardResolution))], shardResolution, false);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new SpatialConcurrentTrieMap<>(stride);
+        }
+    }
+
+    private static int checkShardResolution(final int shardResolution) {
+        if (shardResolution < 0 || shardResolution > MAX_SHARD_RESOLUTION) {
+            throw new IllegalArgumentException("Shard resolution must be between 0 and " + MAX_SHARD_RESOLUTION + ", got " + shardResolution);
+        }
+        return shardResolution;
+    }
+
+    // number of cells of a resolution `depth` levels finer within a cell, pentagons included as if they had 7 children
+    private static int span(final int depth) {
+        int span = 1;
+        for (int i = 0; i < depth; i++) {
+            span *= 7;
+        }
+        return span;
+    }
+
+    public final boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public final int getShardResolution() {
+        return shardResolution;
+    }
+
+    /**
+     * Number of shards, including the ones no valid cell belongs to, e.g. the deleted subsequences of pentagons
+     */
+    public final int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the trie of a shard. Updates of the trie are visible through this map and vice versa
+     */
+    public final SpatialConcurrentTrieMap<T, V> shard(final int index) {
+        return shards[index];
+    }
+
+    /**
+     * Index of the shard holding a key with a given address. Shards are numbered by the base cell and the cells of
+     * resolutions up to the shard resolution, so their order is the trie order. A key coarser than the shard
+     * resolution goes to the first of its shards, as it precedes all the keys within it when a trie is iterated
+     */
+    public final int shardIndex(final long address) {
+        return firstShardWithin(address, H3CellId.resolution(address));
+    }
+
+    /**
+     * Index of the first shard of the entries within a cell of a given resolution containing the address, see
+     * {@link #shardSpan(int)} for the number of the shards
+     */
+    private int firstShardWithin(final long address, final int resolution) {
+        final int known = Math.min(resolution, H3CellId.resolution(address));
+        int index = H3CellId.baseCell(address);
+        for (int r = 1; r <= shardResolution; r++) {
+            index = index * 7 + (r <= known ? H3CellId.cell(address, r) : 0);
+        }
+        return index;
+    }
+
+    private int shardSpan(final int resolution) {
+        return span(shardResolution - Math.min(resolution, shardResolution));
+    }
+
+    /**
+     * Shards holding the entries within the cells, every cell is of its own resolution. A snapshot of these shards is
+     * enough to query the cells, see {@link #readOnlySnapshot(BitSet)}
+     */
+    public final BitSet shardsWithin(final long[] cells) {
+        final BitSet result = new BitSet(shards.length);
+        for (long address : cells) {
+            final int first = firstShardWithin(address, H3CellId.resolution(address));
+            result.set(first, first + shardSpan(H3CellId.resolution(address)));
+        }
+        return result;
+    }
+
+    private SpatialConcurrentTrieMap<T, V> shardOf(final Object key) {
+        return shards[shardIndex(((H3CellId<T>) key).getAddress())];
+    }
+
+    private void assertWritable() {
+        if (isReadOnly()) {
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        }
+    }
+
+    @Override
+    public V get(final Object key) {
+        return shardOf(key).get(key);
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#get(long, Object)}
+     */
+    public V get(final long address, final T entityId) {
+        return shards[shardIndex(address)].get(address, entityId);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return shardOf(key).containsKey(key);
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#containsKey(long, Object)}
+     */
+    public boolean containsKey(final long address, final T entityId) {
+        return shards[shardIndex(address)].containsKey(address, entityId);
+    }
+
+    @Override
+    public V put(final H3CellId<T> key, final V value) {
+        assertWritable();
+        return shardOf(key).put(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(final H3CellId<T> key, final V value) {
+        assertWritable();
+        return shardOf(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean replace(final H3CellId<T> key, final V oldValue, final V newValue) {
+        assertWritable();
+        return shardOf(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(final H3CellId<T> key, final V value) {
+        assertWritable();
+        return shardOf(key).replace(key, value);
+    }
+
+    @Override
+    public V remove(final Object key) {
+        assertWritable();
+        return shardOf(key).remove(key);
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        assertWritable();
+        return shardOf(key).remove(key, value);
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#remove(long, Object)}
+     */
+    public V remove(final long address, final T entityId) {
+        assertWritable();
+        return shards[shardIndex(address)].remove(address, entityId);
+    }
+
+    /**
+     * Inserts all entries of a given map, entries of every shard are inserted with
+     * {@link SpatialConcurrentTrieMap#putAll(Map)}. Each entry is inserted atomically, the batch as a whole is not
+     */
+    @Override
+    public void putAll(final Map<? extends H3CellId<T>, ? extends V> m) {
+        assertWritable();
+        final Map<Integer, Map<H3CellId<T>, V>> parts = new TreeMap<>();
+        for (Entry<? extends H3CellId<T>, ? extends V> e : m.entrySet()) {
+            parts.computeIfAbsent(shardIndex(e.getKey().getAddress()), i -> new HashMap<>()).put(e.getKey(), e.getValue());
+        }
+        parts.forEach((i, part) -> shards[i].putAll(part));
+    }
+
+    /**
+     * Batch counterpart of {@link #remove(Object)}, see {@link SpatialConcurrentTrieMap#removeAll(Collection)}
+     */
+    public void removeAll(final Collection<? extends H3CellId<T>> keys) {
+        assertWritable();
+        final Map<Integer, List<H3CellId<T>>> parts = new TreeMap<>();
+        for (H3CellId<T> key : keys) {
+            parts.computeIfAbsent(shardIndex(key.getAddress()), i -> new ArrayList<>()).add(key);
+        }
+        parts.forEach((i, part) -> shards[i].removeAll(part));
+    }
+
+    /**
+     * Moves a value from one key to another, replacing the value of `to` if there is one. A move within a shard is an
+     * atomic trie move, see {@link SpatialConcurrentTrieMap#move}. A move to another shard is a removal followed by an
+     * insertion. It is atomic for the snapshots of several shards taken with {@link #readOnlySnapshot(BitSet)}, but a
+     * reader of a single key or a snapshot of a single shard may see the value under neither of the keys, which is
+     * weaker than a trie move, see the class description. It waits while a snapshot retried too many times holds off
+     * the moves across its shards.
+     *
+     * @return the moved value or null if there was no `from` key, in which case nothing is changed
+     */
+    public final V move(final H3CellId<T> from, final H3CellId<T> to) {
+        assertWritable();
+        final int src = shardIndex(from.getAddress());
+        final int dst = shardIndex(to.getAddress());
+        if (src == dst) {
+            return shards[src].move(from, to);
+        }
+        final BitSet touched = new BitSet(shards.length);
+        touched.set(src);
+        touched.set(dst);
+        begin(touched);
+        try {
+            final V value = shards[src].remove(from);
+            if (value != null) {
+                shards[dst].put(to, value);
+            }
+            return value;
+        }
+        finally {
+            end(touched);
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #move} with the same outcome as {@link SpatialConcurrentTrieMap#moveAll}, as if all
+     * the values were taken out first and then put under the new keys, no matter in which order the moves are listed.
+     * Values moving to other shards are removed first, then the moves within every shard are applied with
+     * {@link SpatialConcurrentTrieMap#moveAll}, and then the removed values are put under their new keys. If any value
+     * changes its shard, the whole batch is atomic for the snapshots of several shards, see {@link #move}. A key listed
+     * several times is moved only once.
+     *
+     * @param from keys to move values from
+     * @param to new keys, `to[i]` is the new key of `from[i]`
+     * @return moves that took place, i.e. indices of the `from` keys that were present
+     */
+    public final BitSet moveAll(final List<? extends H3CellId<T>> from, final List<? extends H3CellId<T>> to) {
+        assertWritable();
+        if (from.size() != to.size()) {
+            throw new IllegalArgumentException("Expected a new key for every moved key, got " + to.size() + " for " + from.size());
+        }
+        final BitSet moved = new BitSet(from.size());
+        final Map<Integer, List<Integer>> local = new TreeMap<>();
+        final List<Integer> across = new ArrayList<>();
+        final BitSet touched = new BitSet(shards.length);
+        for (int i = 0; i < from.size(); i++) {
+            final int src = shardIndex(from.get(i).getAddress());
+            final int dst = shardIndex(to.get(i).getAddress());
+            if (src == dst) {
+                local.computeIfAbsent(src, k -> new ArrayList<>()).add(i);
+            }
+            else {
+                across.add(i);
+                touched.set(dst);
+            }
+            touched.set(src);
+        }
+        if (across.isEmpty()) {
+            applyLocal(from, to, local, moved);
+            return moved;
+        }
+        begin(touched);
+        try {
+            final Map<H3CellId<T>, V> taken = new HashMap<>();
+            for (int i : across) {
+                final H3CellId<T> key = from.get(i);
+                if (!taken.containsKey(key)) {
+                    taken.put(key, shards[shardIndex(key.getAddress())].remove(key));
+                }
+            }
+            applyLocal(from, to, local, moved);
+            for (int i : across) {
+                // a key listed several times is moved once
+                final V value = taken.remove(from.get(i));
+                if (value != null) {
+                    shards[shardIndex(to.get(i).getAddress())].put(to.get(i), value);
+                    moved.set(i);
+                }
+            }
+        }
+        finally {
+            end(touched);
+        }
+        return moved;
+    }
+
+    private void applyLocal(final List<? extends H3CellId<T>> from, final List<? extends H3CellId<T>> to, final Map<Integer, List<Integer>> local, final BitSet moved) {
+        local.forEach((index, indices) -> {
+            final BitSet present = shards[index].moveAll(indices.stream().map(from::get).toList(), indices.stream().map(to::get).toList());
+            present.stream().forEach(i -> moved.set(indices.get(i)));
+        });
+    }
+
+    /**
+     * Marks a move across shards as started. A move is counted as started before the gates are checked, while a
+     * snapshot raises the gates before it reads the stamps, so either the snapshot sees the move in flight or the move
+     * sees the gate and steps back until the snapshot is taken. A move steps back at most once per raised gate, so a
+     * gated snapshot is retried a bounded number of times
+     */
+    private void begin(final BitSet touched) {
+        while (true) {
+            touched.stream().forEach(started::incrementAndGet);
+            if (touched.stream().allMatch(i -> gates.get(i) == 0)) {
+                return;
+            }
+            end(touched);
+            while (touched.stream().anyMatch(i -> gates.get(i) != 0)) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void end(final BitSet touched) {
+        touched.stream().forEach(finished::incrementAndGet);
+    }
+
+    /**
+     * Returns a read-only snapshot of the given shards, other shards are empty in it. A snapshot of a single shard is a
+     * single trie snapshot, which may miss a value moving to another shard, see {@link #move}. A snapshot of several
+     * shards is consistent with the moves across them: it is retried while any of its shards has a move across shards
+     * in flight. After {@link #SNAPSHOT_ATTEMPTS} attempts it raises the gates of its shards, so new moves across them
+     * wait until the moves in flight are over and the snapshot is taken.
+     *
+     * @param indices indices of the shards, see {@link #shardIndex} and {@link #shardsWithin}
+     */
+    public final ShardedSpatialConcurrentTrieMap<T, V> readOnlySnapshot(final BitSet indices) {
+        if (isReadOnly()) {
+            return this;
+        }
+        final SpatialConcurrentTrieMap<T, V>[] snapshots = new SpatialConcurrentTrieMap[shards.length];
+        if (indices.cardinality() == 1) {
+            final int i = indices.nextSetBit(0);
+            snapshots[i] = shards[i].readOnlySnapshot();
+        }
+        else {
+            final long[] stamps = new long[shards.length];
+            int attempts = 0;
+            try {
+                while (true) {
+                    if (isStable(indices, stamps)) {
+                        indices.stream().forEach(i -> snapshots[i] = shards[i].readOnlySnapshot());
+                        if (isUnchanged(indices, stamps)) {
+                            break;
+                        }
+                    }
+                    if (++attempts == SNAPSHOT_ATTEMPTS) {
+                        indices.stream().forEach(gates::incrementAndGet);
+                    }
+                    Thread.onSpinWait();
+                }
+            }
+            finally {
+                if (attempts >= SNAPSHOT_ATTEMPTS) {
+                    indices.stream().forEach(gates::decrementAndGet);
+                }
+            }
+        }
+        final SpatialConcurrentTrieMap<T, V> empty = new SpatialConcurrentTrieMap<T, V>().readOnlySnapshot();
+        for (int i = 0; i < shards.length; i++) {
+            if (snapshots[i] == null) {
+                snapshots[i] = empty;
+            }
+        }
+        return new ShardedSpatialConcurrentTrieMap<>(snapshots, shardResolution, true);
+    }
+
+    /**
+     * Tells if no move across shards is in flight in the given shards and keeps the number of the moves started in
+     * each of them. Finished moves are read first, so a move started in between is seen as in flight
+     */
+    private boolean isStable(final BitSet indices, final long[] stamps) {
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            final long done = finished.get(i);
+            stamps[i] = started.get(i);
+            if (stamps[i] != done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells if no move across shards has started in the given shards since {@link #isStable} has been true
+     */
+    private boolean isUnchanged(final BitSet indices, final long[] stamps) {
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            if (started.get(i) != stamps[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a read-only snapshot of all the shards, see {@link #readOnlySnapshot(BitSet)}
+     */
+    public final ShardedSpatialConcurrentTrieMap<T, V> readOnlySnapshot() {
+        final BitSet all = new BitSet(shards.length);
+        all.set(0, shards.length);
+        return readOnlySnapshot(all);
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#forEachWithinPlanned(long[], BiConsumer)}, the cells are visited per shard.
+     * A cell coarser than the shard resolution is visited in each of its shards. Call it on a snapshot of
+     * {@link #shardsWithin(long[])} for a consistent view.
+     *
+     * @return plans chosen for the shards, a plan per shard the cells belong to in ascending order
+     */
+    public final List<QueryPlan> forEachWithinPlanned(final long[] cells, final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        final BitSet indices = shardsWithin(cells);
+        final List<QueryPlan> plans = new ArrayList<>(indices.cardinality());
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            final int index = i;
+            final long[] part = Arrays.stream(cells).filter(address -> isWithinShards(address, index)).toArray();
+            plans.add(shards[i].forEachWithinPlanned(part, consumer));
+        }
+        return plans;
+    }
+
+    private boolean isWithinShards(final long address, final int index) {
+        final int first = firstShardWithin(address, H3CellId.resolution(address));
+        return index >= first && index < first + shardSpan(H3CellId.resolution(address));
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#countWithin(long, int)}, a cell coarser than the shard resolution is counted
+     * within each of its shards
+     */
+    public final int countWithin(final long address, final int resolution) {
+        final int first = firstShardWithin(address, resolution);
+        int count = 0;
+        for (int i = first; i < first + shardSpan(resolution); i++) {
+            count += shards[i].countWithin(address, resolution);
+        }
+        return count;
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#aggregateWithin(long, int, Aggregator)}, a cell coarser than the shard
+     * resolution is aggregated within each of its shards in trie order
+     */
+    public final <A> A aggregateWithin(final long address, final int resolution, final Aggregator<? super V, A> aggregator) {
+        final int first = firstShardWithin(address, resolution);
+        A result = shards[first].aggregateWithin(address, resolution, aggregator);
+        for (int i = first + 1; i < first + shardSpan(resolution); i++) {
+            result = aggregator.combine(result, shards[i].aggregateWithin(address, resolution, aggregator));
+        }
+        return result;
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#countCells(long, int, int, CellCountVisitor)}, a cell coarser than the shard
+     * resolution is counted within each of its shards in trie order, so a cell spread over several shards is still
+     * passed to the visitor once
+     */
+    public final void countCells(final long address, final int resolution, final int cellResolution, final CellCountVisitor visitor) {
+        final int first = firstShardWithin(address, resolution);
+        final var counts = new SpatialConcurrentTrieMap.CellCounts(visitor);
+        for (int i = first; i < first + shardSpan(resolution); i++) {
+            shards[i].countCells(address, resolution, cellResolution, counts);
+        }
+        counts.flush();
+    }
+
+    /**
+     * See {@link SpatialConcurrentTrieMap#subTree(H3CellId)}. The subtree of a key coarser than the shard resolution is
+     * a read-only map of the subtrees of its shards
+     */
+    public final Map<H3CellId<T>, V> subTree(final H3CellId<T> key) {
+        final int span = shardSpan(key.getResolution());
+        if (span == 1) {
+            return shardOf(key).subTree(key);
+        }
+        final int first = firstShardWithin(key.getAddress(), key.getResolution());
+        final SpatialConcurrentTrieMap<T, V>[] subtrees = new SpatialConcurrentTrieMap[shards.length];
+        final SpatialConcurrentTrieMap<T, V> empty = new SpatialConcurrentTrieMap<T, V>().readOnlySnapshot();
+        Arrays.fill(subtrees, empty);
+        for (int i = first; i < first + span; i++) {
+            subtrees[i] = shards[i].subTree(key);
+        }
+        return new ShardedSpatialConcurrentTrieMap<>(subtrees, shardResolution, true);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (SpatialConcurrentTrieMap<T, V> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (SpatialConcurrentTrieMap<T, V> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        assertWritable();
+        for (SpatialConcurrentTrieMap<T, V> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        for (SpatialConcurrentTrieMap<T, V> shard : shards) {
+            shard.forEach(consumer);
+        }
+    }
+
+    /**
+     * Entries are iterated shard by shard, i.e. in the same order as in a single trie. Iterators of a writable
+     * map support removal, as the iterators of {@link SpatialConcurrentTrieMap} do
+     */
+    @Override
+    public Set<Entry<H3CellId<T>, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<H3CellId<T>, V>> {
+
+        @Override
+        public Iterator<Entry<H3CellId<T>, V>> iterator() {
+            return new Iterator<>() {
+                private int next = 0;
+                private Iterator<Entry<H3CellId<T>, V>> current = Collections.emptyIterator();
+                private Iterator<Entry<H3CellId<T>, V>> last = null;
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && next < shards.length) {
+                        current = shards[next++].entrySet().iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public Entry<H3CellId<T>, V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    last = current;
+                    return current.next();
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    last.remove();
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return o instanceof Map.Entry<?, ?> e && e.getKey() instanceof H3CellId<?> && ShardedSpatialConcurrentTrieMap.this.containsKey(e.getKey());
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            return o instanceof Map.Entry<?, ?> e && e.getKey() instanceof H3CellId<?> && ShardedSpatialConcurrentTrieMap.this.remove(e.getKey()) != null;
+        }
+
+        @Override
+        public int size() {
+            return ShardedSpatialConcurrentTrieMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            ShardedSpatialConcurrentTrieMap.this.clear();
+        }
+    }
+
+}
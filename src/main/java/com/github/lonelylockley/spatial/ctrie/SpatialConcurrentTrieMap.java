@@ -1,6 +1,7 @@
 package com.github.lonelylockley.spatial.ctrie;
 
 import com.github.lonelylockley.spatial.ctrie.nodes.BaseNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.ForEachTask;
 import com.github.lonelylockley.spatial.ctrie.nodes.NodeWrapper;
 
 import java.io.IOException;
@@ -10,43 +11,84 @@ import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
 public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V> implements ConcurrentMap<H3CellId<T>, V>, Serializable {
 
     private static final AtomicReferenceFieldUpdater<SpatialConcurrentTrieMap, BaseNode> ROOT_UPDATER = AtomicReferenceFieldUpdater.newUpdater(SpatialConcurrentTrieMap.class, BaseNode.class, "root");
     private static final long serialVersionUID = 1L;
     private static final Field READONLY_FIELD;
+    private static final Field STRIDE_FIELD;
+
+    /**
+     * Default number of resolutions a single BranchNode indexes: one, i.e. up to 7 children per node
+     */
+    public static final int DEFAULT_STRIDE = 1;
+    /**
+     * Two resolutions per node give up to 49 children per node. Three would need 512 slots, that don't fit the
+     * bitmaps of a node
+     */
+    public static final int MAX_STRIDE = 2;
 
     static {
         final Field f;
+        final Field s;
         try {
             f = SpatialConcurrentTrieMap.class.getDeclaredField("readOnly");
+            s = SpatialConcurrentTrieMap.class.getDeclaredField("stride");
         }
         catch (NoSuchFieldException | SecurityException e) {
             throw new ExceptionInInitializerError(e);
         }
         f.setAccessible(true);
+        s.setAccessible(true);
         READONLY_FIELD = f;
+        STRIDE_FIELD = s;
     }
 
     private final transient boolean readOnly;
+    private final transient int stride;
     private transient volatile BaseNode<T, V> root;
     private transient EntrySet entrySet = new EntrySet();
+    // entries added less entries removed by the committed updates of this map, see mappingCount()
+    private transient LongAdder sizeCounter = new LongAdder();
 
-    protected SpatialConcurrentTrieMap(final NodeWrapper<T, V> r, boolean readOnly) {
+    protected SpatialConcurrentTrieMap(final NodeWrapper<T, V> r, boolean readOnly, int stride) {
         this.readOnly = readOnly;
+        this.stride = stride;
         this.root = r;
     }
 
     public SpatialConcurrentTrieMap() {
-        this(NodeWrapper.newRootNode(), false);
+        this(DEFAULT_STRIDE);
+    }
+
+    /**
+     * @param stride number of resolutions indexed by a single BranchNode, from 1 to {@link #MAX_STRIDE}. Wider nodes
+     *               make the trie shallower at the cost of copying larger arrays on every update
+     */
+    public SpatialConcurrentTrieMap(final int stride) {
+        this(NodeWrapper.newRootNode(), false, checkStride(stride));
+    }
+
+    private static int checkStride(final int stride) {
+        if (stride < 1 || stride > MAX_STRIDE) {
+            throw new IllegalArgumentException("Stride must be between 1 and " + MAX_STRIDE + ", got " + stride);
+        }
+        return stride;
     }
 
     public final boolean isReadOnly() {
         return readOnly;
     }
 
+    public final int getStride() {
+        return stride;
+    }
+
     protected final void assertWritable() {
         if (isReadOnly()) {
             throw new IllegalStateException("Attempted to modify a read-only snapshot");
@@ -145,7 +187,7 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
     private void insertByHash(final H3CellId<T> key, final long hash, final V value) {
         while (true) {
             NodeWrapper<T, V> r = getRootRDCSS();
-            if (!r.insertInternal(key, value, hash, H3CellId.BASE_OFFSET, null, r.gen, this)) {
+            if (!r.insertInternal(key, value, hash, null, r.gen, this)) {
                 // tailrec
                 continue;
             }
@@ -156,7 +198,7 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
     protected Optional<V> insertWithConditionByHash(final H3CellId<T> key, final V value, final V cond) {
         while (true) {
             NodeWrapper<T, V> r = getRootRDCSS();
-            Optional<V> ret = r.insertWithConditionInternal(key, value, cond, H3CellId.BASE_OFFSET, null, r.gen, this);
+            Optional<V> ret = r.insertWithConditionInternal(key, value, cond, null, r.gen, this);
             if (ret != null) {
                 return ret;
             }
@@ -166,7 +208,17 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
     private V lookupByHash(final H3CellId<T> k) {
         while (true) {
             NodeWrapper<T, V> r = getRootRDCSS();
-            Object res = r.lookupInternal(k, H3CellId.BASE_OFFSET, null, r.gen, this);
+            Object res = r.lookupInternal(k, null, r.gen, this);
+            if (res != NodeWrapper.RESTART) {
+                return (V) res;
+            }
+        }
+    }
+
+    private V lookupByAddress(final long address, final T entityId) {
+        while (true) {
+            NodeWrapper<T, V> r = getRootRDCSS();
+            Object res = r.lookupInternal(address, entityId, null, r.gen, this);
             if (res != NodeWrapper.RESTART) {
                 return (V) res;
             }
@@ -180,7 +232,17 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
     protected Optional<V> removeByHash(final H3CellId<T> key, final V value) {
         while (true) {
             NodeWrapper<T, V> r = getRootRDCSS();
-            Optional<V> res = r.removeInternal(key, value, H3CellId.BASE_OFFSET, null, r.gen, this);
+            Optional<V> res = r.removeInternal(key, value, null, r.gen, this);
+            if (res != null) {
+                return res;
+            }
+        }
+    }
+
+    protected Optional<V> removeByAddress(final long address, final T entityId, final V value) {
+        while (true) {
+            NodeWrapper<T, V> r = getRootRDCSS();
+            Optional<V> res = r.removeInternal(address, entityId, value, null, r.gen, this);
             if (res != null) {
                 return res;
             }
@@ -190,10 +252,10 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
     public final SpatialConcurrentTrieMap<T, V> subTree(final H3CellId<T> key) {
         while (true) {
             NodeWrapper<T, V> r = getRootRDCSS();
-            Object res = r.subTreeInternal(key, H3CellId.BASE_OFFSET, 0, null, r.gen, this);
+            Object res = r.subTreeInternal(key, null, r.gen, this);
             if (res != NodeWrapper.RESTART) {
                 res = res == null ? NodeWrapper.newRootNode() : res;
-                return new SpatialConcurrentTrieMap<>((NodeWrapper<T, V>) res, true);
+                return new SpatialConcurrentTrieMap<>((NodeWrapper<T, V>) res, true, stride);
             }
         }
     }
@@ -202,6 +264,451 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
     // PUBLIC API
     // =================================================================================================================
 
+    /**
+     * Passes every entry within a cell to the consumer. Entries are visited in place in a read-only snapshot, neither
+     * a map for the subtree nor an iterator nor entries are created.
+     */
+    public final void forEachWithin(final H3CellId<T> cell, final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        if (!isReadOnly()) {
+            readOnlySnapshot().forEachWithin(cell, consumer);
+        }
+        else {
+            readRoot().forEachWithinInternal(cell.getAddress(), cell.getResolution(), consumer, this);
+        }
+    }
+
+    /**
+     * Same as {@link #forEachWithin(H3CellId, BiConsumer)} for a cell of a given resolution containing the address,
+     * entries are passed to the visitor as raw addresses
+     */
+    public final void forEachWithin(final long address, final int resolution, final CellVisitor<T, V> visitor) {
+        if (resolution < 0 || resolution > H3CellId.resolution(address)) {
+            throw new IllegalArgumentException("Cannot visit resolution " + resolution + " of cell with resolution " + H3CellId.resolution(address));
+        }
+        if (!isReadOnly()) {
+            readOnlySnapshot().forEachWithin(address, resolution, visitor);
+        }
+        else {
+            readRoot().forEachWithinInternal(address, resolution, (k, v) -> visitor.accept(k.getAddress(), k.getBusinessEntityId(), v), this);
+        }
+    }
+
+    /**
+     * Passes every entry within any of the cells to the consumer. Cells are compacted (see {@link #compactCells}),
+     * sorted and visited in a single descent, so nodes shared by neighbouring cells (base cell, coarser resolutions)
+     * are visited once rather than once per cell. Cells may be of different resolutions and may overlap, every entry
+     * is passed once anyway.
+     *
+     * @param cells raw cell addresses, the array is left intact
+     */
+    public final void forEachWithin(final long[] cells, final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        if (!isReadOnly()) {
+            readOnlySnapshot().forEachWithin(cells, consumer);
+        }
+        else {
+            final CompactCells compact = compactCells(cells);
+            if (compact.cells().length > 0) {
+                readRoot().forEachWithinInternal(compact.cells(), compact.minResolutions(), 0, compact.cells().length, consumer, this);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #forEachWithin(long[], BiConsumer)}, but picks the cheaper of two plans per query: either every
+     * cell is looked up, or the smallest cell encapsulating all of them is visited in a single call and entries
+     * outside the cells are filtered out. The first one costs a descent per cell, the second one a membership check
+     * per entry of the encapsulating cell, which is known up front from sizes cached in the nodes of a read-only
+     * snapshot. Cached sizes survive in the nodes that are not modified later, so subsequent snapshots mostly get
+     * them for free.
+     *
+     * @param cells raw cell addresses, the array is left intact
+     * @return the plan the query was run with
+     */
+    public final QueryPlan forEachWithinPlanned(final long[] cells, final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        if (!isReadOnly()) {
+            return readOnlySnapshot().forEachWithinPlanned(cells, consumer);
+        }
+        final CompactCells compact = compactCells(cells);
+        final long[] disjoint = compact.cells();
+        if (disjoint.length == 0) {
+            return QueryPlan.CELLS;
+        }
+        final NodeWrapper<T, V> r = readRoot();
+        final int parentRes = commonResolution(disjoint);
+        if (disjoint.length > 1 && parentRes >= 0) {
+            // cells are all the way down from the parent, entries are matched with a binary search
+            final long descents = (long) disjoint.length * (maxResolution(disjoint) - parentRes);
+            final long checks = (long) r.countWithinInternal(disjoint[0], parentRes, this) * (32 - Integer.numberOfLeadingZeros(disjoint.length));
+            if (checks < descents) {
+                r.forEachWithinInternal(disjoint[0], parentRes, (k, v) -> {
+                    if (isWithinAny(k.getAddress(), compact)) {
+                        consumer.accept(k, v);
+                    }
+                }, this);
+                return QueryPlan.PARENT_SCAN;
+            }
+        }
+        r.forEachWithinInternal(disjoint, compact.minResolutions(), 0, disjoint.length, consumer, this);
+        return QueryPlan.CELLS;
+    }
+
+    // resolution of the smallest cell encapsulating all the cells, -1 when they belong to different base cells
+    private static int commonResolution(final long[] cells) {
+        long diff = 0;
+        int res = H3CellId.MAX_DEPTH - 1;
+        for (long cell : cells) {
+            diff |= (cell ^ cells[0]) & H3CellId.TRIE_ORDER_MASK;
+            res = Math.min(res, H3CellId.resolution(cell));
+        }
+        if (diff == 0) {
+            return res;
+        }
+        final int offset = Long.numberOfLeadingZeros(diff);
+        if (offset < H3CellId.BASE_OFFSET) {
+            return -1;
+        }
+        // the first differing cell is a child of the common parent
+        return Math.min(res, (offset - H3CellId.BASE_OFFSET) / 3);
+    }
+
+    private static int maxResolution(final long[] cells) {
+        int res = 0;
+        for (long cell : cells) {
+            res = Math.max(res, H3CellId.resolution(cell));
+        }
+        return res;
+    }
+
+    // cells are disjoint and sorted, so only the last one starting before the address may contain it
+    private static boolean isWithinAny(final long address, final CompactCells compact) {
+        final long[] cells = compact.cells();
+        final long key = address & H3CellId.TRIE_ORDER_MASK;
+        int lo = 0;
+        int hi = cells.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (rangeStart(cells[mid]) <= key) {
+                found = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return found >= 0 && H3CellId.resolution(address) >= compact.minResolutions()[found] && H3CellId.isWithin(address, cells[found], H3CellId.resolution(cells[found]));
+    }
+
+    /**
+     * Same as {@link #forEachWithin(long[], BiConsumer)}
+     */
+    public final void forEachWithin(final Collection<? extends H3CellId<?>> cells, final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        final long[] addresses = new long[cells.size()];
+        int i = 0;
+        for (H3CellId<?> cell : cells) {
+            addresses[i++] = cell.getAddress();
+        }
+        forEachWithin(addresses, consumer);
+    }
+
+    /**
+     * Disjoint cells sorted in trie order, keys within `cells[i]` are only the ones of `minResolutions[i]` or finer
+     */
+    record CompactCells(long[] cells, int[] minResolutions) {}
+
+    /**
+     * Same as H3 `compactCells`, but also accepts overlapping cells: sorts cells in trie order dropping the ones
+     * within other cells and replaces complete groups of 7 siblings with their parent, so a query visits a single
+     * slot instead of 7. A cell covers a contiguous range of the trie order from its first child (all cells below its
+     * resolution are 0) to its own address (unused cells are 7), so cells sorted by the start of their ranges,
+     * coarser first, are either nested in one of the previous ones or disjoint with all of them. Siblings of disjoint
+     * sorted cells come in a row, so they are collapsed on a stack, a parent may complete a group of its own
+     * siblings in turn. Children of pentagons come in groups of 6, so they are kept as is.
+     *
+     * Keys of the parent's own resolution are within the parent, but in none of its children, so every cell carries
+     * the resolution of the cells it stands for: keys coarser than that are not within it. Siblings standing for cells
+     * of different resolutions are not collapsed, as the parent would need different bounds for different children.
+     */
+    static CompactCells compactCells(final long[] cells) {
+        final long[] sorted = Arrays
+                .stream(cells)
+                .boxed()
+                .sorted(Comparator
+                        .<Long>comparingLong(SpatialConcurrentTrieMap::rangeStart)
+                        .thenComparing(Comparator.<Long>comparingLong(c -> c & H3CellId.TRIE_ORDER_MASK).reversed()))
+                .mapToLong(Long::longValue)
+                .toArray();
+        final int[] minResolutions = new int[sorted.length];
+        int len = 0;
+        long last = -1;
+        for (long cell : sorted) {
+            final long end = cell & H3CellId.TRIE_ORDER_MASK;
+            if (end > last) {
+                minResolutions[len] = H3CellId.resolution(cell);
+                sorted[len++] = cell;
+                last = end;
+                while (len >= 7 && isSiblingGroup(sorted, minResolutions, len - 7)) {
+                    len -= 6;
+                    sorted[len - 1] = parent(sorted[len - 1]);
+                }
+            }
+        }
+        return new CompactCells(Arrays.copyOf(sorted, len), Arrays.copyOf(minResolutions, len));
+    }
+
+    // checks whether 7 cells starting at `from` are all the children of a single parent standing for cells of the same
+    // resolution
+    private static boolean isSiblingGroup(final long[] cells, final int[] minResolutions, final int from) {
+        final int resolution = H3CellId.resolution(cells[from]);
+        if (resolution == 0) {
+            return false;
+        }
+        final long first = cells[from];
+        final long mask = H3CellId.TRIE_ORDER_MASK & -(1L << (3 * (16 - resolution)));
+        for (int i = from + 1; i < from + 7; i++) {
+            if (H3CellId.resolution(cells[i]) != resolution || minResolutions[i] != minResolutions[from] || ((cells[i] ^ first) & mask) != 0) {
+                return false;
+            }
+        }
+        // cells are distinct, so 7 of them sharing a parent are all of its children
+        return true;
+    }
+
+    private static long parent(final long cell) {
+        final int resolution = H3CellId.resolution(cell);
+        return (cell & ~(0xFL << 52)) | ((long) (resolution - 1) << 52) | (7L << (45 - 3 * resolution));
+    }
+
+    private static long rangeStart(final long cell) {
+        return cell & H3CellId.TRIE_ORDER_MASK & -(1L << (3 * (15 - H3CellId.resolution(cell))));
+    }
+
+    /**
+     * Passes every entry of a read-only snapshot of this map to the consumer without creating an iterator or entries
+     */
+    @Override
+    public void forEach(final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        if (!isReadOnly()) {
+            readOnlySnapshot().forEach(consumer);
+        }
+        else {
+            readRoot().forEachInternal(consumer, this);
+        }
+    }
+
+    /**
+     * Same as {@link #forEach(BiConsumer)}, entries are passed to the visitor as raw addresses
+     */
+    public final void forEachCell(final CellVisitor<T, V> visitor) {
+        forEach((k, v) -> visitor.accept(k.getAddress(), k.getBusinessEntityId(), v));
+    }
+
+    /**
+     * Passes every entry within a cell to the consumer, visiting subtrees of a read-only snapshot in parallel in the
+     * given pool. The descent to the cell is the same as in {@link #forEachWithin(H3CellId, BiConsumer)}, subtrees
+     * below it are visited by tasks of the pool, and subtrees smaller than {@link ForEachTask#THRESHOLD} entries are
+     * visited sequentially. The consumer is called concurrently from the calling thread and threads of the pool and in
+     * no particular order.
+     */
+    public final void forEachWithin(final H3CellId<T> cell, final ForkJoinPool pool, final BiConsumer<? super H3CellId<T>, ? super V> consumer) {
+        if (!isReadOnly()) {
+            readOnlySnapshot().forEachWithin(cell, pool, consumer);
+        }
+        else {
+            final List<ForEachTask<T, V>> tasks = new ArrayList<>();
+            final int forkUntil = cell.getResolution() + ForEachTask.FORK_DEPTH;
+            readRoot().forEachWithinInternal(cell.getAddress(), cell.getResolution(), consumer, wrapper -> tasks.add(new ForEachTask<>(wrapper, this, consumer, forkUntil)), this);
+            tasks.forEach(pool::execute);
+            tasks.forEach(ForEachTask::join);
+        }
+    }
+
+    /**
+     * Counts entries within a cell, i.e. entries of the same or finer resolution sharing all cells with it. Unlike
+     * `subTree(cell).size()` this neither creates a map nor walks the whole subtree: sizes of subtrees are cached in
+     * the nodes of a read-only snapshot, so only the path to the cell is visited once they are computed. When called
+     * on a writable map, a new read-only snapshot is taken per call, so callers counting many cells should take a
+     * snapshot once and count within it.
+     */
+    public final int countWithin(final H3CellId<T> cell) {
+        return countWithin(cell.getAddress(), cell.getResolution());
+    }
+
+    /**
+     * Same as {@link #countWithin(H3CellId)} for a cell of a given resolution containing the address
+     */
+    public final int countWithin(final long address, final int resolution) {
+        if (resolution < 0 || resolution > H3CellId.resolution(address)) {
+            throw new IllegalArgumentException("Cannot count within resolution " + resolution + " of cell with resolution " + H3CellId.resolution(address));
+        }
+        if (!isReadOnly()) {
+            return readOnlySnapshot().countWithin(address, resolution);
+        }
+        else {
+            return readRoot().countWithinInternal(address, resolution, this);
+        }
+    }
+
+    /**
+     * Aggregates values of entries within a cell, e.g. counts entries matching a condition or finds the least value
+     * (see {@link Aggregator}). Like sizes, aggregates of subtrees are memoized in the nodes of a read-only snapshot,
+     * so once they are computed only the path to the cell is visited, and nodes left unchanged by later updates keep
+     * them in later snapshots. Aggregates are memoized per aggregator instance for a few aggregators at once, so the
+     * same instances should be passed every time. When called on a writable map, a new read-only snapshot is taken per
+     * call.
+     */
+    public final <A> A aggregateWithin(final H3CellId<T> cell, final Aggregator<? super V, A> aggregator) {
+        return aggregateWithin(cell.getAddress(), cell.getResolution(), aggregator);
+    }
+
+    /**
+     * Same as {@link #aggregateWithin(H3CellId, Aggregator)} for a cell of a given resolution containing the address
+     */
+    public final <A> A aggregateWithin(final long address, final int resolution, final Aggregator<? super V, A> aggregator) {
+        if (resolution < 0 || resolution > H3CellId.resolution(address)) {
+            throw new IllegalArgumentException("Cannot aggregate within resolution " + resolution + " of cell with resolution " + H3CellId.resolution(address));
+        }
+        if (!isReadOnly()) {
+            return readOnlySnapshot().aggregateWithin(address, resolution, aggregator);
+        }
+        else {
+            return readRoot().aggregateWithinInternal(address, resolution, aggregator, this);
+        }
+    }
+
+    /**
+     * Builds a density map of a cell: passes every non-empty cell of `cellResolution` within a cell of `resolution`
+     * containing the address to the visitor together with the number of entries within it, in trie order. Entries
+     * coarser than `cellResolution` are not within any of the cells, so they are not counted. As in
+     * {@link #countWithin(long, int)}, sizes of subtrees cached in a read-only snapshot are used, so the trie is only
+     * descended down to `cellResolution` and the cost depends on the number of cells rather than entries. When called
+     * on a writable map, a new read-only snapshot is taken per call.
+     */
+    public final void countCells(final long address, final int resolution, final int cellResolution, final CellCountVisitor visitor) {
+        if (resolution < 0 || resolution > H3CellId.resolution(address)) {
+            throw new IllegalArgumentException("Cannot count within resolution " + resolution + " of cell with resolution " + H3CellId.resolution(address));
+        }
+        if (cellResolution < resolution || cellResolution >= H3CellId.MAX_DEPTH) {
+            throw new IllegalArgumentException("Cannot count cells of resolution " + cellResolution + " within resolution " + resolution);
+        }
+        if (!isReadOnly()) {
+            readOnlySnapshot().countCells(address, resolution, cellResolution, visitor);
+        }
+        else {
+            final CellCounts counts = new CellCounts(visitor);
+            readRoot().countCellsInternal(0, address, resolution, cellResolution, counts, this);
+            counts.flush();
+        }
+    }
+
+    // a cell split into several subtrees is reported once per subtree in a row, so its counts are summed up here
+    static final class CellCounts implements CellCountVisitor {
+
+        private final CellCountVisitor visitor;
+        private long address = -1;
+        private int count = 0;
+
+        CellCounts(final CellCountVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void accept(final long address, final int count) {
+            if (count == 0) {
+                return;
+            }
+            if (address != this.address) {
+                flush();
+                this.address = address;
+            }
+            this.count += count;
+        }
+
+        void flush() {
+            if (count > 0) {
+                visitor.accept(address, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Builds a new map out of a stream of entries in a single pass. Entries are expected to be sorted by address
+     * (they are sorted here otherwise), so the trie is constructed bottom-up without any intermediate node copies and
+     * without paying for a CAS per entry. If a key occurs several times, the last value wins.
+     *
+     * @param parallel build subtrees of different base cells in parallel
+     * @param stride number of resolutions indexed by a single BranchNode, see {@link #SpatialConcurrentTrieMap(int)}
+     */
+    public static <T, V> SpatialConcurrentTrieMap<T, V> bulkLoad(final Iterator<? extends Entry<H3CellId<T>, V>> entries, final boolean parallel, final int stride) {
+        checkStride(stride);
+        final var buffer = new ArrayList<Entry<H3CellId<T>, V>>();
+        while (entries.hasNext()) {
+            buffer.add(entries.next());
+        }
+        final H3CellId<T>[] keys = new H3CellId[buffer.size()];
+        final V[] values = (V[]) new Object[buffer.size()];
+        final int len = sortInTrieOrder(buffer, keys, values);
+        final var result = new SpatialConcurrentTrieMap<T, V>(NodeWrapper.newRootNode(Arrays.copyOf(keys, len), Arrays.copyOf(values, len), parallel, stride), false, stride);
+        result.sizeChanged(len);
+        return result;
+    }
+
+    public static <T, V> SpatialConcurrentTrieMap<T, V> bulkLoad(final Iterator<? extends Entry<H3CellId<T>, V>> entries, final boolean parallel) {
+        return bulkLoad(entries, parallel, DEFAULT_STRIDE);
+    }
+
+    public static <T, V> SpatialConcurrentTrieMap<T, V> bulkLoad(final Iterator<? extends Entry<H3CellId<T>, V>> entries) {
+        return bulkLoad(entries, false);
+    }
+
+    private static <T, V> NodeWrapper<T, V> buildRoot(final List<Entry<H3CellId<T>, V>> entries, final boolean parallel, final int stride) {
+        final H3CellId<T>[] keys = new H3CellId[entries.size()];
+        final V[] values = (V[]) new Object[entries.size()];
+        final int len = sortInTrieOrder(entries, keys, values);
+        return NodeWrapper.newRootNode(Arrays.copyOf(keys, len), Arrays.copyOf(values, len), parallel, stride);
+    }
+
+    /**
+     * Sorts entries in trie order and splits them into arrays of keys and values. If a key occurs several times, the
+     * last value wins.
+     *
+     * @return a number of unique keys
+     */
+    private static <T, V> int sortInTrieOrder(final List<Entry<H3CellId<T>, V>> entries, final H3CellId<T>[] keys, final V[] values) {
+        // stable and linear for an already sorted input, equal keys stay in their original order
+        entries.sort((x, y) -> H3CellId.compareTrieOrder(x.getKey().getAddress(), y.getKey().getAddress()));
+        final int size = entries.size();
+        int len = 0;
+        int i = 0;
+        while (i < size) {
+            final long address = entries.get(i).getKey().getAddress();
+            int j = i + 1;
+            while (j < size && entries.get(j).getKey().getAddress() == address) {
+                j += 1;
+            }
+            if (j - i == 1) {
+                keys[len] = entries.get(i).getKey();
+                values[len] = entries.get(i).getValue();
+                len += 1;
+            }
+            else {
+                // duplicates may only be found among keys sharing an address
+                final var unique = new LinkedHashMap<H3CellId<T>, V>();
+                for (int k = i; k < j; k++) {
+                    unique.put(entries.get(k).getKey(), entries.get(k).getValue());
+                }
+                for (Entry<H3CellId<T>, V> e : unique.entrySet()) {
+                    keys[len] = e.getKey();
+                    values[len] = e.getValue();
+                    len += 1;
+                }
+            }
+            i = j;
+        }
+        return len;
+    }
+
     /**
      * Returns a snapshot of this TrieMap. This operation is lock-free and
      * linearizable.
@@ -218,7 +725,12 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
             NodeWrapper<T, V> r = getRootRDCSS();
             final BaseNode<T, V> expmain = r.getGCAS(this);
             if (swapRootRDCSS(r, expmain, r.copyToGen(new Gen(), this))) {
-                return new SpatialConcurrentTrieMap<>(r.copyToGen(new Gen(), this), readOnly);
+                final var result = new SpatialConcurrentTrieMap<T, V>(r.copyToGen(new Gen(), this), readOnly, stride);
+                if (!readOnly) {
+                    // carry the counter over instead of counting the frozen root, exact when no update is in flight
+                    result.sizeCounter.add(sizeCounter.sum());
+                }
+                return result;
             }
         }
     }
@@ -245,7 +757,7 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
             NodeWrapper<T, V> r = getRootRDCSS();
             BaseNode<T, V> expmain = r.getGCAS(this);
             if (swapRootRDCSS(r, expmain, r.copyToGen(new Gen(), this))) {
-                return new SpatialConcurrentTrieMap<>(r, true);
+                return new SpatialConcurrentTrieMap<>(r, true, stride);
             }
         }
     }
@@ -269,6 +781,15 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
         }
     }
 
+    /**
+     * Returns a spliterator over a read-only snapshot of this map, that splits along the nodes of the trie and
+     * knows the exact size of every part, so parallel streams over the entries scale with the number of cores.
+     * Entries are not updatable, as in {@link #readOnlyIterator()}.
+     */
+    public Spliterator<Entry<H3CellId<T>, V>> spliterator() {
+        return new TrieMapSpliterator<>(readOnlySnapshot());
+    }
+
     /***
      * Return an iterator over a TrieMap.
      * This is a read-only iterator.
@@ -328,16 +849,47 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
         return insertWithConditionByHash(key, value, (V) NodeWrapper.KEY_ABSENT);
     }
 
+    /**
+     * Returns the number of entries. A read-only snapshot knows its exact size, sizes of subtrees are cached in its
+     * nodes. A writable map returns {@link #mappingCount()} instead of taking a snapshot and counting its entries,
+     * so it is cheap, but only exact while no update is in flight. Use `readOnlySnapshot().size()` for an exact
+     * size of a map being updated.
+     */
     @Override
     public int size() {
         if (!isReadOnly()) {
-            return readOnlySnapshot().size();
+            return (int) Math.min(mappingCount(), Integer.MAX_VALUE);
         }
         else {
             return cachedSize();
         }
     }
 
+    /**
+     * Returns the number of entries maintained by a striped counter: every committed update adds the number of
+     * entries it has inserted and subtracts the number of entries it has removed. Same as in
+     * {@link java.util.concurrent.ConcurrentHashMap#mappingCount()}, updates in flight may or may not be reflected,
+     * so the value is an estimate while the map is being updated. {@link #snapshot()} and {@link #clear()} carry the
+     * counter over rather than count the entries, so an update racing with them may leave the count off by the
+     * entries it has changed until the map is cleared again.
+     */
+    public long mappingCount() {
+        if (isReadOnly()) {
+            return cachedSize();
+        }
+        else {
+            return Math.max(sizeCounter.sum(), 0);
+        }
+    }
+
+    /**
+     * Reports entries added to the map (or removed, if negative) by a committed update, see {@link #mappingCount()}.
+     * Called by the nodes, not meant to be called otherwise
+     */
+    public final void sizeChanged(final int added) {
+        sizeCounter.add(added);
+    }
+
     protected Optional<V> putOpt(H3CellId<T> key, V value) {
         assertWritable();
         return insertWithConditionByHash(key, value, null);
@@ -373,11 +925,184 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
         return removeIfValueExists((H3CellId<T>) key, (V) value).isPresent();
     }
 
+    /**
+     * Atomically moves a value from one key to another, replacing the value of `to` if there is one. This operation
+     * is linearizable: no reader or snapshot ever sees the value under both keys or under none of them.
+     *
+     * Most moves are short, so both keys are expected to end up in the same node: the old leaf is dropped and the new
+     * one is put into that node with a single GCAS, which only conflicts with writers updating the very same node.
+     *
+     * Otherwise the move computes new main nodes of both nodes it updates and of the ones it creates below them, and
+     * installs them at once with a descriptor proposed in every node involved. Any thread that reads a node with a
+     * pending descriptor helps to install the rest of it instead of waiting, and the move is committed only if none
+     * of the nodes has changed in between. Both kinds of moves are lock-free: a move is retried only because another
+     * update of the same nodes has succeeded, or because a snapshot has been taken. A far move allocates a descriptor
+     * and updates two nodes instead of one, so expect it to be a few times slower than a local one.
+     *
+     * @return the moved value or null if there was no `from` key, in which case nothing is changed
+     */
+    public final V move(final H3CellId<T> from, final H3CellId<T> to) {
+        assertWritable();
+        if (from.equals(to)) {
+            return lookup(from);
+        }
+        while (true) {
+            final NodeWrapper<T, V> r = getRootRDCSS();
+            Object res = r.moveInternal(from, to, null, r.gen, this);
+            if (res == NodeWrapper.NOT_LOCAL) {
+                res = r.moveAllInternal(new H3CellId[] { from }, new H3CellId[] { to }, r.gen, this);
+                if (res != NodeWrapper.RESTART) {
+                    return (V) ((Object[]) res)[0];
+                }
+            }
+            else
+            if (res != NodeWrapper.RESTART) {
+                return (V) res;
+            }
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #move}: all the moves are applied atomically as a whole, as if all the values were
+     * taken out first and then put under the new keys, a later move wins if several of them have the same new key,
+     * and a key listed several times is moved by its first occurrence only. Unless there is a single move, the batch
+     * is installed the way a far {@link #move} is, with a single descriptor covering every node the batch reads or
+     * updates, so absent keys are validated too. Insertions are done in a single descent (see {@link #putAll(Map)}),
+     * so moves within the same area share the rewritten nodes. A null value is the same as no value, as in
+     * {@link #get(Object)}.
+     *
+     * @param from keys to move values from
+     * @param to new keys, `to[i]` is the new key of `from[i]`
+     * @return moves that took place, i.e. indices of the `from` keys that were present
+     */
+    public final BitSet moveAll(final List<? extends H3CellId<T>> from, final List<? extends H3CellId<T>> to) {
+        assertWritable();
+        if (from.size() != to.size()) {
+            throw new IllegalArgumentException("Expected a new key for every moved key, got " + to.size() + " for " + from.size());
+        }
+        if (from.size() == 1) {
+            // a single move is likely to take the fast path
+            final BitSet moved = new BitSet(1);
+            moved.set(0, move(from.get(0), to.get(0)) != null);
+            return moved;
+        }
+        final H3CellId<T>[] fromKeys = from.toArray(new H3CellId[0]);
+        final H3CellId<T>[] toKeys = to.toArray(new H3CellId[0]);
+        while (true) {
+            final NodeWrapper<T, V> r = getRootRDCSS();
+            final Object res = r.moveAllInternal(fromKeys, toKeys, r.gen, this);
+            if (res != NodeWrapper.RESTART) {
+                final Object[] values = (Object[]) res;
+                final BitSet moved = new BitSet(values.length);
+                for (int i = 0; i < values.length; i++) {
+                    moved.set(i, values[i] != null);
+                }
+                return moved;
+            }
+        }
+    }
+
     @Override
     public boolean containsKey(Object key) {
         return lookup((H3CellId<T>) key) != null;
     }
 
+    /**
+     * Looks up a value by a raw cell address and a business entity id. Unlike {@link #get(Object)} this method does
+     * not require an {@link H3CellId} instance, so there is nothing to allocate and validate on the read path
+     * @param address H3 cell address in a form of a long number
+     * @param entityId a unique identifier of a business entity
+     * @return a value or null if there is no such entry
+     */
+    public V get(long address, T entityId) {
+        return lookupByAddress(address, entityId);
+    }
+
+    /**
+     * Allocation-free counterpart of {@link #containsKey(Object)}
+     */
+    public boolean containsKey(long address, T entityId) {
+        return lookupByAddress(address, entityId) != null;
+    }
+
+    /**
+     * Allocation-free counterpart of {@link #remove(Object)}
+     */
+    public V remove(long address, T entityId) {
+        assertWritable();
+        return removeByAddress(address, entityId, null).orElse(null);
+    }
+
+    /**
+     * Inserts all entries of a given map. Entries are sorted in trie order first and inserted in a single descent, so
+     * every node on a path shared by several entries is rewritten once per batch rather than once per entry. Each
+     * entry is inserted atomically and exactly once, the batch as a whole is not atomic: if the descent is restarted,
+     * only the entries not inserted yet are inserted again, so concurrent updates of the inserted keys are kept
+     */
+    @Override
+    public void putAll(Map<? extends H3CellId<T>, ? extends V> m) {
+        assertWritable();
+        if (m.isEmpty()) {
+            return;
+        }
+        final var entries = new ArrayList<Entry<H3CellId<T>, V>>(m.size());
+        for (Entry<? extends H3CellId<T>, ? extends V> e : m.entrySet()) {
+            entries.add(new SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+        }
+        final H3CellId<T>[] keys = new H3CellId[entries.size()];
+        final V[] values = (V[]) new Object[entries.size()];
+        int len = sortInTrieOrder(entries, keys, values);
+        final BitSet done = new BitSet(len);
+        while (true) {
+            NodeWrapper<T, V> r = getRootRDCSS();
+            if (r.insertAllInternal(keys, values, 0, len, null, r.gen, done, this)) {
+                return;
+            }
+            len = retainPending(keys, values, len, done);
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #remove(Object)}. Same as {@link #putAll(Map)}, keys are removed in a single descent
+     * and each key is removed atomically and exactly once, the batch as a whole is not atomic
+     */
+    public void removeAll(Collection<? extends H3CellId<T>> keys) {
+        assertWritable();
+        if (keys.isEmpty()) {
+            return;
+        }
+        final H3CellId<T>[] sorted = keys.toArray(new H3CellId[0]);
+        Arrays.sort(sorted, (x, y) -> H3CellId.compareTrieOrder(x.getAddress(), y.getAddress()));
+        int len = sorted.length;
+        final BitSet done = new BitSet(len);
+        while (true) {
+            NodeWrapper<T, V> r = getRootRDCSS();
+            if (r.removeAllInternal(sorted, 0, len, null, r.gen, done, this)) {
+                return;
+            }
+            len = retainPending(sorted, null, len, done);
+        }
+    }
+
+    /**
+     * Moves the keys of a restarted batch that are not marked as done to the front of the arrays, keeping them in trie
+     * order, and clears the marks
+     *
+     * @return a number of keys left to apply
+     */
+    private static <T, V> int retainPending(final H3CellId<T>[] keys, final V[] values, final int len, final BitSet done) {
+        int pending = 0;
+        for (int i = done.nextClearBit(0); i < len; i = done.nextClearBit(i + 1)) {
+            keys[pending] = keys[i];
+            if (values != null) {
+                values[pending] = values[i];
+            }
+            pending += 1;
+        }
+        done.clear();
+        return pending;
+    }
+
     @Override
     public Set<Entry<H3CellId<T>, V>> entrySet() {
         return getEntrySet();
@@ -388,6 +1113,8 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
         while (true) {
             NodeWrapper<T, V> r = getRootRDCSS();
             if (swapRootRDCSS(r, r.getGCAS(this), NodeWrapper.newRootNode())) {
+                // drop what the counter holds instead of counting the old root, exact when no update is in flight
+                sizeCounter.add(-sizeCounter.sum());
                 return;
             }
         }
@@ -398,23 +1125,29 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
 
     private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
         inputStream.defaultReadObject();
-        this.root = NodeWrapper.newRootNode();
         this.entrySet = new EntrySet();
+        this.sizeCounter = new LongAdder();
 
         final boolean ro = inputStream.readBoolean();
+        final int st = checkStride(inputStream.readInt());
         final int size = inputStream.readInt();
+        final var entries = new ArrayList<Entry<H3CellId<T>, V>>(size);
         for (int i = 0; i < size; ++i) {
             final var key = (H3CellId<T>) inputStream.readObject();
             final var value = (V) inputStream.readObject();
-            add(key, value);
+            entries.add(new SimpleImmutableEntry<>(key, value));
         }
+        // entries are written in the iteration order, so they are already sorted
+        this.root = buildRoot(entries, false, st);
+        sizeChanged(size);
 
-        // Propagate the read-only bit
+        // Propagate the read-only bit and the stride
         try {
             READONLY_FIELD.setBoolean(this, ro);
+            STRIDE_FIELD.setInt(this, st);
         }
         catch (IllegalAccessException e) {
-            throw new IOException("Failed to set read-only flag", e);
+            throw new IOException("Failed to set read-only flag or stride", e);
         }
     }
 
@@ -423,6 +1156,7 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
 
         final Map<H3CellId<T>, V> ro = readOnlySnapshot();
         outputStream.writeBoolean(isReadOnly());
+        outputStream.writeInt(stride);
         outputStream.writeInt(ro.size());
 
         for (Entry<H3CellId<T>, V> e : ro.entrySet()) {
@@ -442,6 +1176,11 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
             return SpatialConcurrentTrieMap.this.iterator();
         }
 
+        @Override
+        public Spliterator<Entry<H3CellId<T>, V>> spliterator() {
+            return SpatialConcurrentTrieMap.this.spliterator();
+        }
+
         @Override
         public boolean contains(final Object o) {
             if (!(o instanceof Map.Entry)) {
@@ -465,11 +1204,7 @@ public class SpatialConcurrentTrieMap<T, V> extends AbstractMap<H3CellId<T>, V>
 
         @Override
         public int size() {
-            int size = 0;
-            for (final Iterator<?> i = iterator(); i.hasNext(); i.next()) {
-                size++;
-            }
-            return size;
+            return SpatialConcurrentTrieMap.this.size();
         }
 
         @Override
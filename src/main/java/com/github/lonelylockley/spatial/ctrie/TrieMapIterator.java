@@ -99,7 +99,7 @@ public class TrieMapIterator <T, V> implements Iterator<Map.Entry<H3CellId<T>, V
         }
         else
         if (m instanceof CollisionAwareNode<T, V> can) {
-            subiter = can.listmap.iterator();
+            subiter = can.bucket.iterator();
             checkSubiter();
         }
         else
@@ -0,0 +1,127 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.ctrie.nodes.BaseNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.BranchNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.LeafNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.NodeWrapper;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over a read-only snapshot. It covers a range of slots of a single BranchNode and splits along the
+ * slot boundaries: the root is split per base cell first, a range that is narrowed down to a single subtree is
+ * replaced with the slots of its node, i.e. split per cells of the next resolution. Subtree sizes are cached in the
+ * nodes of a read-only snapshot, so the size of every part is exact and ranges are split into halves by size rather
+ * than by the number of slots.
+ */
+public class TrieMapSpliterator<T, V> implements Spliterator<Map.Entry<H3CellId<T>, V>> {
+
+    private final SpatialConcurrentTrieMap<T, V> ct;
+    private BaseNode<T, V>[] array;
+    private int index;
+    private int fence;
+    private long remaining;
+    private Iterator<Map.Entry<H3CellId<T>, V>> subiter = null;
+
+    TrieMapSpliterator(final SpatialConcurrentTrieMap<T, V> ct) {
+        this(ct, new BaseNode[] { ct.readRoot() }, 0, 1, -1);
+    }
+
+    private TrieMapSpliterator(final SpatialConcurrentTrieMap<T, V> ct, final BaseNode<T, V>[] array, final int index, final int fence, final long remaining) {
+        assert (ct.isReadOnly());
+        this.ct = ct;
+        this.array = array;
+        this.index = index;
+        this.fence = fence;
+        this.remaining = remaining;
+    }
+
+    private int sizeOf(final BaseNode<T, V> node) {
+        if (node instanceof NodeWrapper<T, V> nw) {
+            return nw.cachedSize(ct);
+        }
+        else {
+            return 1;
+        }
+    }
+
+    // the remaining size is only tracked once it has been computed
+    private void consumed() {
+        if (remaining > 0) {
+            remaining -= 1;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super Map.Entry<H3CellId<T>, V>> action) {
+        while (true) {
+            if (subiter != null && subiter.hasNext()) {
+                action.accept(subiter.next());
+                consumed();
+                return true;
+            }
+            subiter = null;
+            if (index >= fence) {
+                return false;
+            }
+            final BaseNode<T, V> node = array[index];
+            index += 1;
+            if (node instanceof LeafNode<T, V> ln) {
+                action.accept(ln.kvPair());
+                consumed();
+                return true;
+            }
+            else
+            if (node instanceof NodeWrapper<T, V> nw) {
+                subiter = new TrieMapReadOnlyIterator<>(0, new SpatialConcurrentTrieMap<>(nw, true, ct.getStride()));
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Map.Entry<H3CellId<T>, V>> trySplit() {
+        if (subiter != null) {
+            return null; // traversal of a subtree has already started
+        }
+        // descend while the range holds a single subtree
+        while (fence - index == 1 && array[index] instanceof NodeWrapper<T, V> nw && nw.getGCAS(ct) instanceof BranchNode<T, V> cn) {
+            array = cn.array;
+            index = 0;
+            fence = array.length;
+        }
+        if (fence - index < 2) {
+            return null;
+        }
+        final long total = estimateSize();
+        long prefix = sizeOf(array[index]);
+        int mid = index + 1;
+        while (mid < fence - 1 && prefix + sizeOf(array[mid]) <= total / 2) {
+            prefix += sizeOf(array[mid]);
+            mid += 1;
+        }
+        final TrieMapSpliterator<T, V> head = new TrieMapSpliterator<>(ct, array, index, mid, prefix);
+        index = mid;
+        remaining = total - prefix;
+        return head;
+    }
+
+    @Override
+    public long estimateSize() {
+        if (remaining == -1) {
+            long sz = 0;
+            for (int i = index; i < fence; i++) {
+                sz += sizeOf(array[i]);
+            }
+            remaining = sz;
+        }
+        return remaining;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+    }
+}
@@ -1,10 +1,20 @@
 package com.github.lonelylockley.spatial.ctrie.nodes;
 
+import com.github.lonelylockley.spatial.ctrie.Aggregator;
+import com.github.lonelylockley.spatial.ctrie.CollisionBucket;
 import com.github.lonelylockley.spatial.ctrie.Gen;
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
 import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
 
 import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * A multiway node indexing cells of resolution `res` (or base cells at the root). A node may skip several resolutions
+ * above it instead of forming a chain of single-child nodes: every key below such node shares cells of resolutions
+ * `res - skip` to `res - 1`, those are kept in the `prefix`.
+ * A wide node indexes cells of `span` consecutive resolutions at once, i.e. a node of span 2 has up to 49 children
+ * (64 slots, as the unused cell 7 is a valid index for a coarser key), and its children are of resolution `res + span`.
+ */
 public class BranchNode<T, V> extends BaseNode<T, V> {
 
     public final long bitmapLow;
@@ -12,13 +22,118 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
     public final BaseNode<T, V>[] array;
     public final Gen gen;
     public final int res;
+    public final int span;
+    public final int skip;
+    public final long prefix;
+    // aggregates of the subtree memoized for the last aggregators they were computed with, the most recent first,
+    // read-only snapshots only
+    private volatile Memo[] memos = NO_MEMOS;
 
-    public BranchNode(final long bitmapLow, final long bitmapHigh, final BaseNode<T, V>[] array, final Gen gen, final int resolution) {
+    private record Memo(Aggregator<?, ?> aggregator, Object aggregate) {}
+
+    private static final Memo[] NO_MEMOS = new Memo[0];
+    /**
+     * Number of aggregators a node keeps aggregates of, e.g. a count and a minimal price for a heatmap
+     */
+    public static final int MAX_MEMOS = 4;
+
+    public BranchNode(final long bitmapLow, final long bitmapHigh, final BaseNode<T, V>[] array, final Gen gen, final int resolution, final int span, final int skip, final long prefix) {
         this.bitmapLow = bitmapLow;
         this.bitmapHigh = bitmapHigh;
         this.array = array;
         this.gen = gen;
         this.res = resolution;
+        this.span = span;
+        this.skip = skip;
+        this.prefix = prefix;
+    }
+
+    public BranchNode(final long bitmapLow, final long bitmapHigh, final BaseNode<T, V>[] array, final Gen gen, final int resolution) {
+        this(bitmapLow, bitmapHigh, array, gen, resolution, 1, 0, 0);
+    }
+
+    /**
+     * Bits of cells of resolutions from `from` to `to` (exclusive) in an address
+     */
+    static long cellsMask(final int from, final int to) {
+        if (from >= to) {
+            return 0;
+        }
+        else {
+            return ((1L << (3 * (to - from))) - 1) << (48 - 3 * to);
+        }
+    }
+
+    /**
+     * Cells of resolutions from `res` to `res + span` (exclusive) combined into a single index
+     */
+    static int index(final long address, final int res, final int span) {
+        return (int) (address >>> (48 - 3 * (res + span))) & ((1 << (3 * span)) - 1);
+    }
+
+    // index of a slot the address belongs to
+    final int index(final long address) {
+        if (res == 0) {
+            return H3CellId.baseCell(address);
+        }
+        else {
+            return index(address, res, span);
+        }
+    }
+
+    // position of a slot in the array, regardless of whether the slot is occupied or not
+    final int position(final int idx) {
+        final long mask = (1L << idx) - 1;
+        if (idx >= 64) {
+            return Long.bitCount(bitmapLow) + Long.bitCount(bitmapHigh & mask);
+        }
+        else {
+            return Long.bitCount(bitmapLow & mask);
+        }
+    }
+
+    final boolean isOccupied(final int idx) {
+        final long flag = 1L << idx;
+        return ((idx >= 64 ? bitmapHigh : bitmapLow) & flag) != 0;
+    }
+
+    // checks whether the address shares the skipped cells with keys below this node
+    final boolean matches(final long address) {
+        return skip == 0 || (address & cellsMask(res - skip, res)) == prefix;
+    }
+
+    /**
+     * Splits the skipped cells at the first resolution the address differs from the prefix in. Returns a node of that
+     * resolution with a single child, which is a shortened copy of this node, so the caller is free to insert a key
+     * into an empty slot right after. The new node spans up to `stride` resolutions, but never past this one.
+     */
+    final BranchNode<T, V> split(final long address, final Gen gen, final int stride) {
+        final int top = res - skip;
+        final int at = (Long.numberOfLeadingZeros((address ^ prefix) & cellsMask(top, res)) - 16) / 3;
+        final int nspan = Math.min(stride, res - at);
+        final BranchNode<T, V> rest = new BranchNode<>(bitmapLow, bitmapHigh, array, gen, res, span, res - at - nspan, prefix & cellsMask(at + nspan, res));
+        final int idx = index(prefix, at, nspan);
+        return new BranchNode<T, V>(1L << idx, 0, new BaseNode[] { new NodeWrapper<>(rest, gen) }, gen, at, nspan, at - top, prefix & cellsMask(top, at));
+    }
+
+    /**
+     * Returns a copy of this node keeping only the slots that lie within the given cell, which is of a resolution
+     * from `res` to `res + span - 1` (exclusive). Returns null if there are no such slots.
+     */
+    final BranchNode<T, V> filtered(final long address, final int resolution, final Gen gen) {
+        final int rest = 3 * (res + span - 1 - resolution);
+        final int from = (index(address) >>> rest) << rest;
+        final int to = from + (1 << rest);
+        final long bmp = bitmapLow & ((to >= 64 ? -1L : (1L << to) - 1) ^ ((1L << from) - 1));
+        if (bmp == 0) {
+            return null;
+        }
+        else {
+            final int pos = position(from);
+            final BaseNode[] narr = new BaseNode[Long.bitCount(bmp)];
+            System.arraycopy(array, pos, narr, 0, narr.length);
+            return new BranchNode<T, V>(bmp, 0, narr, gen, res, span, skip, prefix);
+        }
     }
 
     // this should only be called from within read-only snapshots
@@ -37,6 +152,22 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
         }
     }
 
+    // total cached size of the slots from `from` to `to` (exclusive), this should only be called from within
+    // read-only snapshots as well
+    final int cachedSize(final int from, final int to, final SpatialConcurrentTrieMap<T, V> instance) {
+        int sz = 0;
+        final int end = position(to);
+        for (int pos = position(from); pos < end; pos++) {
+            if (array[pos] instanceof NodeWrapper<T, V> wrapper) {
+                sz += wrapper.cachedSize(instance);
+            }
+            else {
+                sz += 1;
+            }
+        }
+        return sz;
+    }
+
     // lends itself towards being parallelizable by choosing a random starting offset in the array => if there are
     // concurrent size computations, they start at different positions, so they are more likely to be independent
     private int computeSize(final SpatialConcurrentTrieMap<T, V> ct) {
@@ -58,10 +189,43 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
         return sz;
     }
 
+    // same as cachedSize, but aggregates values instead of counting them. Memos are replaced as a whole, so concurrent
+    // computations may drop each other's memos, but never corrupt them: all of them aggregate the same frozen node
+    final <A> A cachedAggregate(final Aggregator<? super V, A> aggregator, final SpatialConcurrentTrieMap<T, V> instance) {
+        final Memo[] current = memos;
+        for (Memo m : current) {
+            if (m.aggregator() == aggregator) {
+                return (A) m.aggregate();
+            }
+        }
+        final A aggregate = cachedAggregate(0, array.length, aggregator, instance);
+        // the least recently computed one is evicted
+        final Memo[] updated = new Memo[Math.min(current.length + 1, MAX_MEMOS)];
+        updated[0] = new Memo(aggregator, aggregate);
+        System.arraycopy(current, 0, updated, 1, updated.length - 1);
+        memos = updated;
+        return aggregate;
+    }
+
+    // aggregate of the slots at positions from `from` to `to` (exclusive) in trie order
+    final <A> A cachedAggregate(final int from, final int to, final Aggregator<? super V, A> aggregator, final SpatialConcurrentTrieMap<T, V> instance) {
+        A aggregate = aggregator.identity();
+        for (int pos = from; pos < to; pos++) {
+            if (array[pos] instanceof LeafNode<T, V> sn) {
+                aggregate = aggregator.combine(aggregate, aggregator.of(sn.value));
+            }
+            else
+            if (array[pos] instanceof NodeWrapper<T, V> wrapper) {
+                aggregate = aggregator.combine(aggregate, wrapper.cachedAggregate(aggregator, instance));
+            }
+        }
+        return aggregate;
+    }
+
     protected BranchNode<T, V> updatedAt(int pos, final BaseNode<T, V> nn, final Gen gen) {
         BaseNode[] narr = array.clone();
         narr[pos] = nn;
-        return new BranchNode<T, V>(bitmapLow, bitmapHigh, narr, gen, res);
+        return new BranchNode<T, V>(bitmapLow, bitmapHigh, narr, gen, res, span, skip, prefix);
     }
 
     protected BranchNode<T, V> removedAt(int idx, int pos, long flag, final Gen gen) {
@@ -71,10 +235,10 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
         System.arraycopy (arr, 0, narr, 0, pos);
         System.arraycopy (arr, pos + 1, narr, pos, len - pos - 1);
         if (idx >= 64) {
-            return new BranchNode<T, V>(bitmapLow, bitmapHigh ^ flag, narr, gen, res);
+            return new BranchNode<T, V>(bitmapLow, bitmapHigh ^ flag, narr, gen, res, span, skip, prefix);
         }
         else {
-            return new BranchNode<T, V>(bitmapLow ^ flag, bitmapHigh, narr, gen, res);
+            return new BranchNode<T, V>(bitmapLow ^ flag, bitmapHigh, narr, gen, res, span, skip, prefix);
         }
     }
 
@@ -85,10 +249,10 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
         narr[pos] = nn;
         System.arraycopy(array, pos, narr, pos + 1, len - pos);
         if (idx >= 64) {
-            return new BranchNode<T, V>(bitmapLow, bitmapHigh | flag, narr, gen, res);
+            return new BranchNode<T, V>(bitmapLow, bitmapHigh | flag, narr, gen, res, span, skip, prefix);
         }
         else {
-            return new BranchNode<T, V>(bitmapLow | flag, bitmapHigh, narr, gen, res);
+            return new BranchNode<T, V>(bitmapLow | flag, bitmapHigh, narr, gen, res, span, skip, prefix);
         }
     }
 
@@ -111,10 +275,10 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
             }
             i += 1;
         }
-        return new BranchNode<T, V>(bitmapLow, bitmapHigh, narr, ngen, res);
+        return new BranchNode<T, V>(bitmapLow, bitmapHigh, narr, ngen, res, span, skip, prefix);
     }
 
-    protected BranchNode<T, V> toCompressedInternal(final SpatialConcurrentTrieMap<T, V> instance, int offset, Gen gen) {
+    protected BranchNode<T, V> toCompressedInternal(final SpatialConcurrentTrieMap<T, V> instance, Gen gen) {
         int i = 0;
         BaseNode[] arr = array;
         BaseNode[] tmparray = new BaseNode[arr.length];
@@ -132,15 +296,15 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
             i += 1;
         }
 
-        return new BranchNode<T, V>(bitmapLow, bitmapHigh, tmparray, gen, res);
+        return new BranchNode<T, V>(bitmapLow, bitmapHigh, tmparray, gen, res, span, skip, prefix);
     }
 
     // - if the branching factor is 1 for this CNode, and the child is a tombed LeafNode, returns its tombed version
     // - otherwise, if there is at least one non-null node below, returns the version of this node with at least some null-inodes
     // removed (those existing when the op began)
     // - if there are only null-i-nodes below, returns null
-    protected BaseNode<T, V> toCompressed(final SpatialConcurrentTrieMap<T, V> instance, int offset, Gen gen) {
-        return toCompressedInternal(instance, offset, gen).toContracted();
+    protected BaseNode<T, V> toCompressed(final SpatialConcurrentTrieMap<T, V> instance, Gen gen) {
+        return toCompressedInternal(instance, gen).toContracted();
     }
 
     private BaseNode<T, V> resurrect(final NodeWrapper<T, V> inode, final BaseNode<T, V> inodemain) {
@@ -167,29 +331,134 @@ public class BranchNode<T, V> extends BaseNode<T, V> {
         }
     }
 
-    public static <T, V> BaseNode<T, V> dual(final LeafNode<T, V> x, final LeafNode<T, V> y, int offset, Gen gen, int resolution) {
+    /**
+     * Creates a node holding two leaves that collide at the given resolution. Resolutions where cells of both keys
+     * are equal are skipped rather than nested. If keys are equal up to the resolution of one of them, they are kept
+     * in a collision list. A node with two leaves spans up to `stride` resolutions.
+     */
+    public static <T, V> BaseNode<T, V> dual(final LeafNode<T, V> x, final LeafNode<T, V> y, Gen gen, int resolution, int stride) {
         final var maxResolution = Math.min(x.key.getResolution(), y.key.getResolution());
-        if (resolution <= maxResolution) {
-            long xidx = (x.key.getAddress() >>> (64 - offset - 3)) & 0x7;
-            long yidx = (y.key.getAddress() >>> (64 - offset - 3)) & 0x7;
-            int bmp = (1 << xidx) | (1 << yidx);
-
-            if (xidx == yidx) {
-                NodeWrapper<T, V> subinode = new NodeWrapper<>(gen);// (TrieMap.inodeupdater)
-                subinode.wrapped = dual(x, y, offset + 3, gen, resolution + 1);
-                return new BranchNode<T, V>(bmp, 0, new BaseNode[] { subinode }, gen, resolution);
+        int at = resolution;
+        while (at <= maxResolution && H3CellId.cell(x.hash, at) == H3CellId.cell(y.hash, at)) {
+            at += 1;
+        }
+        if (at > maxResolution && at == resolution) {
+            return new CollisionAwareNode<>(x.key, x.value, y.key, y.value, resolution);
+        }
+        else
+        if (at > maxResolution) {
+            final int last = at - 1;
+            final NodeWrapper<T, V> subinode = new NodeWrapper<>(gen);
+            subinode.wrapped = new CollisionAwareNode<>(x.key, x.value, y.key, y.value, at);
+            return new BranchNode<T, V>(1L << H3CellId.cell(x.hash, last), 0, new BaseNode[] { subinode }, gen, last, 1, last - resolution, x.hash & cellsMask(resolution, last));
+        }
+        else {
+            final int span = Math.min(stride, H3CellId.MAX_DEPTH - at);
+            final int xidx = index(x.hash, at, span);
+            final int yidx = index(y.hash, at, span);
+            final long bmp = (1L << xidx) | (1L << yidx);
+            final long pfx = x.hash & cellsMask(resolution, at);
+            if (xidx < yidx) {
+                return new BranchNode<T, V>(bmp, 0, new BaseNode[]{new LeafNode<>(x.key, x.value, x.hash, at + span), new LeafNode<>(y.key, y.value, y.hash, at + span)}, gen, at, span, at - resolution, pfx);
             }
             else {
-                if (xidx < yidx) {
-                    return new BranchNode<T, V>(bmp, 0, new BaseNode[]{new LeafNode<>(x.key, x.value, x.hash, resolution), new LeafNode<>(y.key, y.value, y.hash, resolution)}, gen, resolution);
+                return new BranchNode<T, V>(bmp, 0, new BaseNode[]{new LeafNode<>(y.key, y.value, y.hash, at + span), new LeafNode<>(x.key, x.value, x.hash, at + span)}, gen, at, span, at - resolution, pfx);
+            }
+        }
+    }
+
+    /**
+     * Bulk counterpart of {@link #dual}. Builds a node for a range of keys sorted in trie order (base cell, then cells
+     * of every resolution), that is going to be placed under a BranchNode with children of `resolution`. A single
+     * entry becomes a LeafNode, several entries become a wrapped subtree split by cells. Unlike {@link #dual}, keys of a coarser
+     * resolution are split by their unused cells (7) instead of being merged into a collision list, so only keys
+     * sharing all of their cells end up in a CollisionAwareNode.
+     * Nothing is copied and no CAS is performed, so the result must be published by the caller.
+     */
+    public static <T, V> BaseNode<T, V> build(final H3CellId<T>[] keys, final V[] values, int from, int to, Gen gen, int resolution, int stride) {
+        if (to - from == 1) {
+            return new LeafNode<>(keys[from], values[from], keys[from].getAddress(), resolution);
+        }
+        else {
+            return new NodeWrapper<>(buildNode(keys, values, from, to, gen, resolution, stride), gen);
+        }
+    }
+
+    /**
+     * Same as {@link #build}, but also keeps a leaf currently occupying the slot, unless one of the keys replaces it
+     */
+    static <T, V> BaseNode<T, V> merged(final LeafNode<T, V> sn, final H3CellId<T>[] keys, final V[] values, int from, int to, Gen gen, int resolution, int stride) {
+        int at = from;
+        while (at < to && H3CellId.compareTrieOrder(keys[at].getAddress(), sn.hash) < 0) {
+            at += 1;
+        }
+        for (int i = at; i < to && keys[i].getAddress() == sn.hash; i++) {
+            if (sn.key.equals(keys[i])) {
+                return build(keys, values, from, to, gen, resolution, stride);
+            }
+        }
+        final int len = to - from + 1;
+        final H3CellId<T>[] nkeys = new H3CellId[len];
+        final V[] nvalues = (V[]) new Object[len];
+        System.arraycopy(keys, from, nkeys, 0, at - from);
+        System.arraycopy(values, from, nvalues, 0, at - from);
+        nkeys[at - from] = sn.key;
+        nvalues[at - from] = sn.value;
+        System.arraycopy(keys, at, nkeys, at - from + 1, to - at);
+        System.arraycopy(values, at, nvalues, at - from + 1, to - at);
+        return build(nkeys, nvalues, 0, len, gen, resolution, stride);
+    }
+
+    private static <T, V> BaseNode<T, V> buildNode(final H3CellId<T>[] keys, final V[] values, int from, int to, Gen gen, int resolution, int stride) {
+        // keys are sorted, so the cells all keys share are the cells the first and the last ones share
+        final long first = keys[from].getAddress();
+        final long last = keys[to - 1].getAddress();
+        int at = resolution;
+        while (at < H3CellId.MAX_DEPTH && H3CellId.cell(first, at) == H3CellId.cell(last, at)) {
+            at += 1;
+        }
+        if (at < H3CellId.MAX_DEPTH) {
+            final int span = Math.min(stride, H3CellId.MAX_DEPTH - at);
+            int len = 0;
+            int prev = -1;
+            for (int i = from; i < to; i++) {
+                int idx = index(keys[i].getAddress(), at, span);
+                if (idx != prev) {
+                    len += 1;
+                    prev = idx;
                 }
-                else {
-                    return new BranchNode<T, V>(bmp, 0, new BaseNode[]{new LeafNode<>(y.key, y.value, y.hash, resolution), new LeafNode<>(x.key, x.value, x.hash, resolution)}, gen, resolution);
+            }
+            BaseNode[] narr = new BaseNode[len];
+            long bmp = 0;
+            int pos = 0;
+            int i = from;
+            while (i < to) {
+                int idx = index(keys[i].getAddress(), at, span);
+                int j = i + 1;
+                while (j < to && index(keys[j].getAddress(), at, span) == idx) {
+                    j += 1;
                 }
+                bmp |= 1L << idx;
+                narr[pos] = build(keys, values, i, j, gen, at + span, stride);
+                pos += 1;
+                i = j;
             }
+            return new BranchNode<T, V>(bmp, 0, narr, gen, at, span, at - resolution, first & cellsMask(resolution, at));
         }
         else {
-            return new CollisionAwareNode<>(x.key, x.value, y.key, y.value, resolution);
+            // all keys share their cells, so they are kept in a collision list below the coarsest of them, as in dual
+            final CollisionBucket<T, V> bucket = CollisionBucket.<T, V>empty().addAll(keys, values, from, to);
+            int minResolution = keys[from].getResolution();
+            for (int i = from + 1; i < to; i++) {
+                minResolution = Math.min(minResolution, keys[i].getResolution());
+            }
+            if (minResolution < resolution) {
+                return new CollisionAwareNode<>(bucket, resolution);
+            }
+            else {
+                final NodeWrapper<T, V> subinode = new NodeWrapper<>(new CollisionAwareNode<>(bucket, minResolution + 1), gen);
+                return new BranchNode<T, V>(1L << H3CellId.cell(first, minResolution), 0, new BaseNode[] { subinode }, gen, minResolution, 1, minResolution - resolution, first & cellsMask(resolution, minResolution));
+            }
         }
     }
 
@@ -1,8 +1,9 @@
 package com.github.lonelylockley.spatial.ctrie.nodes;
 
+import com.github.lonelylockley.spatial.ctrie.CollisionBucket;
+import com.github.lonelylockley.spatial.ctrie.Gen;
 import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
 import com.github.lonelylockley.spatial.ctrie.H3CellId;
-import com.github.lonelylockley.spatial.ctrie.ListMap;
 
 import java.util.Map;
 import java.util.Optional;
@@ -10,27 +11,27 @@ import java.util.Optional;
 public class CollisionAwareNode<T, V> extends BaseNode<T, V> {
 
     public final int res;
-    public final ListMap<H3CellId<T>, V> listmap;
+    public final CollisionBucket<T, V> bucket;
 
-    public CollisionAwareNode(final ListMap<H3CellId<T>, V> listmap, final int resolution) {
-        this.listmap = listmap;
+    public CollisionAwareNode(final CollisionBucket<T, V> bucket, final int resolution) {
+        this.bucket = bucket;
         this.res = resolution;
     }
 
     public CollisionAwareNode(H3CellId<T> k, V v, final int resolution) {
-        this(ListMap.map(k, v), resolution);
+        this(CollisionBucket.map(k, v), resolution);
     }
 
     public CollisionAwareNode(H3CellId<T> k1, V v1, H3CellId<T> k2, V v2, final int resolution) {
-        this(ListMap.map(k1, v1, k2, v2), resolution);
+        this(CollisionBucket.map(k1, v1, k2, v2), resolution);
     }
 
     CollisionAwareNode<T, V> inserted(H3CellId<T> k, V v) {
-        return new CollisionAwareNode<>(listmap.add(k, v), res);
+        return new CollisionAwareNode<>(bucket.add(k, v), res);
     }
 
     BaseNode<T, V> removed(H3CellId<T> k, final SpatialConcurrentTrieMap<T, V> ct) {
-        ListMap<H3CellId<T>, V> updmap = listmap.remove(k);
+        CollisionBucket<T, V> updmap = bucket.remove(k);
         if (updmap.size() > 1) {
             return new CollisionAwareNode<>(updmap, res);
         }
@@ -41,13 +42,42 @@ public class CollisionAwareNode<T, V> extends BaseNode<T, V> {
         }
     }
 
+    CollisionAwareNode<T, V> insertedAll(final H3CellId<T>[] keys, final V[] values, int from, int to) {
+        return new CollisionAwareNode<>(bucket.addAll(keys, values, from, to), res);
+    }
+
+    // returns this node if none of the keys is present
+    BaseNode<T, V> removedAll(final H3CellId<T>[] keys, int from, int to, final Gen gen) {
+        final CollisionBucket<T, V> updmap = bucket.removeAll(keys, from, to);
+        if (updmap == bucket) {
+            return this;
+        }
+        else
+        if (updmap.isEmpty()) {
+            // nothing left to tomb, an empty branch is the only node that may stand in place of a collision list
+            return new BranchNode<T, V>(0, 0, new BaseNode[0], gen, res);
+        }
+        else
+        if (updmap.size() > 1) {
+            return new CollisionAwareNode<>(updmap, res);
+        }
+        else {
+            Map.Entry<H3CellId<T>, V> kv = updmap.iterator().next();
+            return new TombstoneNode<>(kv.getKey(), kv.getValue(), kv.getKey().getAddress(), res);
+        }
+    }
+
     Optional<V> get(H3CellId<T> k) {
-        return listmap.get(k);
+        return bucket.get(k);
+    }
+
+    H3CellId<T> find(long address, T entityId) {
+        return bucket.find(address, entityId);
     }
 
     @Override
     public int cachedSize(SpatialConcurrentTrieMap<T, V> instance) {
-        return listmap.size();
+        return bucket.size();
     }
 
     @Override
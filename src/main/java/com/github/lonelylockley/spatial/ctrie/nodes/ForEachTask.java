@@ -0,0 +1,73 @@
+package com.github.lonelylockley.spatial.ctrie.nodes;
+
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
+import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
+
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * Visits a subtree of a read-only snapshot fanning out across the children of every BranchNode. A subtree is visited
+ * sequentially once its size, cached in the node, is below the threshold. Sizes that are not computed yet are not
+ * computed here, as that would take a sequential pass over the subtree, so such subtrees are split down to a fixed
+ * resolution instead.
+ */
+public class ForEachTask<T, V> extends RecursiveAction {
+
+    /**
+     * Subtrees holding fewer entries are visited by a single task
+     */
+    public static final int THRESHOLD = 1 << 12;
+    /**
+     * Number of resolutions below the starting one to split subtrees of unknown size down to
+     */
+    public static final int FORK_DEPTH = 3;
+
+    private final NodeWrapper<T, V> node;
+    private final SpatialConcurrentTrieMap<T, V> instance;
+    private final BiConsumer<? super H3CellId<T>, ? super V> consumer;
+    private final int forkUntil;
+
+    /**
+     * @param forkUntil subtrees of unknown size are split while their nodes are of a coarser resolution
+     */
+    public ForEachTask(final NodeWrapper<T, V> node, final SpatialConcurrentTrieMap<T, V> instance, final BiConsumer<? super H3CellId<T>, ? super V> consumer, final int forkUntil) {
+        assert (instance.isReadOnly());
+        this.node = node;
+        this.instance = instance;
+        this.consumer = consumer;
+        this.forkUntil = forkUntil;
+    }
+
+    @Override
+    protected void compute() {
+        final BaseNode<T, V> m = node.getGCAS(instance);
+        if (m instanceof BranchNode<T, V> cn && isLarge(cn)) {
+            final var subtasks = new ArrayList<ForEachTask<T, V>>(cn.array.length);
+            for (BaseNode<T, V> sub : cn.array) {
+                if (sub instanceof LeafNode<T, V> sn) {
+                    consumer.accept(sn.key, sn.value);
+                }
+                else
+                if (sub instanceof NodeWrapper<T, V> in) {
+                    subtasks.add(new ForEachTask<>(in, instance, consumer, forkUntil));
+                }
+            }
+            invokeAll(subtasks);
+        }
+        else {
+            node.forEachInternal(consumer, instance);
+        }
+    }
+
+    private boolean isLarge(final BranchNode<T, V> cn) {
+        final int size = cn.getSize();
+        if (size == -1) {
+            return cn.res < forkUntil;
+        }
+        else {
+            return size >= THRESHOLD;
+        }
+    }
+}
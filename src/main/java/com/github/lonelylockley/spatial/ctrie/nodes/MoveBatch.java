@@ -0,0 +1,401 @@
+package com.github.lonelylockley.spatial.ctrie.nodes;
+
+import com.github.lonelylockley.spatial.ctrie.Gen;
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
+import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Moves that cannot be done within a single node. The values are taken out of the `from` keys and put under the `to`
+ * keys in a private view of the trie: every wrapper the moves read or update gets a new main node, which is computed
+ * the same way {@link NodeWrapper#removeInternal} and {@link NodeWrapper#insertAllInternal} compute it, but nothing
+ * is published. All the new main nodes are then installed at once by a {@link MoveDescriptor}, which succeeds only if
+ * none of the wrappers has changed in between. Wrappers that are only read get a copy of their main node, so the
+ * absence of a key is validated as well.
+ *
+ * Wrappers created by the batch (e.g. when a key splits skipped cells) are not published until the descriptor is
+ * installed, so their main nodes are simply replaced.
+ */
+final class MoveBatch<T, V> {
+
+    private final NodeWrapper<T, V> root;
+    private final Gen startgen;
+    private final SpatialConcurrentTrieMap<T, V> ct;
+    private final Map<NodeWrapper<T, V>, Touched<T, V>> touched = new IdentityHashMap<>();
+    private final Set<NodeWrapper<T, V>> created = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int added = 0;
+
+    // a wrapper of the trie read or updated by the batch
+    private static final class Touched<T, V> {
+        final NodeWrapper<T, V> wrapper;
+        // wrappers above this one, the root first
+        final List<NodeWrapper<T, V>> path;
+        // address of a key within the wrapper, which orders wrappers that are not nested
+        final long address;
+        final BaseNode<T, V> expected;
+        BaseNode<T, V> main;
+
+        Touched(final NodeWrapper<T, V> wrapper, final List<NodeWrapper<T, V>> path, final long address, final BaseNode<T, V> expected) {
+            this.wrapper = wrapper;
+            this.path = List.copyOf(path);
+            this.address = address;
+            this.expected = expected;
+            this.main = expected;
+        }
+    }
+
+    MoveBatch(final NodeWrapper<T, V> root, final Gen startgen, final SpatialConcurrentTrieMap<T, V> ct) {
+        this.root = root;
+        this.startgen = startgen;
+        this.ct = ct;
+    }
+
+    /**
+     * Moves `from[i]` to `to[i]` atomically as a whole: all the values are taken out first and then put under the new
+     * keys, a later move wins if several of them have the same new key. A key listed several times is moved once.
+     *
+     * @return values of the `from` keys, null for absent ones, or RESTART if the moves must be restarted from the root
+     */
+    Object apply(final H3CellId<T>[] from, final H3CellId<T>[] to) {
+        final Object[] values = new Object[from.length];
+        final Touched<T, V>[] holders = new Touched[from.length];
+        boolean present = false;
+        for (int i = 0; i < from.length; i++) {
+            holders[i] = locate(from[i]);
+            if (holders[i] == null) {
+                return NodeWrapper.RESTART;
+            }
+            values[i] = valueOf(holders[i].main, from[i]);
+            present |= values[i] != null;
+        }
+        if (!present && from.length == 1) {
+            // a single read, there is nothing to validate
+            return values;
+        }
+        final Map<H3CellId<T>, V> moved = new HashMap<>();
+        for (int i = 0; i < from.length; i++) {
+            // a key listed several times is taken out by its first move only
+            if (values[i] != null && remove(holders[i], from[i])) {
+                moved.put(to[i], (V) values[i]);
+            }
+            else {
+                values[i] = null;
+            }
+        }
+        if (!moved.isEmpty()) {
+            final H3CellId<T>[] keys = moved.keySet().toArray(new H3CellId[0]);
+            Arrays.sort(keys, (x, y) -> H3CellId.compareTrieOrder(x.getAddress(), y.getAddress()));
+            final V[] vals = (V[]) new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                vals[i] = moved.get(keys[i]);
+            }
+            if (!insert(root, new ArrayList<>(), keys, vals, 0, keys.length)) {
+                return NodeWrapper.RESTART;
+            }
+        }
+        return commit(values);
+    }
+
+    // main node of a wrapper as the batch sees it, or null if the batch must be restarted
+    private BaseNode<T, V> main(final NodeWrapper<T, V> wrapper, final List<NodeWrapper<T, V>> path) {
+        final Touched<T, V> t = touched.get(wrapper);
+        if (t != null) {
+            return t.main;
+        }
+        if (created.contains(wrapper)) {
+            return wrapper.getWrapped();
+        }
+        final BaseNode<T, V> m = wrapper.getGCAS(ct);
+        if (m instanceof TombstoneNode<T, V>) {
+            wrapper.clean(path.get(path.size() - 1), ct);
+            return null;
+        }
+        else
+        if (m instanceof BranchNode<T, V> cn && !isCurrent(cn)) {
+            // renewed the way any other update renews it, then the batch starts over
+            wrapper.setGCAS(cn, cn.renewed(startgen, ct), ct);
+            return null;
+        }
+        else {
+            return m;
+        }
+    }
+
+    // tells if the node and the wrappers right below it belong to the current generation, so they can be updated
+    private boolean isCurrent(final BranchNode<T, V> cn) {
+        if (cn.gen != startgen) {
+            return false;
+        }
+        for (BaseNode<T, V> sub : cn.array) {
+            if (sub instanceof NodeWrapper<T, V> in && in.gen != startgen) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Touched<T, V> touch(final NodeWrapper<T, V> wrapper, final BaseNode<T, V> seen, final List<NodeWrapper<T, V>> path, final long address) {
+        Touched<T, V> t = touched.get(wrapper);
+        if (t == null) {
+            t = new Touched<>(wrapper, path, address, seen);
+            touched.put(wrapper, t);
+        }
+        return t;
+    }
+
+    private void update(final NodeWrapper<T, V> wrapper, final BaseNode<T, V> seen, final List<NodeWrapper<T, V>> path, final long address, final BaseNode<T, V> main) {
+        if (created.contains(wrapper)) {
+            wrapper.setWrappedNode(main);
+        }
+        else {
+            touch(wrapper, seen, path, address).main = main;
+        }
+    }
+
+    // wrapper holding the key or the one it would be put into, null if the batch must be restarted
+    private Touched<T, V> locate(final H3CellId<T> key) {
+        final long hash = key.getAddress();
+        final List<NodeWrapper<T, V>> path = new ArrayList<>();
+        NodeWrapper<T, V> wrapper = root;
+        while (true) {
+            final BaseNode<T, V> m = main(wrapper, path);
+            if (m == null) {
+                return null;
+            }
+            if (m instanceof BranchNode<T, V> cn && cn.matches(hash)) {
+                final int idx = cn.index(hash);
+                if (cn.isOccupied(idx) && cn.array[cn.position(idx)] instanceof NodeWrapper<T, V> in) {
+                    path.add(wrapper);
+                    wrapper = in;
+                    continue;
+                }
+            }
+            return touch(wrapper, m, path, hash);
+        }
+    }
+
+    private static <T, V> V valueOf(final BaseNode<T, V> m, final H3CellId<T> key) {
+        final long hash = key.getAddress();
+        if (m instanceof BranchNode<T, V> cn) {
+            if (cn.matches(hash)) {
+                final int idx = cn.index(hash);
+                if (cn.isOccupied(idx) && cn.array[cn.position(idx)] instanceof LeafNode<T, V> sn && sn.hash == hash && Objects.equals(sn.key, key)) {
+                    return sn.value;
+                }
+            }
+            return null;
+        }
+        else
+        if (m instanceof CollisionAwareNode<T, V> ln) {
+            return ln.get(key).orElse(null);
+        }
+        else {
+            return null;
+        }
+    }
+
+    // returns false if the key has already been removed
+    private boolean remove(final Touched<T, V> t, final H3CellId<T> key) {
+        final long hash = key.getAddress();
+        if (t.main instanceof BranchNode<T, V> cn) {
+            final int idx = cn.index(hash);
+            final int pos = cn.position(idx);
+            if (cn.isOccupied(idx) && cn.array[pos] instanceof LeafNode<T, V> sn && sn.hash == hash && Objects.equals(sn.key, key)) {
+                t.main = cn.removedAt(idx, pos, 1L << idx, startgen);
+                added -= 1;
+                return true;
+            }
+        }
+        else
+        if (t.main instanceof CollisionAwareNode<T, V> ln && ln.bucket.contains(key)) {
+            // an empty or a single entry bucket is replaced once all the moves are applied
+            t.main = new CollisionAwareNode<>(ln.bucket.remove(key), ln.res);
+            added -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Puts keys sorted in trie order below a wrapper the same way {@link NodeWrapper#insertAllInternal} does
+     *
+     * @return false if the batch must be restarted
+     */
+    private boolean insert(final NodeWrapper<T, V> wrapper, final List<NodeWrapper<T, V>> path, final H3CellId<T>[] keys, final V[] values, final int from, final int to) {
+        while (true) {
+            final BaseNode<T, V> m = main(wrapper, path);
+            if (m == null) {
+                return false;
+            }
+            if (m instanceof CollisionAwareNode<T, V> ln) {
+                final CollisionAwareNode<T, V> nn = ln.insertedAll(keys, values, from, to);
+                added += nn.bucket.size() - ln.bucket.size();
+                update(wrapper, m, path, keys[from].getAddress(), nn);
+                return true;
+            }
+            final BranchNode<T, V> cn = (BranchNode<T, V>) m;
+            if (!cn.matches(keys[from].getAddress()) || !cn.matches(keys[to - 1].getAddress())) {
+                final long address = cn.matches(keys[from].getAddress()) ? keys[to - 1].getAddress() : keys[from].getAddress();
+                final BranchNode<T, V> sn = cn.split(address, startgen, ct.getStride());
+                created.add((NodeWrapper<T, V>) sn.array[0]);
+                update(wrapper, m, path, address, sn);
+                continue;
+            }
+            final BaseNode[] narr = new BaseNode[cn.array.length + Math.min(to - from, cn.res == 0 ? 122 : 1 << (3 * cn.span))];
+            final NodeWrapper[] below = new NodeWrapper[Math.min(cn.array.length, to - from)];
+            final int[] bounds = new int[below.length * 2];
+            long bitmapLow = cn.bitmapLow;
+            long bitmapHigh = cn.bitmapHigh;
+            boolean changed = false;
+            int len = 0;
+            int pos = 0;
+            int nbelow = 0;
+            int i = from;
+            while (i < to) {
+                final int idx = cn.index(keys[i].getAddress());
+                int j = i + 1;
+                while (j < to && cn.index(keys[j].getAddress()) == idx) {
+                    j += 1;
+                }
+                final int slot = cn.position(idx);
+                while (pos < slot) {
+                    narr[len++] = cn.array[pos++];
+                }
+                if (cn.isOccupied(idx)) {
+                    final BaseNode<T, V> sub = cn.array[pos++];
+                    if (sub instanceof NodeWrapper<T, V> in) {
+                        below[nbelow] = in;
+                        bounds[nbelow * 2] = i;
+                        bounds[nbelow * 2 + 1] = j;
+                        nbelow += 1;
+                        narr[len++] = in;
+                    }
+                    else {
+                        final LeafNode<T, V> sn = (LeafNode<T, V>) sub;
+                        narr[len++] = BranchNode.merged(sn, keys, values, i, j, startgen, cn.res + cn.span, ct.getStride());
+                        added += j - i;
+                        for (int k = i; k < j; k++) {
+                            if (sn.hash == keys[k].getAddress() && Objects.equals(sn.key, keys[k])) {
+                                added -= 1;
+                            }
+                        }
+                        changed = true;
+                    }
+                }
+                else {
+                    narr[len++] = BranchNode.build(keys, values, i, j, startgen, cn.res + cn.span, ct.getStride());
+                    added += j - i;
+                    if (idx >= 64) {
+                        bitmapHigh |= 1L << idx;
+                    }
+                    else {
+                        bitmapLow |= 1L << idx;
+                    }
+                    changed = true;
+                }
+                i = j;
+            }
+            while (pos < cn.array.length) {
+                narr[len++] = cn.array[pos++];
+            }
+            if (changed) {
+                update(wrapper, m, path, keys[from].getAddress(), new BranchNode<T, V>(bitmapLow, bitmapHigh, Arrays.copyOf(narr, len), startgen, cn.res, cn.span, cn.skip, cn.prefix));
+            }
+            path.add(wrapper);
+            for (int k = 0; k < nbelow; k++) {
+                if (!insert(below[k], path, keys, values, bounds[k * 2], bounds[k * 2 + 1])) {
+                    return false;
+                }
+            }
+            path.remove(path.size() - 1);
+            return true;
+        }
+    }
+
+    private Object commit(final Object result) {
+        if (touched.isEmpty()) {
+            return result;
+        }
+        final Touched<T, V>[] ordered = touched.values().toArray(new Touched[0]);
+        Arrays.sort(ordered, MoveBatch::compare);
+        final NodeWrapper<T, V>[] wrappers = new NodeWrapper[ordered.length];
+        final BaseNode<T, V>[] expected = new BaseNode[ordered.length];
+        final BaseNode<T, V>[] proposed = new BaseNode[ordered.length];
+        for (int i = 0; i < ordered.length; i++) {
+            wrappers[i] = ordered[i].wrapper;
+            expected[i] = ordered[i].expected;
+            proposed[i] = finished(ordered[i]);
+        }
+        final MoveDescriptor<T, V> descriptor = new MoveDescriptor<>(startgen, wrappers, expected, proposed, added);
+        if (!descriptor.start()) {
+            return NodeWrapper.RESTART;
+        }
+        final boolean committed = descriptor.complete(ct);
+        descriptor.resolve(ct);
+        if (!committed) {
+            return NodeWrapper.RESTART;
+        }
+        // nodes left with a single leaf are compressed the same way a removal compresses them
+        for (Touched<T, V> t : ordered) {
+            if (!t.path.isEmpty() && t.wrapper.getGCAS(ct) instanceof TombstoneNode<T, V> tn) {
+                t.wrapper.cleanParent(tn, t.path.get(t.path.size() - 1), ct, t.address, startgen);
+            }
+        }
+        return result;
+    }
+
+    // wrappers are installed from the root down and disjoint ones in trie order, see MoveDescriptor
+    private static int compare(final Touched<?, ?> x, final Touched<?, ?> y) {
+        if (y.path.contains(x.wrapper)) {
+            return -1;
+        }
+        else
+        if (x.path.contains(y.wrapper)) {
+            return 1;
+        }
+        else {
+            return H3CellId.compareTrieOrder(x.address, y.address);
+        }
+    }
+
+    // new main node of a wrapper, a copy of the one seen if the wrapper has only been read
+    private BaseNode<T, V> finished(final Touched<T, V> t) {
+        final BaseNode<T, V> m = t.main;
+        if (m == t.expected) {
+            if (m instanceof BranchNode<T, V> cn) {
+                return new BranchNode<T, V>(cn.bitmapLow, cn.bitmapHigh, cn.array, cn.gen, cn.res, cn.span, cn.skip, cn.prefix);
+            }
+            else {
+                final CollisionAwareNode<T, V> ln = (CollisionAwareNode<T, V>) m;
+                return new CollisionAwareNode<>(ln.bucket, ln.res);
+            }
+        }
+        else
+        if (m instanceof BranchNode<T, V> cn) {
+            return cn.toContracted();
+        }
+        else {
+            final CollisionAwareNode<T, V> ln = (CollisionAwareNode<T, V>) m;
+            if (ln.bucket.isEmpty()) {
+                return new BranchNode<T, V>(0, 0, new BaseNode[0], startgen, ln.res);
+            }
+            else
+            if (ln.bucket.size() == 1) {
+                final Map.Entry<H3CellId<T>, V> kv = ln.bucket.iterator().next();
+                return new TombstoneNode<>(kv.getKey(), kv.getValue(), kv.getKey().getAddress(), ln.res);
+            }
+            else {
+                return ln;
+            }
+        }
+    }
+}
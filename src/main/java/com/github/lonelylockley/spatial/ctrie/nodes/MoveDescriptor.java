@@ -0,0 +1,154 @@
+package com.github.lonelylockley.spatial.ctrie.nodes;
+
+import com.github.lonelylockley.spatial.ctrie.Gen;
+import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Descriptor of a move touching several NodeWrappers, a multi-word CAS over their main nodes. Every new main node is
+ * proposed the same way a GCAS proposes it, but instead of the previous main node its parent is a {@link Proposal}
+ * pointing to the descriptor, so the proposals stand or fall together.
+ *
+ * The mover installs the first proposal, the rest of them are installed by whoever completes the move: any thread
+ * reading a main node through {@link NodeWrapper#getGCAS} helps a pending move along instead of waiting for it. Once
+ * all the proposals are installed, the move is committed if the generation of the trie has not changed, same as a
+ * GCAS, and aborted otherwise. Wrappers are ordered, so that a wrapper is always installed before its descendants and
+ * disjoint wrappers in trie order: a move only ever helps moves holding wrappers further in that order, so helping
+ * never runs in circles and some move always completes.
+ */
+final class MoveDescriptor<T, V> {
+
+    private static final AtomicIntegerFieldUpdater<MoveDescriptor> STATE = AtomicIntegerFieldUpdater.newUpdater(MoveDescriptor.class, "state");
+
+    private static final int PREPARING = 0;
+    private static final int READY = 1;
+    private static final int COMMITTED = 2;
+    private static final int ABORTED = 3;
+
+    private final Gen gen;
+    private final NodeWrapper<T, V>[] wrappers;
+    private final BaseNode<T, V>[] expected;
+    private final BaseNode<T, V>[] proposed;
+    // entries added to the map by the move, reported once it is committed
+    private final int added;
+    private volatile int state = PREPARING;
+
+    /**
+     * Parent of a proposed main node, which holds the main node it replaces the same way a {@link FailedNode} does
+     */
+    static final class Proposal<T, V> extends BaseNode<T, V> {
+
+        final MoveDescriptor<T, V> descriptor;
+
+        Proposal(final BaseNode<T, V> replaced, final MoveDescriptor<T, V> descriptor) {
+            this.descriptor = descriptor;
+            setParent(replaced);
+        }
+
+        @Override
+        public int resolution() {
+            return parent.resolution();
+        }
+
+        @Override
+        protected int cachedSize(SpatialConcurrentTrieMap<T, V> instance) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param wrappers wrappers in the order they are installed in
+     * @param expected main nodes the move has been computed against
+     * @param proposed new main nodes, not published anywhere yet
+     */
+    MoveDescriptor(final Gen gen, final NodeWrapper<T, V>[] wrappers, final BaseNode<T, V>[] expected, final BaseNode<T, V>[] proposed, final int added) {
+        this.gen = gen;
+        this.wrappers = wrappers;
+        this.expected = expected;
+        this.proposed = proposed;
+        this.added = added;
+        for (int i = 0; i < proposed.length; i++) {
+            proposed[i].setParent(new Proposal<>(expected[i], this));
+        }
+    }
+
+    /**
+     * Installs the first proposal, which makes the move visible to other threads
+     *
+     * @return false if the first wrapper has changed, the move never takes place then
+     */
+    boolean start() {
+        return wrappers[0].swapWrappedNode(expected[0], proposed[0]);
+    }
+
+    /**
+     * Drives a started move to a decision, helping to install the proposals if needed. A read-only snapshot never
+     * helps, it aborts a pending move instead, so the snapshot stays immutable.
+     *
+     * @return true if the move is committed
+     */
+    boolean complete(final SpatialConcurrentTrieMap<T, V> ct) {
+        while (true) {
+            final int s = state;
+            if (s == PREPARING) {
+                STATE.compareAndSet(this, PREPARING, !ct.isReadOnly() && installAll(ct) ? READY : ABORTED);
+            }
+            else
+            if (s == READY) {
+                if (!ct.isReadOnly() && ct.readRoot(true).gen == gen) {
+                    if (STATE.compareAndSet(this, READY, COMMITTED) && added != 0) {
+                        ct.sizeChanged(added);
+                    }
+                }
+                else {
+                    STATE.compareAndSet(this, READY, ABORTED);
+                }
+            }
+            else {
+                return s == COMMITTED;
+            }
+        }
+    }
+
+    /**
+     * Commits or rolls back the proposals left in the wrappers, any later read would do it anyway
+     */
+    void resolve(final SpatialConcurrentTrieMap<T, V> ct) {
+        for (NodeWrapper<T, V> wrapper : wrappers) {
+            wrapper.getGCAS(ct);
+        }
+    }
+
+    private boolean installAll(final SpatialConcurrentTrieMap<T, V> ct) {
+        for (int i = 1; i < wrappers.length && state == PREPARING; i++) {
+            if (!install(i, ct)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean install(final int i, final SpatialConcurrentTrieMap<T, V> ct) {
+        while (true) {
+            final BaseNode<T, V> current = wrappers[i].getWrapped();
+            if (current == proposed[i]) {
+                return true;
+            }
+            else
+            if (current == expected[i]) {
+                if (wrappers[i].swapWrappedNode(expected[i], proposed[i])) {
+                    return true;
+                }
+            }
+            else
+            if (current.getParent() != null) {
+                // another update is pending in the wrapper, help it and look again
+                wrappers[i].getGCAS(ct);
+            }
+            else {
+                return false;
+            }
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package com.github.lonelylockley.spatial.ctrie.nodes;
 
+import com.github.lonelylockley.spatial.ctrie.Aggregator;
+import com.github.lonelylockley.spatial.ctrie.CellCountVisitor;
 import com.github.lonelylockley.spatial.ctrie.SpatialConcurrentTrieMap;
 import com.github.lonelylockley.spatial.ctrie.Gen;
 import com.github.lonelylockley.spatial.ctrie.H3CellId;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class NodeWrapper<T, V> extends BaseNode<T, V> {
 
@@ -15,6 +24,7 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
     public static final Condition KEY_PRESENT = new Condition();
     public static final Condition KEY_ABSENT = new Condition();
     public static final Condition RESTART = new Condition();
+    public static final Condition NOT_LOCAL = new Condition();
 
     protected volatile BaseNode<T, V> wrapped = null;
     public final Gen gen;
@@ -34,6 +44,44 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
         return new NodeWrapper<>(cn, gen);
     }
 
+    /**
+     * Builds a complete trie in a single pass out of keys sorted in trie order. Keys must be unique. Subtrees of
+     * different base cells are independent, so they may be built in parallel. Nodes below the root span up to
+     * `stride` resolutions.
+     */
+    public static <T, V> NodeWrapper<T, V> newRootNode(final H3CellId<T>[] keys, final V[] values, final boolean parallel, final int stride) {
+        final Gen gen = new Gen();
+        int len = 0;
+        final int[] bounds = new int[123];
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i].getBaseCell() != keys[i - 1].getBaseCell()) {
+                bounds[len] = i;
+                len += 1;
+            }
+        }
+        bounds[len] = keys.length;
+
+        long bitmapLow = 0;
+        long bitmapHigh = 0;
+        for (int i = 0; i < len; i++) {
+            final int idx = keys[bounds[i]].getBaseCell();
+            if (idx >= 64) {
+                bitmapHigh |= 1L << idx;
+            }
+            else {
+                bitmapLow |= 1L << idx;
+            }
+        }
+
+        final BaseNode[] narr = new BaseNode[len];
+        var subtrees = IntStream.range(0, len);
+        if (parallel) {
+            subtrees = subtrees.parallel();
+        }
+        subtrees.forEach(i -> narr[i] = BranchNode.build(keys, values, bounds[i], bounds[i + 1], gen, 1, stride));
+        return new NodeWrapper<>(new BranchNode<T, V>(bitmapLow, bitmapHigh, narr, gen, 0), gen);
+    }
+
     protected boolean swapWrappedNode(BaseNode<T, V> oldValue, BaseNode<T, V> newValue) {
         return updater.compareAndSet(this, oldValue, newValue);
     }
@@ -80,6 +128,18 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                         copy = /* READ */wrapped;
                     }
                 }
+                else
+                if (parent instanceof MoveDescriptor.Proposal<T, V> proposal) {
+                    // proposed by a move touching several wrappers, it is committed or rolled back along with the rest
+                    if (proposal.descriptor.complete(instance)) {
+                        copy.swapParent(parent, null);
+                    }
+                    else {
+                        copy.swapParent(parent, new FailedNode<>(parent.parent));
+                    }
+                    // tailrec
+                    continue;
+                }
                 else {
                     // Assume that you've read the root from the generation G.
                     // Assume that the snapshot algorithm is correct.
@@ -118,12 +178,82 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
         }
     }
 
+    /**
+     * Same as {@link #setGCAS(BaseNode, BaseNode, SpatialConcurrentTrieMap)}, but once the update is committed, the
+     * number of entries it has added to the map (negative if removed) is reported to the map's size counter
+     */
+    private boolean setGCAS(final BaseNode<T, V> oldValue, final BaseNode<T, V> newValue, final int added, final SpatialConcurrentTrieMap<T, V> ct) {
+        if (setGCAS(oldValue, newValue, ct)) {
+            if (added != 0) {
+                ct.sizeChanged(added);
+            }
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    // number of entries of a node replacing a collision list
+    private static int entries(final BaseNode<?, ?> node) {
+        if (node instanceof CollisionAwareNode<?, ?> ln) {
+            return ln.bucket.size();
+        }
+        else
+        if (node instanceof TombstoneNode<?, ?>) {
+            return 1;
+        }
+        else {
+            return 0;
+        }
+    }
+
+    // keys of a batch resolved by a node: all of its range except the sub-ranges passed below
+    private static void markDone(final BitSet done, final int from, final int to, final int[] bounds, final int nbelow) {
+        done.set(from, to);
+        for (int k = 0; k < nbelow; k++) {
+            done.clear(bounds[k * 2], bounds[k * 2 + 1]);
+        }
+    }
+
     @Override
     public final int cachedSize(final SpatialConcurrentTrieMap<T, V> instance) {
         BaseNode<T, V> m = getGCAS(instance);
         return m.cachedSize(instance);
     }
 
+    // this should only be called from within read-only snapshots, see BranchNode.cachedAggregate
+    public final <A> A cachedAggregate(final Aggregator<? super V, A> aggregator, final SpatialConcurrentTrieMap<T, V> instance) {
+        final BaseNode<T, V> m = getGCAS(instance);
+        if (m instanceof BranchNode<T, V> cn) {
+            return cn.cachedAggregate(aggregator, instance);
+        }
+        else
+        if (m instanceof TombstoneNode<T, V> tn) {
+            return aggregator.of(tn.value);
+        }
+        else
+        if (m instanceof CollisionAwareNode<T, V> can) {
+            return aggregate(can, 0, -1, aggregator);
+        }
+        else {
+            return aggregator.identity();
+        }
+    }
+
+    // aggregate of entries of a collision list within a cell of `resolution`, all of them at a negative resolution
+    private static <T, V, A> A aggregate(final CollisionAwareNode<T, V> can, final long address, final int resolution, final Aggregator<? super V, A> aggregator) {
+        A aggregate = aggregator.identity();
+        final Iterator<Map.Entry<H3CellId<T>, V>> it = can.bucket.iterator();
+        while (it.hasNext()) {
+            final Map.Entry<H3CellId<T>, V> e = it.next();
+            if (resolution < 0 || H3CellId.isWithin(e.getKey().getAddress(), address, resolution)) {
+                aggregate = aggregator.combine(aggregate, aggregator.of(e.getValue()));
+            }
+        }
+        return aggregate;
+    }
+
     private NodeWrapper<T, V> wrap(final BaseNode<T, V> cn) {
         NodeWrapper<T, V> nin = new NodeWrapper<>(gen);
         nin.setWrappedNode(cn);
@@ -137,49 +267,39 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
         return wrapper;
     }
 
-    private void clean(final NodeWrapper<T, V> nd, final SpatialConcurrentTrieMap<T, V> instance, int offset) {
+    void clean(final NodeWrapper<T, V> nd, final SpatialConcurrentTrieMap<T, V> instance) {
         BaseNode<T, V> m = nd.getGCAS(instance);
         if (m instanceof BranchNode<T, V> cn) {
-            nd.setGCAS(cn, cn.toCompressed(instance, offset, gen), instance);
+            nd.setGCAS(cn, cn.toCompressed(instance, gen), instance);
         }
     }
 
-    public final boolean insertInternal(final H3CellId<T> key, final V value, final long hash, final int offset, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+    private BranchNode<T, V> insertedIntoSplit(final BranchNode<T, V> cn, final H3CellId<T> key, final V value, final long hash, final SpatialConcurrentTrieMap<T, V> instance) {
+        final BranchNode<T, V> sn = cn.split(hash, gen, instance.getStride());
+        final int idx = sn.index(hash);
+        return sn.insertedAt(idx, sn.position(idx), 1L << idx, new LeafNode<>(key, value, hash, sn.res + sn.span), gen);
+    }
+
+    public final boolean insertInternal(final H3CellId<T> key, final V value, final long hash, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
         while(true) {
             BaseNode<T, V> m = getGCAS(instance); // use -Yinline!
             if (m instanceof BranchNode<T, V> cn) { // and RootNode too
                 // 1) a multiway node
-                final int idx;
-                final int pos;
-                final long flag;
-                final long bmp;
-                if (cn.res == 0) {
-                    idx = key.getBaseCell();
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    if (idx >= 64) {
-                        pos = Long.bitCount(cn.bitmapLow) + Long.bitCount(cn.bitmapHigh & mask);
-                        bmp = cn.bitmapHigh;
-                    }
-                    else {
-                        pos = Long.bitCount(cn.bitmapLow & mask);
-                        bmp = cn.bitmapLow;
-                    }
-                }
-                else {
-                    idx = (int) (hash >>> (64 - offset - 3)) & 0x7;
-                    bmp = cn.bitmapLow;
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    pos = Long.bitCount(bmp & mask);
+                if (!cn.matches(hash)) {
+                    // 1c) the key leaves the skipped cells, split them
+                    BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
+                    return setGCAS(cn, insertedIntoSplit(rn, key, value, hash, instance), 1, instance);
                 }
+                final int idx = cn.index(hash);
+                final int pos = cn.position(idx);
+                final long flag = 1L << idx;
 
-                if ((bmp & flag) != 0) {
+                if (cn.isOccupied(idx)) {
                     // 1a) insert below
                     final BaseNode<T, V> cnAtPos = cn.array[pos];
                     if (cnAtPos instanceof NodeWrapper<T, V> in) {
                         if (startgen == in.gen) {
-                            return in.insertInternal(key, value, hash, cn.res == 0 ? offset : offset + 3, this, startgen, instance);
+                            return in.insertInternal(key, value, hash, this, startgen, instance);
                         }
                         else {
                             if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
@@ -197,26 +317,151 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                         }
                         else {
                             BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
-                            BaseNode<T, V> nn = rn.updatedAt(pos, wrap(BranchNode.dual(sn, new LeafNode<>(key, value, hash, sn.res), cn.res == 0 ? offset : offset + 3, gen, rn.res + 1)), gen);
-                            return setGCAS(cn, nn, instance);
+                            BaseNode<T, V> nn = rn.updatedAt(pos, wrap(BranchNode.dual(sn, new LeafNode<>(key, value, hash, sn.res), gen, rn.res + rn.span, instance.getStride())), gen);
+                            return setGCAS(cn, nn, 1, instance);
                         }
                     }
                 }
                 else {
                     BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
-                    BaseNode<T, V> ncnode = rn.insertedAt(idx, pos, flag, new LeafNode<>(key, value, hash, rn.res + 1), gen);
-                    return setGCAS(cn, ncnode, instance);
+                    BaseNode<T, V> ncnode = rn.insertedAt(idx, pos, flag, new LeafNode<>(key, value, hash, rn.res + rn.span), gen);
+                    return setGCAS(cn, ncnode, 1, instance);
                 }
             }
             else
             if (m instanceof TombstoneNode<T, V>) {
-                clean(parent, instance, offset - 3);
+                clean(parent, instance);
                 return false;
             }
             else
             if (m instanceof CollisionAwareNode<T, V> ln) {
                 BaseNode<T, V> nn = ln.inserted(key, value);
-                return setGCAS(ln, nn, instance);
+                return setGCAS(ln, nn, entries(nn) - entries(ln), instance);
+            }
+
+            throw new RuntimeException ("Should not happen");
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #insertInternal}. Inserts a range of keys sorted in trie order, so keys falling into
+     * the same slot come in groups. Groups landing on empty slots and leaves are merged into this node with a single
+     * GCAS, groups landing on NodeWrappers are passed below afterwards.
+     *
+     * @param done marks the keys whose insertion has been committed, they must not be inserted once again over
+     *             concurrent updates when the operation is restarted
+     * @return false if the operation must be restarted from the root for the keys that are not marked as done
+     */
+    public final boolean insertAllInternal(final H3CellId<T>[] keys, final V[] values, final int from, final int to, final NodeWrapper<T, V> parent, final Gen startgen, final BitSet done, final SpatialConcurrentTrieMap<T, V> instance) {
+        while (true) {
+            BaseNode<T, V> m = getGCAS(instance);
+            if (m instanceof BranchNode<T, V> cn) {
+                if (!cn.matches(keys[from].getAddress()) || !cn.matches(keys[to - 1].getAddress())) {
+                    // keys are sorted, so if both first and last keys share the skipped cells, all of them do
+                    final long address = cn.matches(keys[from].getAddress()) ? keys[to - 1].getAddress() : keys[from].getAddress();
+                    BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
+                    if (setGCAS(cn, rn.split(address, gen, instance.getStride()), instance)) {
+                        continue;
+                    }
+                    else {
+                        return false;
+                    }
+                }
+                final BaseNode[] narr = new BaseNode[cn.array.length + Math.min(to - from, cn.res == 0 ? 122 : 1 << (3 * cn.span))];
+                final NodeWrapper[] below = new NodeWrapper[Math.min(cn.array.length, to - from)];
+                final int[] bounds = new int[below.length * 2];
+                long bitmapLow = cn.bitmapLow;
+                long bitmapHigh = cn.bitmapHigh;
+                boolean renew = cn.gen != gen;
+                boolean changed = false;
+                int added = 0;
+                int len = 0;
+                int pos = 0;
+                int nbelow = 0;
+                int i = from;
+                while (i < to && !renew) {
+                    final int idx = cn.index(keys[i].getAddress());
+                    int j = i + 1;
+                    while (j < to && cn.index(keys[j].getAddress()) == idx) {
+                        j += 1;
+                    }
+                    final int slot = cn.position(idx);
+                    while (pos < slot) {
+                        narr[len++] = cn.array[pos++];
+                    }
+                    if (cn.isOccupied(idx)) {
+                        final BaseNode<T, V> cnAtPos = cn.array[pos++];
+                        if (cnAtPos instanceof NodeWrapper<T, V> in) {
+                            renew = startgen != in.gen;
+                            below[nbelow] = in;
+                            bounds[nbelow * 2] = i;
+                            bounds[nbelow * 2 + 1] = j;
+                            nbelow += 1;
+                            narr[len++] = in;
+                        }
+                        else
+                        if (cnAtPos instanceof LeafNode<T, V> sn) {
+                            narr[len++] = BranchNode.merged(sn, keys, values, i, j, gen, cn.res + cn.span, instance.getStride());
+                            added += j - i;
+                            for (int k = i; k < j; k++) {
+                                if (sn.hash == keys[k].getAddress() && Objects.equals(sn.key, keys[k])) {
+                                    added -= 1;
+                                }
+                            }
+                            changed = true;
+                        }
+                    }
+                    else {
+                        narr[len++] = BranchNode.build(keys, values, i, j, gen, cn.res + cn.span, instance.getStride());
+                        added += j - i;
+                        if (idx >= 64) {
+                            bitmapHigh |= 1L << idx;
+                        }
+                        else {
+                            bitmapLow |= 1L << idx;
+                        }
+                        changed = true;
+                    }
+                    i = j;
+                }
+
+                if (renew) {
+                    if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
+                        continue;
+                    }
+                    else {
+                        return false;
+                    }
+                }
+                while (pos < cn.array.length) {
+                    narr[len++] = cn.array[pos++];
+                }
+                if (changed && !setGCAS(cn, new BranchNode<T, V>(bitmapLow, bitmapHigh, Arrays.copyOf(narr, len), gen, cn.res, cn.span, cn.skip, cn.prefix), added, instance)) {
+                    return false;
+                }
+                markDone(done, from, to, bounds, nbelow);
+                for (int k = 0; k < nbelow; k++) {
+                    if (!below[k].insertAllInternal(keys, values, bounds[k * 2], bounds[k * 2 + 1], this, startgen, done, instance)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            else
+            if (m instanceof TombstoneNode<T, V>) {
+                clean(parent, instance);
+                return false;
+            }
+            else
+            if (m instanceof CollisionAwareNode<T, V> ln) {
+                final CollisionAwareNode<T, V> nn = ln.insertedAll(keys, values, from, to);
+                if (setGCAS(ln, nn, entries(nn) - entries(ln), instance)) {
+                    done.set(from, to);
+                    return true;
+                }
+                else {
+                    return false;
+                }
             }
 
             throw new RuntimeException ("Should not happen");
@@ -234,42 +479,36 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
      * @return null if unsuccessful, Option[V] otherwise (indicating
      *         previous value bound to the key)
      */
-    public final Optional<V> insertWithConditionInternal(final H3CellId<T> key, final V value, final V cond, final int offset, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+    public final Optional<V> insertWithConditionInternal(final H3CellId<T> key, final V value, final V cond, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
         while (true) {
             BaseNode<T, V> m = getGCAS(instance); // use -Yinline!
             if (m instanceof BranchNode<T, V> cn) {
                 // 1) a multiway node
-                final int idx;
-                final int pos;
-                final long flag;
-                final long bmp;
-                if (cn.res == 0) {
-                    idx = key.getBaseCell();
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    if (idx >= 64) {
-                        pos = Long.bitCount(cn.bitmapLow) + Long.bitCount(cn.bitmapHigh & mask);
-                        bmp = cn.bitmapHigh;
+                if (!cn.matches(key.getAddress())) {
+                    // 1c) the key leaves the skipped cells, split them
+                    if (cond == null || cond == NodeWrapper.KEY_ABSENT) {
+                        BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
+                        if (setGCAS(cn, insertedIntoSplit(rn, key, value, key.getAddress(), instance), 1, instance)) {
+                            return Optional.empty(); // None
+                        }
+                        else {
+                            return null;
+                        }
                     }
                     else {
-                        pos = Long.bitCount(cn.bitmapLow & mask);
-                        bmp = cn.bitmapLow;
+                        return Optional.empty(); // None
                     }
                 }
-                else {
-                    idx = (int) (key.getAddress() >>> (64 - offset - 3)) & 0x7;
-                    bmp = cn.bitmapLow;
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    pos = Long.bitCount(bmp & mask);
-                }
+                final int idx = cn.index(key.getAddress());
+                final int pos = cn.position(idx);
+                final long flag = 1L << idx;
 
-                if ((bmp & flag) != 0) {
+                if (cn.isOccupied(idx)) {
                     // 1a) insert below
                     BaseNode<T, V> cnAtPos = cn.array[pos];
                     if (cnAtPos instanceof NodeWrapper<T, V> in) {
                         if (startgen == in.gen) {
-                            return in.insertWithConditionInternal(key, value, cond, cn.res == 0 ? offset : offset + 3, this, startgen, instance);
+                            return in.insertWithConditionInternal(key, value, cond, this, startgen, instance);
                         }
                         else {
                             if (!setGCAS(cn, cn.renewed(startgen, instance), instance)) {
@@ -290,8 +529,8 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                             }
                             else {
                                 BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
-                                BaseNode<T, V> nn = rn.updatedAt (pos, wrap(BranchNode.dual(sn, new LeafNode<>(key, value, key.getAddress(), sn.res), cn.res == 0 ? offset : offset + 3, gen, rn.res + 1)), gen);
-                                if (setGCAS(cn, nn, instance)) {
+                                BaseNode<T, V> nn = rn.updatedAt (pos, wrap(BranchNode.dual(sn, new LeafNode<>(key, value, key.getAddress(), sn.res), gen, rn.res + rn.span, instance.getStride())), gen);
+                                if (setGCAS(cn, nn, 1, instance)) {
                                     return Optional.empty(); // None;
                                 }
                                 else {
@@ -307,8 +546,8 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                             }
                             else {
                                 BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
-                                BaseNode<T, V> nn = rn.updatedAt(pos, wrap(BranchNode.dual(sn, new LeafNode<>(key, value, key.getAddress(), sn.res), cn.res == 0 ? offset : offset + 3, gen, rn.res + 1)), gen);
-                                if (setGCAS(cn, nn, instance)) {
+                                BaseNode<T, V> nn = rn.updatedAt(pos, wrap(BranchNode.dual(sn, new LeafNode<>(key, value, key.getAddress(), sn.res), gen, rn.res + rn.span, instance.getStride())), gen);
+                                if (setGCAS(cn, nn, 1, instance)) {
                                     return Optional.empty(); // None
                                 }
                                 else {
@@ -350,8 +589,8 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                 else
                 if (cond == null || cond == NodeWrapper.KEY_ABSENT) {
                     BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
-                    BranchNode<T, V> ncnode = rn.insertedAt(idx, pos, flag, new LeafNode<>(key, value, key.getAddress(), cn.res + 1), gen);
-                    if (setGCAS(cn, ncnode, instance)) {
+                    BranchNode<T, V> ncnode = rn.insertedAt(idx, pos, flag, new LeafNode<>(key, value, key.getAddress(), cn.res + cn.span), gen);
+                    if (setGCAS(cn, ncnode, 1, instance)) {
                         return Optional.empty();// None
                     }
                     else {
@@ -368,7 +607,7 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
             }
             else
             if (m instanceof TombstoneNode<T, V>) {
-                clean(parent, instance, offset - 3);
+                clean(parent, instance);
                 return null;
             }
             else
@@ -434,42 +673,17 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
 
     private boolean insertIntoCollisionAwareNode(final CollisionAwareNode<T, V> ln, final H3CellId key, final V value, final SpatialConcurrentTrieMap<T, V> ct) {
         CollisionAwareNode<T, V> nn = ln.inserted(key, value);
-        return setGCAS(ln, nn, ct);
+        return setGCAS(ln, nn, entries(nn) - entries(ln), ct);
     }
 
-    private final void cleanParent(final BaseNode<T, V> nonlive, final NodeWrapper<T, V> parent, final SpatialConcurrentTrieMap<T, V> instance, final long hash, final int offset, final Gen startgen) {
+    final void cleanParent(final BaseNode<T, V> nonlive, final NodeWrapper<T, V> parent, final SpatialConcurrentTrieMap<T, V> instance, final long hash, final Gen startgen) {
         while (true) {
             BaseNode<T, V> pm = parent.getGCAS(instance);
             if (pm instanceof BranchNode<T, V> cn) {
-                final int idx;
-                final int pos;
-                final long flag;
-                final long bmp;
-                if (cn.res == 0) {
-                    // !!!
-                    // we do not have a base cell here, but can calculate it knowing that
-                    // base cell is stored using 7 bits and we're at offset 19 here
-                    idx = (int) (hash >>> (64 - offset - 7));
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    if (idx >= 64) {
-                        pos = Long.bitCount(cn.bitmapLow) + Long.bitCount(cn.bitmapHigh & mask);
-                        bmp = cn.bitmapHigh;
-                    }
-                    else {
-                        pos = Long.bitCount(cn.bitmapLow & mask);
-                        bmp = cn.bitmapLow;
-                    }
-                }
-                else {
-                    idx = (int) (hash >>> (64 - offset - 3)) & 0x7;
-                    bmp = cn.bitmapLow;
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    pos = Long.bitCount(bmp & mask);
-                }
+                final int idx = cn.index(hash);
+                final int pos = cn.position(idx);
 
-                if ((bmp & flag) != 0) {
+                if (cn.isOccupied(idx)) {
                     BaseNode<T, V> sub = cn.array[pos];
                     if (sub == this) {
                         if (nonlive instanceof TombstoneNode<T, V> tn) {
@@ -499,35 +713,25 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
      * @return null if not successful, an Option[V] indicating the previous
      *         value otherwise
      */
-    public final Optional<V> removeInternal(H3CellId<T> key, V value, int offset, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+    public final Optional<V> removeInternal(H3CellId<T> key, V value, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+        return removeInternal(key.getAddress(), key.getBusinessEntityId(), value, parent, startgen, instance);
+    }
+
+    /**
+     * Same as {@link #removeInternal(H3CellId, Object, NodeWrapper, Gen, SpatialConcurrentTrieMap)}, but navigates
+     * the trie using a raw cell address, so no key instance is required
+     */
+    public final Optional<V> removeInternal(final long address, final T entityId, V value, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
         BaseNode<T, V> m = getGCAS(instance); // use -Yinline!
         if (m instanceof BranchNode<T, V> cn) {
-            final int idx;
-            final int pos;
-            final long flag;
-            final long bmp;
-            if (cn.res == 0) {
-                idx = key.getBaseCell();
-                flag = 1L << idx;
-                final long mask = flag - 1;
-                if (idx >= 64) {
-                    pos = Long.bitCount(cn.bitmapLow) + Long.bitCount(cn.bitmapHigh & mask);
-                    bmp = cn.bitmapHigh;
-                }
-                else {
-                    pos = Long.bitCount(cn.bitmapLow & mask);
-                    bmp = cn.bitmapLow;
-                }
-            }
-            else {
-                idx = (int) (key.getAddress() >>> (64 - offset - 3)) & 0x7;
-                bmp = cn.bitmapLow;
-                flag = 1L << idx;
-                final long mask = flag - 1;
-                pos = Long.bitCount(bmp & mask);
+            if (!cn.matches(address)) {
+                return Optional.empty();
             }
+            final int idx = cn.index(address);
+            final int pos = cn.position(idx);
+            final long flag = 1L << idx;
 
-            if ((bmp & flag) == 0) {
+            if (!cn.isOccupied(idx)) {
                 return Optional.empty();
             }
             else {
@@ -535,19 +739,19 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                 Optional<V> result = null;
                 if (sub instanceof NodeWrapper<T, V> in) {
                     if (startgen == in.gen) {
-                        result = in.removeInternal(key, value, (cn.res == 0 ) ? offset : offset + 3, this, startgen, instance);
+                        result = in.removeInternal(address, entityId, value, this, startgen, instance);
                     }
                     else
                     if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
-                        result = removeInternal(key, value, offset, parent, startgen, instance);
+                        result = removeInternal(address, entityId, value, parent, startgen, instance);
                     }
 
                 }
                 else
                 if (sub instanceof LeafNode<T, V> sn) {
-                    if (sn.hash == key.getAddress() && Objects.equals(sn.key, key) && (value == null || value.equals(sn.value))) {
+                    if (sn.hash == address && sn.key.matches(address, entityId) && (value == null || value.equals(sn.value))) {
                         BaseNode<T, V> ncn = cn.removedAt(idx, pos, flag, gen).toContracted();
-                        if (setGCAS(cn, ncn, instance)) {
+                        if (setGCAS(cn, ncn, -1, instance)) {
                             result = Optional.ofNullable(sn.value);
                         }
                     }
@@ -563,7 +767,7 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                     if (parent != null) { // never tomb at root
                         BaseNode<T, V> n = getGCAS(instance);
                         if (n instanceof TombstoneNode<T, V>) {
-                            cleanParent(n, parent, instance, key.getAddress(), offset, startgen);
+                            cleanParent(n, parent, instance, address, startgen);
                         }
                     }
                     return result;
@@ -572,15 +776,20 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
         }
         else
         if (m instanceof TombstoneNode<T, V>) {
-            clean (parent, instance, offset - 3);
+            clean(parent, instance);
             return null;
         }
         else
         if (m instanceof CollisionAwareNode<T, V> ln) {
+            final H3CellId<T> key = ln.find(address, entityId);
+            if (key == null) {
+                return Optional.empty();
+            }
+            else
             if (value == null) {
                 Optional<V> optv = ln.get(key);
                 BaseNode<T, V> nn = ln.removed(key, instance);
-                if (setGCAS(ln, nn, instance)) {
+                if (setGCAS(ln, nn, entries(nn) - entries(ln), instance)) {
                     return optv;
                 }
                 return null;
@@ -589,7 +798,7 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                 Optional<V> tmp = ln.get(key);
                 if (tmp.isPresent() && Objects.equals(tmp.get(), value)) {
                     BaseNode<T, V> nn = ln.removed(key, instance);
-                    if (setGCAS(ln, nn, instance)) {
+                    if (setGCAS(ln, nn, entries(nn) - entries(ln), instance)) {
                         return tmp;
                     }
                     return null;
@@ -603,48 +812,274 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
     }
 
     /**
-     * Looks up the value associated with the key.
+     * Fast path of a move. Descends while both keys fall into the same slot, the old key is expected to be a leaf of
+     * the node where their paths part. If the new key can be put into the same node without descending below it,
+     * the node is replaced with a single GCAS: nothing below it is modified, a node for a pair of colliding leaves is
+     * created anew, so no update of a concurrent writer is lost.
      *
-     * @return null if no value has been found, RESTART if the operation
-     *         wasn't successful, or any other value otherwise
+     * @return the moved value, null if there is no `from` key, RESTART if the operation must be restarted from the
+     * root or NOT_LOCAL if both keys cannot be updated within a single node
      */
-    public final Object lookupInternal(final H3CellId<T> key, int offset, NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+    public final Object moveInternal(final H3CellId<T> from, final H3CellId<T> to, final NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+        final long fromHash = from.getAddress();
+        final long toHash = to.getAddress();
         while (true) {
-            BaseNode<T, V> m = getGCAS(instance); // use -Yinline!
+            BaseNode<T, V> m = getGCAS(instance);
             if (m instanceof BranchNode<T, V> cn) {
-                // 1) a multinode
-                int pos;
-                long flag;
-                final long bmp;
-                if (cn.res == 0) {
-                    final int idx = key.getBaseCell();
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    if (idx >= 64) {
-                        pos = Long.bitCount(cn.bitmapLow) + Long.bitCount(cn.bitmapHigh & mask);
-                        bmp = cn.bitmapHigh;
+                if (!cn.matches(fromHash)) {
+                    return null;
+                }
+                if (!cn.matches(toHash)) {
+                    return NOT_LOCAL;
+                }
+                final int fromIdx = cn.index(fromHash);
+                final int toIdx = cn.index(toHash);
+                if (!cn.isOccupied(fromIdx)) {
+                    return null;
+                }
+                final int fromPos = cn.position(fromIdx);
+                final BaseNode<T, V> sub = cn.array[fromPos];
+                if (sub instanceof NodeWrapper<T, V> in) {
+                    if (fromIdx != toIdx) {
+                        return NOT_LOCAL;
+                    }
+                    else
+                    if (startgen == in.gen) {
+                        return in.moveInternal(from, to, this, startgen, instance);
+                    }
+                    else
+                    if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
+                        continue;
                     }
                     else {
-                        pos = Long.bitCount(cn.bitmapLow & mask);
-                        bmp = cn.bitmapLow;
+                        return RESTART;
                     }
                 }
+                final LeafNode<T, V> sn = (LeafNode<T, V>) sub;
+                if (sn.hash != fromHash || !Objects.equals(sn.key, from)) {
+                    return null;
+                }
+                final BranchNode<T, V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, instance);
+                BranchNode<T, V> nn;
+                int added = 0;
+                if (fromIdx == toIdx) {
+                    nn = rn.updatedAt(fromPos, new LeafNode<>(to, sn.value, toHash, sn.res), gen);
+                }
                 else {
-                    final long idx = (key.getAddress() >>> (64 - offset - 3)) & 0x7;
-                    bmp = cn.bitmapLow;
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    pos = Long.bitCount(bmp & mask);
+                    nn = rn.removedAt(fromIdx, fromPos, 1L << fromIdx, gen);
+                    final int toPos = nn.position(toIdx);
+                    if (!nn.isOccupied(toIdx)) {
+                        nn = nn.insertedAt(toIdx, toPos, 1L << toIdx, new LeafNode<>(to, sn.value, toHash, nn.res + nn.span), gen);
+                    }
+                    else
+                    if (nn.array[toPos] instanceof LeafNode<T, V> tn) {
+                        if (tn.hash == toHash && Objects.equals(tn.key, to)) {
+                            nn = nn.updatedAt(toPos, new LeafNode<>(to, sn.value, toHash, tn.res), gen);
+                            added = -1;
+                        }
+                        else {
+                            nn = nn.updatedAt(toPos, wrap(BranchNode.dual(tn, new LeafNode<>(to, sn.value, toHash, tn.res), gen, nn.res + nn.span, instance.getStride())), gen);
+                        }
+                    }
+                    else {
+                        return NOT_LOCAL;
+                    }
+                }
+                // the node may shrink to a single leaf if the new key replaced an existing one
+                if (!setGCAS(cn, nn.toContracted(), added, instance)) {
+                    return RESTART;
+                }
+                if (parent != null && getGCAS(instance) instanceof TombstoneNode<T, V> tn) {
+                    cleanParent(tn, parent, instance, fromHash, startgen);
                 }
+                return sn.value;
+            }
+            else
+            if (m instanceof TombstoneNode<T, V>) {
+                clean(parent, instance);
+                return RESTART;
+            }
+            else {
+                // keys in a collision list are moved the generic way
+                return NOT_LOCAL;
+            }
+        }
+    }
 
-                if ((bmp & flag) == 0) {
+    /**
+     * Slow path of a move, called on the root. Moves `from[i]` to `to[i]` for all `i` as a single atomic update: the
+     * new main nodes of all the wrappers involved are installed at once by a {@link MoveDescriptor}, so neither a
+     * reader nor a snapshot ever sees a value under both keys or under none of them.
+     *
+     * @return values of the `from` keys, null for absent ones, or RESTART if the operation must be restarted from the
+     * root
+     */
+    public final Object moveAllInternal(final H3CellId<T>[] from, final H3CellId<T>[] to, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+        return new MoveBatch<>(this, startgen, instance).apply(from, to);
+    }
+
+    /**
+     * Batch counterpart of {@link #removeInternal}. Removes a range of keys sorted in trie order: all the leaves of
+     * this node matching the keys are dropped with a single GCAS, the rest of the keys are passed below afterwards.
+     *
+     * @param done marks the keys whose removal has been committed or which were found absent, they must not be
+     *             removed once again after concurrent updates when the operation is restarted
+     * @return false if the operation must be restarted from the root for the keys that are not marked as done
+     */
+    public final boolean removeAllInternal(final H3CellId<T>[] keys, final int from, final int to, final NodeWrapper<T, V> parent, final Gen startgen, final BitSet done, final SpatialConcurrentTrieMap<T, V> instance) {
+        while (true) {
+            BaseNode<T, V> m = getGCAS(instance);
+            if (m instanceof BranchNode<T, V> cn) {
+                // keys are sorted, so the ones sharing the skipped cells form a contiguous range, the rest are absent
+                int first = from;
+                int last = to;
+                while (first < last && !cn.matches(keys[first].getAddress())) {
+                    first += 1;
+                }
+                while (last > first && !cn.matches(keys[last - 1].getAddress())) {
+                    last -= 1;
+                }
+                final BaseNode[] narr = new BaseNode[cn.array.length];
+                final NodeWrapper[] below = new NodeWrapper[Math.min(cn.array.length, last - first)];
+                final int[] bounds = new int[below.length * 2];
+                long bitmapLow = cn.bitmapLow;
+                long bitmapHigh = cn.bitmapHigh;
+                boolean renew = false;
+                boolean changed = false;
+                int removed = 0;
+                int len = 0;
+                int pos = 0;
+                int nbelow = 0;
+                int i = first;
+                while (i < last && !renew) {
+                    final int idx = cn.index(keys[i].getAddress());
+                    int j = i + 1;
+                    while (j < last && cn.index(keys[j].getAddress()) == idx) {
+                        j += 1;
+                    }
+                    if (cn.isOccupied(idx)) {
+                        final int slot = cn.position(idx);
+                        while (pos < slot) {
+                            narr[len++] = cn.array[pos++];
+                        }
+                        final BaseNode<T, V> sub = cn.array[pos++];
+                        if (sub instanceof NodeWrapper<T, V> in) {
+                            renew = startgen != in.gen;
+                            below[nbelow] = in;
+                            bounds[nbelow * 2] = i;
+                            bounds[nbelow * 2 + 1] = j;
+                            nbelow += 1;
+                            narr[len++] = in;
+                        }
+                        else
+                        if (sub instanceof LeafNode<T, V> sn) {
+                            boolean found = false;
+                            for (int k = i; k < j && !found; k++) {
+                                found = sn.hash == keys[k].getAddress() && Objects.equals(sn.key, keys[k]);
+                            }
+                            if (found) {
+                                if (idx >= 64) {
+                                    bitmapHigh ^= 1L << idx;
+                                }
+                                else {
+                                    bitmapLow ^= 1L << idx;
+                                }
+                                removed += 1;
+                                changed = true;
+                            }
+                            else {
+                                narr[len++] = sn;
+                            }
+                        }
+                    }
+                    i = j;
+                }
+
+                if (renew) {
+                    if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
+                        continue;
+                    }
+                    else {
+                        return false;
+                    }
+                }
+                if (changed) {
+                    while (pos < cn.array.length) {
+                        narr[len++] = cn.array[pos++];
+                    }
+                    final BaseNode<T, V> ncn = new BranchNode<T, V>(bitmapLow, bitmapHigh, Arrays.copyOf(narr, len), gen, cn.res, cn.span, cn.skip, cn.prefix).toContracted();
+                    if (!setGCAS(cn, ncn, -removed, instance)) {
+                        return false;
+                    }
+                }
+                markDone(done, from, to, bounds, nbelow);
+                for (int k = 0; k < nbelow; k++) {
+                    if (!below[k].removeAllInternal(keys, bounds[k * 2], bounds[k * 2 + 1], this, startgen, done, instance)) {
+                        return false;
+                    }
+                }
+                if (parent != null) { // never tomb at root
+                    BaseNode<T, V> n = getGCAS(instance);
+                    if (n instanceof TombstoneNode<T, V>) {
+                        cleanParent(n, parent, instance, keys[from].getAddress(), startgen);
+                    }
+                }
+                return true;
+            }
+            else
+            if (m instanceof TombstoneNode<T, V>) {
+                clean(parent, instance);
+                return false;
+            }
+            else
+            if (m instanceof CollisionAwareNode<T, V> ln) {
+                BaseNode<T, V> nn = ln.removedAll(keys, from, to, gen);
+                if (nn == ln || setGCAS(ln, nn, entries(nn) - entries(ln), instance)) {
+                    done.set(from, to);
+                    return true;
+                }
+                else {
+                    return false;
+                }
+            }
+
+            throw new RuntimeException ("Should not happen");
+        }
+    }
+
+    /**
+     * Looks up the value associated with the key.
+     *
+     * @return null if no value has been found, RESTART if the operation
+     *         wasn't successful, or any other value otherwise
+     */
+    public final Object lookupInternal(final H3CellId<T> key, NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+        return lookupInternal(key.getAddress(), key.getBusinessEntityId(), parent, startgen, instance);
+    }
+
+    /**
+     * Same as {@link #lookupInternal(H3CellId, NodeWrapper, Gen, SpatialConcurrentTrieMap)}, but navigates
+     * the trie using a raw cell address, so no key instance is required
+     */
+    public final Object lookupInternal(final long address, final T entityId, NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+        while (true) {
+            BaseNode<T, V> m = getGCAS(instance); // use -Yinline!
+            if (m instanceof BranchNode<T, V> cn) {
+                // 1) a multinode
+                if (!cn.matches(address)) {
+                    return null; // 1a) the key leaves the skipped cells
+                }
+                final int idx = cn.index(address);
+                final int pos = cn.position(idx);
+
+                if (!cn.isOccupied(idx)) {
                     return null; // 1a) bitmap shows no binding
                 }
                 else { // 1b) bitmap contains a value - descend
                     final BaseNode<T, V> sub = cn.array[pos];
                     if (sub instanceof NodeWrapper<T, V> in) {
                         if (instance.isReadOnly() || (startgen == in.gen)) {
-                            return in.lookupInternal(key, (cn.res == 0 ) ? offset : offset + 3, this, startgen, instance);
+                            return in.lookupInternal(address, entityId, this, startgen, instance);
                         }
                         else {
                             if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
@@ -659,7 +1094,7 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
                     else
                     if (sub instanceof LeafNode<T, V> sn) {
                         // 2) singleton node
-                        if (sn.hash == key.getAddress() && Objects.equals(sn.key, key)) {
+                        if (sn.hash == address && sn.key.matches(address, entityId)) {
                             return sn.value;
                         }
                         else {
@@ -671,12 +1106,13 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
             else
             if (m instanceof TombstoneNode<T, V> tn) {
                 // 3) non-live node
-                return cleanReadOnly(tn, offset, parent, instance, key, key.getAddress());
+                return cleanReadOnly(tn, parent, instance, address, entityId);
             }
             else
             if (m instanceof CollisionAwareNode<T, V> can) {
                 // 5) an l-node
-                return can.get(key).orElse(null);
+                final H3CellId<T> key = can.find(address, entityId);
+                return key == null ? null : can.get(key).orElse(null);
             }
 
             throw new RuntimeException ("Should not happen");
@@ -720,63 +1156,496 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
         return wrap(br.insertedAt(idx, pos, flag, tn, gen));
     }
 
+    /**
+     * Passes every entry below this node to the consumer. This should only be called from within read-only snapshots.
+     */
+    public void forEachInternal(final BiConsumer<? super H3CellId<T>, ? super V> consumer, final SpatialConcurrentTrieMap<T, V> instance) {
+        final BaseNode<T, V> m = getGCAS(instance);
+        if (m instanceof BranchNode<T, V> cn) {
+            for (BaseNode<T, V> sub : cn.array) {
+                if (sub instanceof LeafNode<T, V> sn) {
+                    consumer.accept(sn.key, sn.value);
+                }
+                else
+                if (sub instanceof NodeWrapper<T, V> in) {
+                    in.forEachInternal(consumer, instance);
+                }
+            }
+        }
+        else
+        if (m instanceof TombstoneNode<T, V> tn) {
+            consumer.accept(tn.key, tn.value);
+        }
+        else
+        if (m instanceof CollisionAwareNode<T, V> can) {
+            can.bucket.forEach(consumer);
+        }
+    }
+
+    // passes every entry of the slots of a wide node covered by a cell ending within its cells to the consumer, whole
+    // subtrees in the slots are passed to `subtrees`
+    private static <T, V> void forEachInSlots(final BranchNode<T, V> cn, final long address, final int resolution, final BiConsumer<? super H3CellId<T>, ? super V> consumer, final Consumer<NodeWrapper<T, V>> subtrees) {
+        final int rest = 3 * (cn.res + cn.span - 1 - resolution);
+        final int from = (cn.index(address) >>> rest) << rest;
+        final int end = cn.position(from + (1 << rest));
+        for (int pos = cn.position(from); pos < end; pos++) {
+            final BaseNode<T, V> sub = cn.array[pos];
+            if (sub instanceof LeafNode<T, V> sn) {
+                consumer.accept(sn.key, sn.value);
+            }
+            else
+            if (sub instanceof NodeWrapper<T, V> wrapper) {
+                subtrees.accept(wrapper);
+            }
+        }
+    }
+
+    /**
+     * Multi-cell counterpart of {@link #forEachWithinInternal(long, int, BiConsumer, SpatialConcurrentTrieMap)}.
+     * Visits a range of disjoint cells sorted in trie order in a single descent: cells falling into the same slot are
+     * passed below together, so nodes shared by several cells are visited once. Only keys of `minResolutions[i]` or
+     * finer are within a cell `cells[i]`, that is how a parent standing for a group of its children excludes keys of
+     * its own resolution. This should only be called from within read-only snapshots.
+     */
+    public void forEachWithinInternal(final long[] cells, final int[] minResolutions, final int from, final int to, final BiConsumer<? super H3CellId<T>, ? super V> consumer, final SpatialConcurrentTrieMap<T, V> instance) {
+        final BaseNode<T, V> m = getGCAS(instance);
+        if (m instanceof BranchNode<T, V> cn) {
+            int i = from;
+            while (i < to) {
+                final long address = cells[i];
+                final int resolution = H3CellId.resolution(address);
+                if (resolution < cn.res) {
+                    // the cell ends within the skipped cells, as cells are disjoint no other cell may share this node
+                    final long mask = BranchNode.cellsMask(cn.res - cn.skip, resolution + 1);
+                    if ((address & mask) == (cn.prefix & mask)) {
+                        forEachInternal(bounded(consumer, resolution, minResolutions[i]), instance);
+                        return;
+                    }
+                    i += 1;
+                }
+                else
+                if (!cn.matches(address)) {
+                    i += 1;
+                }
+                else
+                if (resolution < cn.res + cn.span - 1) {
+                    final BiConsumer<? super H3CellId<T>, ? super V> bounded = bounded(consumer, resolution, minResolutions[i]);
+                    forEachInSlots(cn, address, resolution, bounded, wrapper -> wrapper.forEachInternal(bounded, instance));
+                    i += 1;
+                }
+                else {
+                    final int idx = cn.index(address);
+                    // cells are sorted, so cells sharing a slot come in a group
+                    int j = i + 1;
+                    while (j < to && cn.matches(cells[j]) && H3CellId.resolution(cells[j]) >= cn.res + cn.span - 1 && cn.index(cells[j]) == idx) {
+                        j += 1;
+                    }
+                    if (cn.isOccupied(idx)) {
+                        final BaseNode<T, V> sub = cn.array[cn.position(idx)];
+                        if (sub instanceof NodeWrapper<T, V> wrapper) {
+                            if (resolution == cn.res + cn.span - 1) {
+                                wrapper.forEachInternal(bounded(consumer, resolution, minResolutions[i]), instance);
+                            }
+                            else {
+                                wrapper.forEachWithinInternal(cells, minResolutions, i, j, consumer, instance);
+                            }
+                        }
+                        else
+                        if (sub instanceof LeafNode<T, V> sn) {
+                            if (isWithinAny(sn.hash, cells, minResolutions, i, j)) {
+                                consumer.accept(sn.key, sn.value);
+                            }
+                        }
+                    }
+                    i = j;
+                }
+            }
+        }
+        else
+        if (m instanceof TombstoneNode<T, V> tn) {
+            if (isWithinAny(tn.hash, cells, minResolutions, from, to)) {
+                consumer.accept(tn.key, tn.value);
+            }
+        }
+        else
+        if (m instanceof CollisionAwareNode<T, V> can) {
+            can.bucket.forEach((k, v) -> {
+                if (isWithinAny(k.getAddress(), cells, minResolutions, from, to)) {
+                    consumer.accept(k, v);
+                }
+            });
+        }
+    }
+
+    private static boolean isWithinAny(final long address, final long[] cells, final int[] minResolutions, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (H3CellId.resolution(address) >= minResolutions[i] && H3CellId.isWithin(address, cells[i], H3CellId.resolution(cells[i]))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // drops keys coarser than `minResolution` when it is finer than the resolution of a cell being visited as a whole
+    private static <T, V> BiConsumer<? super H3CellId<T>, ? super V> bounded(final BiConsumer<? super H3CellId<T>, ? super V> consumer, final int resolution, final int minResolution) {
+        if (minResolution <= resolution) {
+            return consumer;
+        }
+        else {
+            return (k, v) -> {
+                if (k.getResolution() >= minResolution) {
+                    consumer.accept(k, v);
+                }
+            };
+        }
+    }
+
+    /**
+     * Passes every entry within a cell of the given resolution to the consumer. Unlike {@link #subTreeInternal} no
+     * nodes are created on the way: the descent stops at the node holding the cell and only its part belonging to the
+     * cell is visited. This should only be called from within read-only snapshots.
+     */
+    public void forEachWithinInternal(final long address, final int resolution, final BiConsumer<? super H3CellId<T>, ? super V> consumer, final SpatialConcurrentTrieMap<T, V> instance) {
+        forEachWithinInternal(address, resolution, consumer, wrapper -> wrapper.forEachInternal(consumer, instance), instance);
+    }
+
+    /**
+     * Same as {@link #forEachWithinInternal(long, int, BiConsumer, SpatialConcurrentTrieMap)}, but subtrees lying
+     * entirely within the cell are passed to `subtrees` instead of being visited, e.g. to be visited in parallel.
+     * Entries met on the way down are passed to the consumer.
+     */
+    public void forEachWithinInternal(final long address, final int resolution, final BiConsumer<? super H3CellId<T>, ? super V> consumer, final Consumer<NodeWrapper<T, V>> subtrees, final SpatialConcurrentTrieMap<T, V> instance) {
+        NodeWrapper<T, V> in = this;
+        while (true) {
+            final BaseNode<T, V> m = in.getGCAS(instance);
+            if (m instanceof BranchNode<T, V> cn) {
+                if (resolution < cn.res) {
+                    // the cell ends within the skipped cells, so either the whole node is below it or nothing is
+                    final long mask = BranchNode.cellsMask(cn.res - cn.skip, resolution + 1);
+                    if ((address & mask) == (cn.prefix & mask)) {
+                        subtrees.accept(in);
+                    }
+                    return;
+                }
+                if (!cn.matches(address)) {
+                    return;
+                }
+                if (resolution < cn.res + cn.span - 1) {
+                    // the cell ends within the cells of a wide node, so it covers a range of its slots
+                    forEachInSlots(cn, address, resolution, consumer, subtrees);
+                    return;
+                }
+                final int idx = cn.index(address);
+                if (!cn.isOccupied(idx)) {
+                    return;
+                }
+                final BaseNode<T, V> sub = cn.array[cn.position(idx)];
+                if (sub instanceof NodeWrapper<T, V> wrapper) {
+                    if (cn.res + cn.span - 1 == resolution) {
+                        subtrees.accept(wrapper);
+                        return;
+                    }
+                    in = wrapper;
+                }
+                else
+                if (sub instanceof LeafNode<T, V> sn) {
+                    if (H3CellId.isWithin(sn.hash, address, resolution)) {
+                        consumer.accept(sn.key, sn.value);
+                    }
+                    return;
+                }
+                else {
+                    return;
+                }
+            }
+            else
+            if (m instanceof TombstoneNode<T, V> tn) {
+                if (H3CellId.isWithin(tn.hash, address, resolution)) {
+                    consumer.accept(tn.key, tn.value);
+                }
+                return;
+            }
+            else
+            if (m instanceof CollisionAwareNode<T, V> can) {
+                can.bucket.forEach((k, v) -> {
+                    if (H3CellId.isWithin(k.getAddress(), address, resolution)) {
+                        consumer.accept(k, v);
+                    }
+                });
+                return;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts entries within a cell of the given resolution. Whole subtrees below the cell are not visited, their sizes
+     * are taken from the nodes, where they are computed once and cached, so this should only be called from within
+     * read-only snapshots.
+     */
+    public int countWithinInternal(final long address, final int resolution, final SpatialConcurrentTrieMap<T, V> instance) {
+        NodeWrapper<T, V> in = this;
+        while (true) {
+            final BaseNode<T, V> m = in.getGCAS(instance);
+            if (m instanceof BranchNode<T, V> cn) {
+                if (resolution < cn.res) {
+                    // the cell ends within the skipped cells, so either the whole node is below it or nothing is
+                    final long mask = BranchNode.cellsMask(cn.res - cn.skip, resolution + 1);
+                    return (address & mask) == (cn.prefix & mask) ? in.cachedSize(instance) : 0;
+                }
+                if (!cn.matches(address)) {
+                    return 0;
+                }
+                if (resolution < cn.res + cn.span - 1) {
+                    // the cell ends within the cells of a wide node, so it covers a range of its slots
+                    final int rest = 3 * (cn.res + cn.span - 1 - resolution);
+                    final int from = (cn.index(address) >>> rest) << rest;
+                    return cn.cachedSize(from, from + (1 << rest), instance);
+                }
+                final int idx = cn.index(address);
+                if (!cn.isOccupied(idx)) {
+                    return 0;
+                }
+                final BaseNode<T, V> sub = cn.array[cn.position(idx)];
+                if (sub instanceof NodeWrapper<T, V> wrapper) {
+                    if (cn.res + cn.span - 1 == resolution) {
+                        return wrapper.cachedSize(instance);
+                    }
+                    in = wrapper;
+                }
+                else
+                if (sub instanceof LeafNode<T, V> sn) {
+                    return H3CellId.isWithin(sn.hash, address, resolution) ? 1 : 0;
+                }
+                else {
+                    return 0;
+                }
+            }
+            else
+            if (m instanceof TombstoneNode<T, V> tn) {
+                return H3CellId.isWithin(tn.hash, address, resolution) ? 1 : 0;
+            }
+            else
+            if (m instanceof CollisionAwareNode<T, V> can) {
+                int sz = 0;
+                final Iterator<Map.Entry<H3CellId<T>, V>> it = can.bucket.iterator();
+                while (it.hasNext()) {
+                    if (H3CellId.isWithin(it.next().getKey().getAddress(), address, resolution)) {
+                        sz += 1;
+                    }
+                }
+                return sz;
+            }
+            else {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Same as countWithinInternal, but aggregates values of the entries within the cell instead of counting them
+     */
+    public <A> A aggregateWithinInternal(final long address, final int resolution, final Aggregator<? super V, A> aggregator, final SpatialConcurrentTrieMap<T, V> instance) {
+        NodeWrapper<T, V> in = this;
+        while (true) {
+            final BaseNode<T, V> m = in.getGCAS(instance);
+            if (m instanceof BranchNode<T, V> cn) {
+                if (resolution < cn.res) {
+                    final long mask = BranchNode.cellsMask(cn.res - cn.skip, resolution + 1);
+                    return (address & mask) == (cn.prefix & mask) ? in.cachedAggregate(aggregator, instance) : aggregator.identity();
+                }
+                if (!cn.matches(address)) {
+                    return aggregator.identity();
+                }
+                if (resolution < cn.res + cn.span - 1) {
+                    final int rest = 3 * (cn.res + cn.span - 1 - resolution);
+                    final int from = (cn.index(address) >>> rest) << rest;
+                    return cn.cachedAggregate(cn.position(from), cn.position(from + (1 << rest)), aggregator, instance);
+                }
+                final int idx = cn.index(address);
+                if (!cn.isOccupied(idx)) {
+                    return aggregator.identity();
+                }
+                final BaseNode<T, V> sub = cn.array[cn.position(idx)];
+                if (sub instanceof NodeWrapper<T, V> wrapper) {
+                    if (cn.res + cn.span - 1 == resolution) {
+                        return wrapper.cachedAggregate(aggregator, instance);
+                    }
+                    in = wrapper;
+                }
+                else
+                if (sub instanceof LeafNode<T, V> sn) {
+                    return H3CellId.isWithin(sn.hash, address, resolution) ? aggregator.of(sn.value) : aggregator.identity();
+                }
+                else {
+                    return aggregator.identity();
+                }
+            }
+            else
+            if (m instanceof TombstoneNode<T, V> tn) {
+                return H3CellId.isWithin(tn.hash, address, resolution) ? aggregator.of(tn.value) : aggregator.identity();
+            }
+            else
+            if (m instanceof CollisionAwareNode<T, V> can) {
+                return aggregate(can, address, resolution, aggregator);
+            }
+            else {
+                return aggregator.identity();
+            }
+        }
+    }
+
+    /**
+     * Passes the number of entries within every non-empty cell of `cellResolution` within a cell of `resolution` to the
+     * visitor. The trie is descended down to `cellResolution` only, counts of deeper subtrees are cached sizes, so this
+     * should only be called from within read-only snapshots. `path` holds cells of the keys below this node known so far.
+     * Cells are passed in trie order, but a cell may be passed several times in a row, once per subtree it is split into.
+     */
+    public void countCellsInternal(final long path, final long address, final int resolution, final int cellResolution, final CellCountVisitor visitor, final SpatialConcurrentTrieMap<T, V> instance) {
+        final BaseNode<T, V> m = getGCAS(instance);
+        if (m instanceof BranchNode<T, V> cn) {
+            final long npath = path | cn.prefix;
+            if (!sharesCells(npath, address, Math.min(cn.res - 1, resolution)) || hasUnusedCell(npath, Math.min(cn.res - 1, cellResolution))) {
+                return;
+            }
+            if (cn.res - 1 >= cellResolution) {
+                // keys below share cells down to this node, so they are all within a single cell
+                visitor.accept(cell(npath, cellResolution), cachedSize(instance));
+                return;
+            }
+            final int known = cn.res + cn.span - 1;
+            int pos = 0;
+            for (int half = 0; half < 2; half++) {
+                long bmp = half == 0 ? cn.bitmapLow : cn.bitmapHigh;
+                while (bmp != 0) {
+                    final int idx = 64 * half + Long.numberOfTrailingZeros(bmp);
+                    bmp &= bmp - 1;
+                    final BaseNode<T, V> sub = cn.array[pos++];
+                    final long spath = cn.res == 0 ? npath | (long) idx << 45 : npath | (long) idx << (48 - 3 * (cn.res + cn.span));
+                    if (sub instanceof LeafNode<T, V> sn) {
+                        countCell(sn.hash, address, resolution, cellResolution, visitor);
+                    }
+                    else
+                    if (sub instanceof NodeWrapper<T, V> wrapper) {
+                        if (known < cellResolution) {
+                            wrapper.countCellsInternal(spath, address, resolution, cellResolution, visitor, instance);
+                        }
+                        else
+                        if (sharesCells(spath, address, resolution) && !hasUnusedCell(spath, cellResolution)) {
+                            visitor.accept(cell(spath, cellResolution), wrapper.cachedSize(instance));
+                        }
+                    }
+                }
+            }
+        }
+        else
+        if (m instanceof TombstoneNode<T, V> tn) {
+            countCell(tn.hash, address, resolution, cellResolution, visitor);
+        }
+        else
+        if (m instanceof CollisionAwareNode<T, V> can) {
+            // keys of a collision list may be of different cells and are not kept in trie order, so their cells are
+            // sorted to be passed in a row
+            final long[] cells = new long[can.bucket.size()];
+            int len = 0;
+            final Iterator<Map.Entry<H3CellId<T>, V>> it = can.bucket.iterator();
+            while (it.hasNext()) {
+                final long hash = it.next().getKey().getAddress();
+                if (H3CellId.isWithin(hash, address, resolution) && H3CellId.resolution(hash) >= cellResolution) {
+                    cells[len++] = H3CellId.trimToResolution(hash, cellResolution);
+                }
+            }
+            Arrays.sort(cells, 0, len);
+            for (int i = 0; i < len; i++) {
+                visitor.accept(cells[i], 1);
+            }
+        }
+    }
+
+    private static void countCell(final long hash, final long address, final int resolution, final int cellResolution, final CellCountVisitor visitor) {
+        if (H3CellId.isWithin(hash, address, resolution) && H3CellId.resolution(hash) >= cellResolution) {
+            visitor.accept(H3CellId.trimToResolution(hash, cellResolution), 1);
+        }
+    }
+
+    // checks whether the path shares the base cell and cells down to `resolution` with the address, nothing is
+    // known about the path at a negative resolution
+    private static boolean sharesCells(final long path, final long address, final int resolution) {
+        return resolution < 0 || ((path ^ address) & ((0x7FL << 45) | BranchNode.cellsMask(1, resolution + 1))) == 0;
+    }
+
+    // unused cell (7) at some resolution means keys are coarser than that resolution
+    private static boolean hasUnusedCell(final long path, final int resolution) {
+        for (int r = 1; r <= resolution; r++) {
+            if (H3CellId.cell(path, r) == 7) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // an address of the cell of `resolution` the path lies within
+    private static long cell(final long path, final int resolution) {
+        return H3CellId.trimToResolution((1L << 59) | (15L << 52) | path, resolution);
+    }
+
     /**
      * Looks up the node at specified resolution
      *
      * @return null if no value has been found, RESTART if the operation
      *         wasn't successful, or any other value otherwise
      */
-    public Object subTreeInternal(final H3CellId<T> key, int offset, final int resolution, NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
+    public Object subTreeInternal(final H3CellId<T> key, NodeWrapper<T, V> parent, final Gen startgen, final SpatialConcurrentTrieMap<T, V> instance) {
         while (true) {
             BaseNode<T, V> m = getGCAS(instance); // use -Yinline!
             if (m instanceof BranchNode<T, V> cn) {
                 // 1) a multinode
-                int pos;
-                long flag;
-                final long bmp;
-                if (cn.res == 0) {
-                    final int idx = key.getBaseCell();
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    if (idx >= 64) {
-                        pos = Long.bitCount(cn.bitmapLow) + Long.bitCount(cn.bitmapHigh & mask);
-                        bmp = cn.bitmapHigh;
-                    }
-                    else {
-                        pos = Long.bitCount(cn.bitmapLow & mask);
-                        bmp = cn.bitmapLow;
-                    }
+                final long address = key.getAddress();
+                final int resolution = key.getResolution();
+                if (resolution < cn.res) {
+                    // the search key ends within the skipped cells, so either the whole node is below it or nothing is
+                    final long mask = BranchNode.cellsMask(cn.res - cn.skip, resolution + 1);
+                    return (address & mask) == (cn.prefix & mask) ? this : null;
                 }
-                else {
-                    final long idx = (key.getAddress() >>> (64 - offset - 3)) & 0x7;
-                    bmp = cn.bitmapLow;
-                    flag = 1L << idx;
-                    final long mask = flag - 1;
-                    pos = Long.bitCount(bmp & mask);
+                if (!cn.matches(address)) {
+                    return null; // 1a) the key leaves the skipped cells
+                }
+                if (resolution < cn.res + cn.span - 1) {
+                    // the search key ends within the cells of a wide node, so only a part of its slots is below it
+                    final BranchNode<T, V> fn = cn.filtered(address, resolution, cn.gen);
+                    return fn == null ? null : new NodeWrapper<>(fn, cn.gen);
                 }
+                final int idx = cn.index(address);
+                final int pos = cn.position(idx);
 
-                if ((bmp & flag) == 0) {
+                if (!cn.isOccupied(idx)) {
                     return null; // 1a) bitmap shows no binding
                 }
                 else { // 1b) bitmap contains a value - descend
                     final BaseNode<T, V> sub = cn.array[pos];
                     if (sub instanceof NodeWrapper<T, V> in) {
-                        if (resolution == key.getResolution()) {
+                        if (cn.res + cn.span - 1 == resolution) {
                             return sub;
                         }
                         else
                         if (instance.isReadOnly() || (startgen == in.gen)) {
-                            return in.subTreeInternal(key, (cn.res == 0) ? offset : offset + 3, resolution + 1, this, startgen, instance);
+                            return in.subTreeInternal(key, this, startgen, instance);
                         }
                         else
-                        if (!setGCAS(cn, cn.renewed(startgen, instance), instance)) {
+                        if (setGCAS(cn, cn.renewed(startgen, instance), instance)) {
+                            // Tailrec
+                            continue;
+                        }
+                        else {
                             return RESTART;
                         }
                     }
                     else
                     if (sub instanceof LeafNode<T, V> sn) {
                         // 2) singleton node check if path prefix the same
-                        return checkAndWrap(key, sn.key, resolution, sn);
+                        return checkAndWrap(key, sn.key, cn.res, sn);
                     }
                     else {
                         return null;
@@ -786,23 +1655,23 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
             else
             if (m instanceof TombstoneNode<T, V> tn) {
                 // 3) non-live node
-                var res = cleanReadOnly(tn, offset, parent, instance, key, key.getAddress());
+                var res = cleanReadOnly(tn, parent, instance, key.getAddress(), key.getBusinessEntityId());
                 if (res == null || res instanceof Condition) {
                     return res;
                 }
                 else {
-                    return checkAndWrap(key, tn.key, resolution, tn);
+                    return checkAndWrap(key, tn.key, tn.res, tn);
                 }
             }
             else
             if (m instanceof CollisionAwareNode<T, V> can) {
                 // 5) an l-node
-                if (can.listmap.isEmpty()) {
+                if (can.bucket.isEmpty()) {
                     return null;
                 }
                 else {
-                    var kv = can.listmap.iterator().next();
-                    return checkAndWrap(key, kv.getKey(), resolution, can);
+                    var kv = can.bucket.iterator().next();
+                    return checkAndWrap(key, kv.getKey(), can.res, can);
                 }
             }
 
@@ -810,13 +1679,13 @@ public class NodeWrapper<T, V> extends BaseNode<T, V> {
         }
     }
 
-    private Object cleanReadOnly(final TombstoneNode<T, V> tn, final int offset, final NodeWrapper<T, V> parent, final SpatialConcurrentTrieMap<T, V> ct, H3CellId<T> k, long hc) {
+    private Object cleanReadOnly(final TombstoneNode<T, V> tn, final NodeWrapper<T, V> parent, final SpatialConcurrentTrieMap<T, V> ct, long hc, T entityId) {
         if (!ct.isReadOnly()) {
-            clean(parent, ct, offset - 3);
+            clean(parent, ct);
             return RESTART;
         }
         else {
-            if (tn.hash == hc && Objects.equals(tn.key, k)) {
+            if (tn.hash == hc && tn.key.matches(hc, entityId)) {
                 return tn.value;
             }
             else {
@@ -0,0 +1,212 @@
+package com.github.lonelylockley.spatial;
+
+import com.github.lonelylockley.spatial.ctrie.H3CellId;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestCoalescingIngestor extends TestBase<String> {
+
+    private static final int ENTITIES = 1000;
+
+    private LocationTracker<String, Integer> startTracking() {
+        final var trk = new LocationTracker<String, Integer>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 10, String.valueOf(i));
+            trk.startTracking(cellId.getCellId(), cellId.getBusinessEntityId(), i);
+        }
+        return trk;
+    }
+
+    @Test
+    public void testLastWriteWins() {
+        final var trk = startTracking();
+        final var latest = new HashMap<String, H3CellId<String>>();
+        final var ingestor = new CoalescingIngestor<>(trk, ENTITIES, ENTITIES, Duration.ofHours(1));
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < ENTITIES / 2; i++) {
+                final var cellId = generateNonRandomCellFullRes(i % 20, String.valueOf(i));
+                Assert.assertTrue(ingestor.offer(cellId.getBusinessEntityId(), cellId));
+                latest.put(cellId.getBusinessEntityId(), cellId);
+            }
+        }
+        Assert.assertTrue(ingestor.offer("unknown", generateNonRandomCellFullRes(0, "unknown")));
+        ingestor.close();
+        Assert.assertEquals(ingestor.getAccepted(), 5 * ENTITIES / 2 + 1);
+        Assert.assertEquals(ingestor.getUntracked(), 1);
+        Assert.assertEquals(ingestor.getApplied() + ingestor.getMerged() + ingestor.getUntracked(), ingestor.getAccepted());
+        Assert.assertFalse(trk.isTracking("unknown"));
+        Assert.assertEquals(ingestor.getPending(), 0);
+        for (int i = 0; i < ENTITIES / 2; i++) {
+            final var id = String.valueOf(i);
+            Assert.assertEquals(trk.getLocation(id), latest.get(id));
+            Assert.assertEquals(trk.getValue(id), i);
+        }
+        Assert.assertFalse(ingestor.offer("0", latest.get("0")));
+        Assert.assertEquals(ingestor.getDropped(), 1);
+    }
+
+    @Test
+    public void testDrainedByInterval() throws InterruptedException {
+        final var trk = startTracking();
+        final var cellId = generateNonRandomCellFullRes(42, "7");
+        try (var ingestor = new CoalescingIngestor<>(trk, 100, 100, Duration.ofMillis(10))) {
+            Assert.assertTrue(ingestor.offer("7", cellId));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!cellId.equals(trk.getLocation("7")) && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(trk.getLocation("7"), cellId);
+            Assert.assertTrue(ingestor.getBatches() > 0);
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final var trk = startTracking();
+        final var ingestor = new CoalescingIngestor<>(trk, 50, 200, Duration.ofMillis(1));
+        final ExecutorService es = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < 20000; j++) {
+                    final int i = threadNo + 4 * (j % (ENTITIES / 4));
+                    final var cellId = generateNonRandomCellFullRes(j % 122, String.valueOf(i));
+                    ingestor.offer(cellId.getBusinessEntityId(), cellId);
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        ingestor.close();
+        Assert.assertEquals(ingestor.getAccepted() + ingestor.getDropped(), 80000);
+        Assert.assertEquals(ingestor.getApplied() + ingestor.getMerged(), ingestor.getAccepted());
+        // the index and the trie agree on every entity
+        for (int i = 0; i < ENTITIES; i++) {
+            final var id = String.valueOf(i);
+            Assert.assertEquals(trk.getValue(id), i);
+        }
+        Assert.assertEquals(trk.getAllBusinessEntitiesLocations().size(), ENTITIES);
+    }
+
+    @Test
+    public void testOffersRacingClose() throws InterruptedException {
+        final var trk = startTracking();
+        final var ingestor = new CoalescingIngestor<>(trk, 10, ENTITIES, Duration.ofMillis(1));
+        final var latest = new ArrayList<Map<String, H3CellId<String>>>();
+        final ExecutorService es = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int threadNo = t;
+            final var accepted = new HashMap<String, H3CellId<String>>();
+            latest.add(accepted);
+            es.execute(() -> {
+                for (int j = 0; j < 50000; j++) {
+                    final int i = threadNo + 4 * (j % (ENTITIES / 4));
+                    final var cellId = generateNonRandomCellFullRes(j % 122, String.valueOf(i));
+                    if (ingestor.offer(cellId.getBusinessEntityId(), cellId)) {
+                        accepted.put(cellId.getBusinessEntityId(), cellId);
+                    }
+                }
+            });
+        }
+        Thread.sleep(5);
+        ingestor.close();
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        // an update accepted concurrently with close() is drained by close() too
+        Assert.assertEquals(ingestor.getPending(), 0);
+        Assert.assertEquals(ingestor.getApplied() + ingestor.getMerged(), ingestor.getAccepted());
+        for (Map<String, H3CellId<String>> accepted : latest) {
+            for (Map.Entry<String, H3CellId<String>> e : accepted.entrySet()) {
+                Assert.assertEquals(trk.getLocation(e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    @Test(timeOut = 60000L)
+    public void testFlushUnderSteadyOffers() throws InterruptedException {
+        final var trk = startTracking();
+        final var ingestor = new CoalescingIngestor<>(trk, 10, ENTITIES, Duration.ofHours(1));
+        final var stop = new AtomicBoolean(false);
+        final var producer = new Thread(() -> {
+            for (int j = 0; !stop.get(); j++) {
+                final var cellId = generateNonRandomCellFullRes(j % 122, String.valueOf(j % ENTITIES));
+                ingestor.offer(cellId.getBusinessEntityId(), cellId);
+            }
+        });
+        producer.start();
+        try {
+            // every flush drains the entities waiting when it starts and returns, although new ones keep coming
+            for (int k = 0; k < 100; k++) {
+                Assert.assertTrue(ingestor.flush() <= ENTITIES);
+            }
+        }
+        finally {
+            stop.set(true);
+            producer.join();
+        }
+        ingestor.close();
+        Assert.assertEquals(ingestor.getPending(), 0);
+        Assert.assertEquals(ingestor.getApplied() + ingestor.getMerged(), ingestor.getAccepted());
+    }
+
+    @Test
+    public void testCloseWhenInterrupted() {
+        final var trk = startTracking();
+        final var cellId = generateNonRandomCellFullRes(42, "7");
+        final var ingestor = new CoalescingIngestor<>(trk, 100, 100, Duration.ofHours(1));
+        Assert.assertTrue(ingestor.offer("7", cellId));
+        Thread.currentThread().interrupt();
+        ingestor.close();
+        // the rest is drained all the same and the interrupt is kept for the caller
+        Assert.assertTrue(Thread.interrupted());
+        Assert.assertEquals(ingestor.getPending(), 0);
+        Assert.assertEquals(trk.getLocation("7"), cellId);
+    }
+
+    @Test
+    public void testDrainerSurvivesFailure() throws InterruptedException {
+        final var fail = new AtomicBoolean(true);
+        final var trk = new LocationTracker<String, Integer>() {
+            @Override
+            public Set<String> updateLocations(final Map<String, H3CellId<String>> updates) {
+                if (fail.getAndSet(false)) {
+                    throw new IllegalStateException("Tracker is unavailable");
+                }
+                return super.updateLocations(updates);
+            }
+        };
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 10, String.valueOf(i));
+            trk.startTracking(cellId.getCellId(), cellId.getBusinessEntityId(), i);
+        }
+        final var lost = generateNonRandomCellFullRes(42, "1");
+        final var cellId = generateNonRandomCellFullRes(42, "2");
+        try (var ingestor = new CoalescingIngestor<>(trk, 1, 100, Duration.ofMillis(10))) {
+            Assert.assertTrue(ingestor.offer("1", lost));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (ingestor.getFailed() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(ingestor.getFailed(), 1);
+            Assert.assertTrue(ingestor.getLastFailure() instanceof IllegalStateException);
+            // the drainer goes on with the next batch
+            Assert.assertTrue(ingestor.offer("2", cellId));
+            while (!cellId.equals(trk.getLocation("2")) && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(trk.getLocation("2"), cellId);
+            Assert.assertNotEquals(trk.getLocation("1"), lost);
+            Assert.assertEquals(ingestor.getApplied() + ingestor.getMerged() + ingestor.getFailed(), ingestor.getAccepted());
+        }
+    }
+}
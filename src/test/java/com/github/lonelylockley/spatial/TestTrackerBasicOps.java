@@ -5,6 +5,12 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class TestTrackerBasicOps extends TestBase<String> {
 
@@ -119,6 +125,118 @@ public class TestTrackerBasicOps extends TestBase<String> {
         Assert.assertNull(trk.getValue(tracked.getBusinessEntityId()));
     }
 
+    @Test
+    public void testSkipSameCellUpdates() {
+        var trk = new LocationTracker<String, Integer>();
+        var tracked = generateNonRandomCellFullRes(5, "test");
+        trk.startTracking(tracked.getCellId(), tracked.getBusinessEntityId(), 42);
+        Assert.assertTrue(trk.updateLocation(tracked.getBusinessEntityId(), new H3CellId<>(tracked.getAddress(), "test")));
+        trk.updateValue(tracked.getBusinessEntityId(), 42);
+        Assert.assertEquals(trk.getSkippedUpdates(), 2);
+        Assert.assertEquals(trk.getLocation(tracked.getBusinessEntityId()), tracked);
+        Assert.assertEquals(trk.getValue(tracked.getBusinessEntityId()), 42);
+
+        trk.updateValue(tracked.getBusinessEntityId(), 43);
+        var newLocation = generateNonRandomCellFullRes(6, "test");
+        Assert.assertTrue(trk.updateLocation(tracked.getBusinessEntityId(), newLocation));
+        Assert.assertEquals(trk.getSkippedUpdates(), 2);
+        Assert.assertEquals(trk.getLocation(tracked.getBusinessEntityId()), newLocation);
+        Assert.assertEquals(trk.getValue(tracked.getBusinessEntityId()), 43);
+        Assert.assertFalse(trk.updateLocation("unknown", newLocation));
+    }
+
+    @Test
+    public void testUpdateLocations() {
+        var trk = new LocationTracker<String, Integer>();
+        var tracked = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 1000; i++) {
+            var cellId = generateNonRandomCellFullRes(i % 10, String.valueOf(i));
+            trk.startTracking(cellId.getCellId(), cellId.getBusinessEntityId(), i);
+            tracked.add(cellId);
+        }
+        var updates = new LinkedHashMap<String, H3CellId<String>>();
+        for (int i = 0; i < 1000; i += 2) {
+            var id = String.valueOf(i);
+            updates.put(id, i % 10 == 0 ? tracked.get(i) : generateNonRandomCellFullRes(i % 20, id));
+        }
+        updates.put("unknown", generateNonRandomCellFullRes(0, "unknown"));
+        Assert.assertEquals(trk.updateLocations(updates), Set.of("unknown"));
+        Assert.assertEquals(trk.getSkippedUpdates(), 100);
+        for (int i = 0; i < 1000; i++) {
+            var id = String.valueOf(i);
+            var expected = i % 2 == 0 ? updates.get(id) : tracked.get(i);
+            Assert.assertEquals(trk.getLocation(id), expected);
+            Assert.assertEquals(trk.getValue(id), i);
+        }
+        Assert.assertEquals(trk.getAllBusinessEntitiesLocations().size(), 1000);
+        Assert.assertFalse(trk.isTracking("unknown"));
+    }
+
+    @Test
+    public void testMovesAcrossBaseCells() {
+        var trk = new LocationTracker<String, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            var cellId = generateNonRandomCellFullRes(5, String.valueOf(i));
+            trk.startTracking(cellId.getCellId(), cellId.getBusinessEntityId(), i);
+        }
+        var updates = new HashMap<String, H3CellId<String>>();
+        for (int i = 0; i < 1000; i++) {
+            var cellId = generateNonRandomCellFullRes(6 + i % 2, String.valueOf(i));
+            if (i < 500) {
+                Assert.assertTrue(trk.updateLocation(cellId.getBusinessEntityId(), cellId));
+            }
+            else {
+                updates.put(cellId.getBusinessEntityId(), cellId);
+            }
+        }
+        Assert.assertTrue(trk.updateLocations(updates).isEmpty());
+        var from = H3CellId.trimToResolution(generateNonRandomCellFullRes(5, "").getCellId(), 0);
+        var to = H3CellId.trimToResolution(generateNonRandomCellFullRes(6, "").getCellId(), 0);
+        Assert.assertEquals(trk.countWithin(from, 0), 0);
+        Assert.assertEquals(trk.countWithin(to, 0), 500);
+        for (int i = 0; i < 1000; i++) {
+            var id = String.valueOf(i);
+            Assert.assertEquals(trk.getLocation(id).getBaseCell(), 6 + i % 2);
+            Assert.assertEquals(trk.getValue(id), i);
+        }
+    }
+
+    @Test
+    public void testIndexedValuesAgreeWithTrie() throws InterruptedException {
+        var trk = new LocationTracker<String, Integer>();
+        for (int i = 0; i < 100; i++) {
+            var cellId = generateNonRandomCellFullRes(i % 4, String.valueOf(i));
+            trk.startTracking(cellId.getCellId(), cellId.getBusinessEntityId(), i);
+        }
+        final ExecutorService es = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < 5000; j++) {
+                    var id = String.valueOf(j % 100);
+                    if ((j + threadNo) % 2 == 0) {
+                        trk.updateLocation(id, generateNonRandomCellFullRes(j % 8, id));
+                    }
+                    else {
+                        trk.updateValue(id, threadNo * 10000 + j);
+                    }
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            var id = String.valueOf(i);
+            var location = trk.getLocation(id);
+            var found = trk.findAround(location.getCellId(), (k, v) -> k.getBusinessEntityId().equals(id), 15, 0, 1);
+            Assert.assertEquals(found.size(), 1);
+            Assert.assertEquals(found.iterator().next().getValue(), trk.getValue(id));
+        }
+        var value = trk.getValue("0");
+        Assert.assertEquals(trk.finishTracking("0"), value);
+        Assert.assertNull(trk.getValue("0"));
+    }
+
     @Test
     public void testGetAllBusinessEntitiesLocations() {
         Tracker<String, Integer> trk = new LocationTracker<>();
@@ -137,4 +255,38 @@ public class TestTrackerBasicOps extends TestBase<String> {
         }
     }
 
+    @Test
+    public void testFinerShards() {
+        var trk = new LocationTracker<String, Integer>(2);
+        var tracked = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 1000; i++) {
+            var cellId = generateNonRandomCellFullRes(i % 2, String.valueOf(i));
+            trk.startTracking(cellId.getCellId(), cellId.getBusinessEntityId(), i);
+            tracked.add(cellId);
+        }
+        // moves across the shards of a base cell and across base cells
+        var updates = new LinkedHashMap<String, H3CellId<String>>();
+        for (int i = 0; i < 1000; i += 2) {
+            var cellId = generateNonRandomCellFullRes((i / 2) % 2, String.valueOf(i));
+            updates.put(cellId.getBusinessEntityId(), cellId);
+            tracked.set(i, cellId);
+        }
+        trk.updateLocations(updates);
+        for (int i = 1; i < 1000; i += 2) {
+            var cellId = generateNonRandomCellFullRes(0, String.valueOf(i));
+            Assert.assertTrue(trk.updateLocation(cellId.getBusinessEntityId(), cellId));
+            tracked.set(i, cellId);
+        }
+        int inBaseCell = 0;
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(trk.getLocation(String.valueOf(i)), tracked.get(i));
+            inBaseCell += tracked.get(i).getBaseCell() == 0 ? 1 : 0;
+        }
+        // a base cell is spread over many shards
+        Assert.assertEquals(trk.countWithin(H3CellId.trimToResolution(tracked.get(1).getCellId(), 0), 0), inBaseCell);
+        var cellId = tracked.get(1);
+        Assert.assertEquals(trk.countWithin(cellId.getCellId(), 15), 1);
+        Assert.assertEquals(trk.finishTracking(cellId.getBusinessEntityId()), 1);
+        Assert.assertEquals(trk.countWithin(H3CellId.trimToResolution(cellId.getCellId(), 0), 0), inBaseCell - 1);
+    }
 }
@@ -0,0 +1,71 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+
+public class TestAddressOps extends TestBase<String> {
+
+    @Test
+    public void testGetContainsRemoveByAddress() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var values = new ArrayList<H3CellId<String>>(10000);
+
+        for (int i = 0; i < 10000; i++) {
+            var cellId = generateRandomCell(String.valueOf(i));
+            sctm.put(cellId, i);
+            values.add(cellId);
+        }
+        for (int i = 0; i < 10000; i++) {
+            var cellId = values.get(i);
+            Assert.assertEquals(sctm.get(cellId.getAddress(), cellId.getBusinessEntityId()), sctm.get(cellId));
+            Assert.assertTrue(sctm.containsKey(cellId.getAddress(), cellId.getBusinessEntityId()));
+            Assert.assertFalse(sctm.containsKey(cellId.getAddress(), "missing"));
+        }
+        for (int i = 0; i < 10000; i++) {
+            var cellId = values.get(i);
+            Assert.assertNotNull(sctm.remove(cellId.getAddress(), cellId.getBusinessEntityId()));
+            Assert.assertNull(sctm.remove(cellId.getAddress(), cellId.getBusinessEntityId()));
+            Assert.assertNull(sctm.get(cellId.getAddress(), cellId.getBusinessEntityId()));
+        }
+        Assert.assertTrue(sctm.isEmpty());
+    }
+
+    @Test
+    public void testCollisionsByAddress() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        final var cell1 = generateNonRandomCell(85, layers, 15, "one");
+        final var cell2 = generateNonRandomCell(85, layers, 15, "two");
+        final var cell3 = generateNonRandomCell(85, layers, 15, "three");
+
+        sctm.put(cell1, 1);
+        sctm.put(cell2, 2);
+        sctm.put(cell3, 3);
+
+        Assert.assertEquals(sctm.get(cell1.getAddress(), "one"), 1);
+        Assert.assertEquals(sctm.get(cell2.getAddress(), "two"), 2);
+        Assert.assertEquals(sctm.get(cell3.getAddress(), "three"), 3);
+        Assert.assertNull(sctm.get(cell3.getAddress(), "four"));
+        Assert.assertNull(sctm.remove(cell3.getAddress(), "four"));
+
+        Assert.assertEquals(sctm.remove(cell2.getAddress(), "two"), 2);
+        Assert.assertFalse(sctm.containsKey(cell2.getAddress(), "two"));
+        Assert.assertEquals(sctm.remove(cell1.getAddress(), "one"), 1);
+        Assert.assertEquals(sctm.get(cell3.getAddress(), "three"), 3);
+        Assert.assertEquals(sctm.size(), 1);
+    }
+
+    @Test
+    public void testReadOnlySnapshotByAddress() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cellId = generateNonRandomCellFullRes(42, "test");
+        sctm.put(cellId, 42);
+        final var snapshot = sctm.readOnlySnapshot();
+        sctm.remove(cellId.getAddress(), "test");
+        Assert.assertNull(sctm.get(cellId.getAddress(), "test"));
+        Assert.assertEquals(snapshot.get(cellId.getAddress(), "test"), 42);
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestAggregateWithin extends TestBase<String> {
+
+    private static final int COUNT = 20000;
+    private static final Aggregator<Integer, Long> EVEN = Aggregator.sum(v -> v % 2 == 0 ? 1 : 0);
+    private static final Aggregator<Integer, Integer> MIN = Aggregator.min(Comparator.naturalOrder());
+    private static final Aggregator<Integer, Integer> MAX = Aggregator.max(Comparator.naturalOrder());
+
+    private void assertAggregates(final SpatialConcurrentTrieMap<String, Integer> snapshot, final long address, final int resolution) {
+        final long[] even = { 0 };
+        final Integer[] minmax = { null, null };
+        snapshot.forEachWithin(address, resolution, (a, id, v) -> {
+            even[0] += v % 2 == 0 ? 1 : 0;
+            minmax[0] = minmax[0] == null ? v : Math.min(minmax[0], v);
+            minmax[1] = minmax[1] == null ? v : Math.max(minmax[1], v);
+        });
+        Assert.assertEquals(snapshot.aggregateWithin(address, resolution, EVEN).longValue(), even[0]);
+        Assert.assertEquals(snapshot.aggregateWithin(address, resolution, MIN), minmax[0]);
+        Assert.assertEquals(snapshot.aggregateWithin(address, resolution, MAX), minmax[1]);
+        Assert.assertEquals(snapshot.aggregateWithin(address, resolution, Aggregator.count()).longValue(), snapshot.countWithin(address, resolution));
+    }
+
+    private void testAgainstBruteForce(int stride) {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 10; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = H3CellId.trimToResolution(cluster.getAddress(), 4 + i % 7);
+            final var cellId = generateRandomChildForCell(parent, 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            cells.add(cellId);
+        }
+        for (int round = 0; round < 2; round++) {
+            final var snapshot = sctm.readOnlySnapshot();
+            for (H3CellId<String> cluster : clusters) {
+                for (int res = 0; res < 16; res++) {
+                    assertAggregates(snapshot, cluster.getAddress(), res);
+                }
+            }
+            // aggregates memoized in nodes shared with the previous snapshot stay valid
+            for (int i = 0; i < COUNT; i += 7) {
+                sctm.put(cells.get(i), -i);
+            }
+        }
+    }
+
+    @Test
+    public void testAggregateWithinAgainstBruteForce() {
+        testAgainstBruteForce(1);
+    }
+
+    @Test
+    public void testAggregateWithinWideNodes() {
+        testAgainstBruteForce(2);
+    }
+
+    @Test
+    public void testAggregateWithinCollisions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        for (int i = 0; i < 100; i++) {
+            sctm.put(generateNonRandomCell(85, layers, 15, String.valueOf(i)), i);
+        }
+        final var cell = generateNonRandomCell(85, layers, 15, null);
+        for (int res = 0; res < 16; res++) {
+            Assert.assertEquals(sctm.aggregateWithin(cell.getAddress(), res, EVEN).longValue(), 50L);
+            Assert.assertEquals(sctm.aggregateWithin(cell.getAddress(), res, MIN), 0);
+            Assert.assertEquals(sctm.aggregateWithin(cell.getAddress(), res, MAX), 99);
+        }
+        Assert.assertNull(sctm.aggregateWithin(generateNonRandomCell(84, layers, 15, null), MIN));
+    }
+
+    @Test
+    public void testSeveralAggregatorsAreMemoized() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            sctm.put(generateNonRandomCellFullRes(1, String.valueOf(i)), i);
+        }
+        final var snapshot = sctm.readOnlySnapshot();
+        final var lifted = new AtomicInteger();
+        final var counting = new ArrayList<Aggregator<Integer, Long>>();
+        for (int a = 0; a < 3; a++) {
+            final Aggregator<Integer, Long> sum = Aggregator.sum(v -> v);
+            counting.add(new Aggregator<>() {
+                @Override
+                public Long identity() {
+                    return sum.identity();
+                }
+
+                @Override
+                public Long of(final Integer value) {
+                    lifted.incrementAndGet();
+                    return sum.of(value);
+                }
+
+                @Override
+                public Long combine(final Long left, final Long right) {
+                    return sum.combine(left, right);
+                }
+            });
+        }
+        final long address = generateNonRandomCellFullRes(1, null).getAddress();
+        for (Aggregator<Integer, Long> aggregator : counting) {
+            Assert.assertEquals(snapshot.aggregateWithin(address, 0, aggregator).longValue(), (long) COUNT * (COUNT - 1) / 2);
+        }
+        Assert.assertEquals(lifted.get(), 3 * COUNT);
+        // aggregators used in turn do not evict each other
+        for (Aggregator<Integer, Long> aggregator : counting) {
+            snapshot.aggregateWithin(address, 0, aggregator);
+        }
+        Assert.assertEquals(lifted.get(), 3 * COUNT);
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TestBatchOps extends TestBase<String> {
+
+    private static final int COUNT = 50000;
+    private static final int N_THREADS = 7;
+
+    private Map<H3CellId<String>, Integer> generate(String prefix, int count) {
+        final var batch = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < count; i++) {
+            batch.put(generateRandomCell(prefix + i), i);
+        }
+        return batch;
+    }
+
+    private void compare(Map<H3CellId<String>, Integer> expected, SpatialConcurrentTrieMap<String, Integer> sctm) {
+        Assert.assertEquals(sctm.size(), expected.size());
+        for (Map.Entry<H3CellId<String>, Integer> e : expected.entrySet()) {
+            Assert.assertEquals(sctm.get(e.getKey()), e.getValue());
+        }
+    }
+
+    @Test
+    public void testPutAllIntoEmptyMap() {
+        final var expected = generate("", COUNT);
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        sctm.putAll(expected);
+        compare(expected, sctm);
+    }
+
+    @Test
+    public void testPutAllMergesWithExistingEntries() {
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            var cellId = generateRandomCell("single" + i);
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        for (int j = 0; j < 5; j++) {
+            final var batch = generate("batch" + j + "_", COUNT / 10);
+            // overwrite some of the existing values
+            for (H3CellId<String> cellId : new ArrayList<>(expected.keySet()).subList(0, 1000)) {
+                batch.put(cellId, -j);
+            }
+            sctm.putAll(batch);
+            expected.putAll(batch);
+            compare(expected, sctm);
+        }
+    }
+
+    @Test
+    public void testPutAllWithCollisions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        sctm.put(generateNonRandomCell(85, layers, 15, "collision"), 0);
+        expected.put(generateNonRandomCell(85, layers, 15, "collision"), 0);
+        for (int i = 1; i < 10; i++) {
+            expected.put(generateNonRandomCell(85, layers, 15, "collision" + i), i);
+            expected.put(generateNonRandomCell(85, layers, i, "parent" + i), i);
+        }
+        sctm.putAll(expected);
+        compare(expected, sctm);
+        // the second batch lands on a collision list and replaces the values
+        expected.replaceAll((k, v) -> -v);
+        sctm.putAll(expected);
+        compare(expected, sctm);
+        sctm.removeAll(expected.keySet());
+        Assert.assertTrue(sctm.isEmpty());
+    }
+
+    @Test
+    public void testRemoveAll() {
+        final var expected = generate("", COUNT);
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        sctm.putAll(expected);
+        final var removed = new ArrayList<H3CellId<String>>();
+        var i = 0;
+        for (H3CellId<String> cellId : expected.keySet()) {
+            if (i++ % 2 == 0) {
+                removed.add(cellId);
+            }
+        }
+        // missing keys are ignored
+        removed.add(generateRandomCell("missing"));
+        sctm.removeAll(removed);
+        removed.forEach(expected::remove);
+        compare(expected, sctm);
+        for (H3CellId<String> cellId : removed) {
+            Assert.assertNull(sctm.get(cellId));
+        }
+        sctm.removeAll(expected.keySet());
+        Assert.assertTrue(sctm.isEmpty());
+    }
+
+    @Test
+    public void testPutAllDoesNotAffectSnapshot() {
+        final var first = generate("first", COUNT / 10);
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        sctm.putAll(first);
+        final var snapshot = sctm.readOnlySnapshot();
+        final var writable = sctm.snapshot();
+        final var second = generate("second", COUNT / 10);
+        sctm.putAll(second);
+        sctm.removeAll(first.keySet());
+        compare(first, (SpatialConcurrentTrieMap<String, Integer>) snapshot);
+        compare(first, writable);
+        compare(second, sctm);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testPutAllIntoReadOnlySnapshot() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        sctm.readOnlySnapshot().putAll(generate("", 10));
+    }
+
+    @Test
+    public void testMultiThreadPutAll() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var batches = new ArrayList<Map<H3CellId<String>, Integer>>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < N_THREADS * 10; i++) {
+            final var batch = generate(i + "_", 1000);
+            batches.add(batch);
+            expected.putAll(batch);
+        }
+        final ExecutorService es = Executors.newFixedThreadPool(N_THREADS);
+        for (Map<H3CellId<String>, Integer> batch : batches) {
+            es.execute(() -> {
+                sctm.putAll(batch);
+                // readers force generation changes in the middle of a batch
+                sctm.readOnlySnapshot();
+            });
+        }
+        es.shutdown();
+        try {
+            es.awaitTermination(3600L, TimeUnit.SECONDS);
+        }
+        catch (final InterruptedException e) {
+            e.printStackTrace();
+        }
+        compare(expected, sctm);
+    }
+
+    // the key of a batch committed first, before the batch descends to the rest of its keys
+    private H3CellId<String> firstInTrieOrder(Map<H3CellId<String>, Integer> batch) {
+        return batch.keySet().stream().min((x, y) -> H3CellId.compareTrieOrder(x.getAddress(), y.getAddress())).orElseThrow();
+    }
+
+    @Test
+    public void testPutAllRacingPut() throws InterruptedException {
+        final var existing = generate("existing", COUNT / 10);
+        for (int round = 1; round <= 50; round++) {
+            final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+            sctm.putAll(existing);
+            final var batch = generate(round + "_", COUNT / 5);
+            batch.replaceAll((k, v) -> 1);
+            final var watched = firstInTrieOrder(batch);
+            final Thread racing = new Thread(() -> {
+                while (sctm.get(watched) == null) {
+                    Thread.onSpinWait();
+                }
+                // overwrites the batch's value, a snapshot then restarts the batch if it is still in progress
+                sctm.put(watched, 2);
+                sctm.snapshot();
+            });
+            racing.start();
+            sctm.putAll(batch);
+            racing.join();
+            Assert.assertEquals(sctm.get(watched), Integer.valueOf(2));
+        }
+    }
+
+    @Test
+    public void testRemoveAllRacingPut() throws InterruptedException {
+        for (int round = 1; round <= 50; round++) {
+            final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+            final var batch = generate(round + "_", COUNT / 5);
+            sctm.putAll(batch);
+            final var watched = firstInTrieOrder(batch);
+            final Thread racing = new Thread(() -> {
+                while (sctm.get(watched) != null) {
+                    Thread.onSpinWait();
+                }
+                // inserts the removed key again, a snapshot then restarts the batch if it is still in progress
+                sctm.put(watched, -1);
+                sctm.snapshot();
+            });
+            racing.start();
+            sctm.removeAll(batch.keySet());
+            racing.join();
+            Assert.assertEquals(sctm.get(watched), Integer.valueOf(-1));
+        }
+    }
+}
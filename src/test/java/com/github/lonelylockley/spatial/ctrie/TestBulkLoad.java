@@ -0,0 +1,133 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestBulkLoad extends TestBase<String> {
+
+    private static final int SIZE = 50000;
+
+    private Map<H3CellId<String>, Integer> generate() {
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        for (int i = 0; i < SIZE; i++) {
+            expected.put(generateRandomCell(String.valueOf(i)), i);
+        }
+        // cell collisions
+        for (int i = 0; i < 10; i++) {
+            expected.put(generateNonRandomCell(85, layers, 15, "collision" + i), -i);
+        }
+        // a parent cell sharing a prefix with the collisions above
+        expected.put(generateNonRandomCell(85, layers, 7, "parent"), 42);
+        return expected;
+    }
+
+    private void compare(Map<H3CellId<String>, Integer> expected, SpatialConcurrentTrieMap<String, Integer> loaded) {
+        Assert.assertEquals(loaded.size(), expected.size());
+        for (Map.Entry<H3CellId<String>, Integer> e : expected.entrySet()) {
+            Assert.assertEquals(loaded.get(e.getKey()), e.getValue());
+        }
+        var count = 0;
+        for (Map.Entry<H3CellId<String>, Integer> e : loaded.entrySet()) {
+            Assert.assertEquals(e.getValue(), expected.get(e.getKey()));
+            count++;
+        }
+        Assert.assertEquals(count, expected.size());
+    }
+
+    @Test
+    public void testBulkLoadUnsorted() {
+        final var expected = generate();
+        final var entries = new ArrayList<>(expected.entrySet());
+        Collections.shuffle(entries);
+        compare(expected, SpatialConcurrentTrieMap.bulkLoad(entries.iterator()));
+    }
+
+    @Test
+    public void testBulkLoadParallel() {
+        final var expected = generate();
+        compare(expected, SpatialConcurrentTrieMap.bulkLoad(expected.entrySet().iterator(), true));
+    }
+
+    @Test
+    public void testBulkLoadSameAsPut() {
+        final var expected = generate();
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        sctm.putAll(expected);
+        final var loaded = SpatialConcurrentTrieMap.bulkLoad(sctm.readOnlySnapshot().entrySet().iterator());
+        compare(expected, loaded);
+    }
+
+    @Test
+    public void testBulkLoadedSubtree() {
+        final var expected = generate();
+        final var loaded = SpatialConcurrentTrieMap.bulkLoad(expected.entrySet().iterator());
+        for (int res = 0; res < 8; res++) {
+            final var parent = generateNonRandomCell(85, new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 }, res, null);
+            final var matching = expected
+                    .keySet()
+                    .stream()
+                    .filter(k -> {
+                        if (k.getBaseCell() != parent.getBaseCell() || k.getResolution() < parent.getResolution()) {
+                            return false;
+                        }
+                        for (int i = 1; i <= parent.getResolution(); i++) {
+                            if (k.getCell(i) != parent.getCell(i)) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    })
+                    .count();
+            Assert.assertEquals(loaded.subTree(parent).size(), matching);
+        }
+    }
+
+    @Test
+    public void testBulkLoadDuplicates() {
+        final var cell = generateNonRandomCellFullRes(17, "test");
+        final var entries = new ArrayList<Map.Entry<H3CellId<String>, Integer>>();
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(cell, 1));
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(new H3CellId<>(cell.getAddress(), "other"), 2));
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(new H3CellId<>(cell.getAddress(), "test"), 3));
+        final var loaded = SpatialConcurrentTrieMap.bulkLoad(entries.iterator());
+        Assert.assertEquals(loaded.size(), 2);
+        Assert.assertEquals(loaded.get(cell), 3);
+        Assert.assertEquals(loaded.get(cell.getAddress(), "other"), 2);
+    }
+
+    @Test
+    public void testBulkLoadedMapIsWritable() {
+        final var expected = generate();
+        final var loaded = SpatialConcurrentTrieMap.bulkLoad(expected.entrySet().iterator(), true);
+        final var added = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 1000; i++) {
+            var cellId = generateRandomCell("added" + i);
+            Assert.assertNull(loaded.put(cellId, i));
+            added.add(cellId);
+        }
+        for (H3CellId<String> cellId : expected.keySet()) {
+            Assert.assertEquals(loaded.remove(cellId), expected.get(cellId));
+        }
+        Assert.assertEquals(loaded.size(), added.size());
+        for (H3CellId<String> cellId : added) {
+            Assert.assertNotNull(loaded.get(cellId));
+        }
+    }
+
+    @Test
+    public void testBulkLoadEmpty() {
+        final var loaded = SpatialConcurrentTrieMap.<String, Integer>bulkLoad(Collections.emptyIterator());
+        Assert.assertTrue(loaded.isEmpty());
+        final var cellId = generateRandomCell("test");
+        loaded.put(cellId, 1);
+        Assert.assertEquals(loaded.get(cellId), 1);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Optional;
+
+public class TestCollisionBucket extends TestBase<String> {
+
+    private static final int ENTITIES = 800;
+    private static final int[] LAYERS = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+
+    @Test
+    public void testBucketOps() {
+        final H3CellId<String>[] keys = new H3CellId[ENTITIES];
+        final var values = new Integer[ENTITIES];
+        for (int i = 0; i < ENTITIES; i++) {
+            keys[i] = generateNonRandomCell(85, LAYERS, 15, String.valueOf(i % (ENTITIES / 2)));
+            values[i] = i;
+        }
+        // the second half replaces the first one
+        final CollisionBucket<String, Integer> bucket = CollisionBucket.<String, Integer>empty().addAll(keys, values, 0, ENTITIES);
+        Assert.assertEquals(bucket.size(), ENTITIES / 2);
+        for (int i = 0; i < ENTITIES / 2; i++) {
+            Assert.assertEquals(bucket.get(keys[i]), Optional.of(i + ENTITIES / 2));
+            Assert.assertSame(bucket.find(keys[i].getAddress(), String.valueOf(i)), keys[i + ENTITIES / 2]);
+        }
+        Assert.assertNull(bucket.find(keys[0].getAddress(), "absent"));
+        Assert.assertFalse(bucket.contains(generateNonRandomCell(85, LAYERS, 14, "0")));
+
+        final var replaced = bucket.add(keys[0], -1);
+        Assert.assertEquals(replaced.get(keys[0]), Optional.of(-1));
+        Assert.assertEquals(bucket.get(keys[0]), Optional.of(ENTITIES / 2));
+        Assert.assertSame(bucket.remove(generateNonRandomCell(85, LAYERS, 15, "absent")), bucket);
+
+        final var removed = bucket.removeAll(keys, 0, ENTITIES / 4);
+        Assert.assertEquals(removed.size(), ENTITIES / 4);
+        Assert.assertFalse(removed.contains(keys[0]));
+        Assert.assertTrue(removed.contains(keys[ENTITIES / 4]));
+        Assert.assertTrue(bucket.removeAll(keys, 0, ENTITIES).isEmpty());
+
+        final var seen = new HashMap<H3CellId<String>, Integer>();
+        removed.forEach(seen::put);
+        final var it = removed.iterator();
+        while (it.hasNext()) {
+            final var e = it.next();
+            Assert.assertEquals(seen.remove(e.getKey()), e.getValue());
+        }
+        Assert.assertTrue(seen.isEmpty());
+    }
+
+    @Test
+    public void testManyEntitiesAtOneCell() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCell(85, LAYERS, 15, String.valueOf(i));
+            cells.add(cellId);
+            sctm.put(cellId, i);
+        }
+        Assert.assertEquals(sctm.size(), ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            Assert.assertEquals(sctm.get(cells.get(i)), i);
+            Assert.assertEquals(sctm.get(cells.get(i).getAddress(), String.valueOf(i)), i);
+        }
+        Assert.assertEquals(sctm.readOnlySnapshot().countWithin(cells.get(0).getAddress(), 15), ENTITIES);
+        sctm.removeAll(cells.subList(0, ENTITIES - 1));
+        Assert.assertEquals(sctm.size(), 1);
+        Assert.assertEquals(sctm.get(cells.get(ENTITIES - 1)), ENTITIES - 1);
+    }
+}
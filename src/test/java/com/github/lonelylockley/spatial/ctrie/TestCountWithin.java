@@ -0,0 +1,152 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestCountWithin extends TestBase<String> {
+
+    private static final int COUNT = 50000;
+
+    private long countWithin(Map<H3CellId<String>, Integer> expected, H3CellId<String> parent) {
+        return expected
+                .keySet()
+                .stream()
+                .filter(k -> H3CellId.isWithin(k.getAddress(), parent.getAddress(), parent.getResolution()))
+                .count();
+    }
+
+    private void testAgainstBruteForce(int stride) {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 20; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), Math.min(cluster.getResolution(), 4 + i % 7)), null);
+            final var cellId = generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var snapshot = sctm.readOnlySnapshot();
+        for (H3CellId<String> cluster : clusters) {
+            for (int res = 0; res < 16; res++) {
+                final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), res), null);
+                final long count = countWithin(expected, parent);
+                Assert.assertEquals(snapshot.countWithin(parent), count);
+                Assert.assertEquals(snapshot.countWithin(cluster.getAddress(), res), count);
+                Assert.assertEquals(snapshot.subTree(parent).size(), count);
+            }
+        }
+        // cells that are not in the map
+        for (int i = 0; i < 1000; i++) {
+            final var cellId = generateRandomCell(null);
+            Assert.assertEquals(snapshot.countWithin(cellId), countWithin(expected, cellId));
+        }
+    }
+
+    @Test
+    public void testCountWithinAgainstBruteForce() {
+        testAgainstBruteForce(1);
+    }
+
+    @Test
+    public void testCountWithinWideNodes() {
+        testAgainstBruteForce(2);
+    }
+
+    @Test
+    public void testCountWithinWritableMap() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cells = new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 };
+        for (int i = 0; i < 10; i++) {
+            sctm.put(generateNonRandomCell(0, cells, 7, 15, "first" + i), i);
+        }
+        final var parent = generateNonRandomCell(0, cells, 7, null);
+        Assert.assertEquals(sctm.countWithin(parent), 10);
+        sctm.put(generateNonRandomCell(0, cells, 7, 15, "second"), 10);
+        // the coarser key itself is within its own cell
+        sctm.put(parent, 11);
+        Assert.assertEquals(sctm.countWithin(parent), 12);
+        Assert.assertEquals(sctm.countWithin(generateNonRandomCell(0, cells, 8, null)), sctm.subTree(generateNonRandomCell(0, cells, 8, null)).size());
+        Assert.assertEquals(sctm.countWithin(parent.getAddress(), 0), 12);
+    }
+
+    private void testCountCellsAgainstBruteForce(int stride) {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 10; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT / 5; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = H3CellId.trimToResolution(cluster.getAddress(), 4 + i % 7);
+            // every tenth entry is a coarser key
+            final var cellId = i % 10 == 0 ? new H3CellId<>(parent, String.valueOf(i)) : generateRandomChildForCell(parent, 15, String.valueOf(i));
+            sctm.put(cellId, i);
+        }
+        final var snapshot = sctm.readOnlySnapshot();
+        for (H3CellId<String> cluster : clusters) {
+            for (int res : new int[] { 0, 3, 6 }) {
+                for (int cellRes : new int[] { res, res + 1, 8, 15 }) {
+                    final var expected = new HashMap<Long, Integer>();
+                    snapshot.forEachWithin(cluster.getAddress(), res, (address, id, value) -> {
+                        if (H3CellId.resolution(address) >= cellRes) {
+                            expected.merge(H3CellId.trimToResolution(address, cellRes), 1, Integer::sum);
+                        }
+                    });
+                    final var actual = new HashMap<Long, Integer>();
+                    snapshot.countCells(cluster.getAddress(), res, cellRes, (address, count) -> Assert.assertNull(actual.put(address, count)));
+                    Assert.assertEquals(actual, expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCountCellsAgainstBruteForce() {
+        testCountCellsAgainstBruteForce(1);
+    }
+
+    @Test
+    public void testCountCellsWideNodes() {
+        testCountCellsAgainstBruteForce(2);
+    }
+
+    @Test
+    public void testCountCellsInCollisionList() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var first = generateNonRandomCell(0, new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 9, "first");
+        // the coarser key goes first, so the finer ones share a collision list with it
+        sctm.put(new H3CellId<>(H3CellId.trimToResolution(first.getAddress(), 2), "coarse"), 0);
+        sctm.put(first, 1);
+        sctm.put(generateNonRandomCell(0, new int[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 9, "second"), 2);
+        sctm.put(generateNonRandomCell(0, new int[] { 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 9, "third"), 3);
+        final var cells = new ArrayList<Long>();
+        final var counts = new HashMap<Long, Integer>();
+        sctm.countCells(first.getAddress(), 0, 3, (address, count) -> {
+            cells.add(address);
+            counts.put(address, count);
+        });
+        final var expected = new HashMap<Long, Integer>();
+        sctm.forEachWithin(first.getAddress(), 0, (address, id, value) -> {
+            if (H3CellId.resolution(address) >= 3) {
+                expected.merge(H3CellId.trimToResolution(address, 3), 1, Integer::sum);
+            }
+        });
+        Assert.assertEquals(counts, expected);
+        Assert.assertEquals(cells, cells.stream().sorted().distinct().toList());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCountWithinFinerResolution() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        sctm.countWithin(generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 7, null).getAddress(), 8);
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class TestForEachWithin extends TestBase<String> {
+
+    private static final int COUNT = 50000;
+
+    private Map<H3CellId<String>, Integer> within(Map<H3CellId<String>, Integer> expected, H3CellId<String> parent) {
+        return expected
+                .entrySet()
+                .stream()
+                .filter(e -> H3CellId.isWithin(e.getKey().getAddress(), parent.getAddress(), parent.getResolution()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    private void testAgainstBruteForce(int stride) {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 20; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), Math.min(cluster.getResolution(), 4 + i % 7)), null);
+            final var cellId = generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var snapshot = sctm.readOnlySnapshot();
+        for (H3CellId<String> cluster : clusters) {
+            for (int res = 0; res < 16; res++) {
+                final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), res), null);
+                final var visited = new HashMap<H3CellId<String>, Integer>();
+                snapshot.forEachWithin(parent, (k, v) -> Assert.assertNull(visited.put(k, v)));
+                Assert.assertEquals(visited, within(expected, parent));
+
+                final var addresses = new HashMap<H3CellId<String>, Integer>();
+                snapshot.forEachWithin(cluster.getAddress(), res, (address, id, v) -> addresses.put(new H3CellId<>(address, id), v));
+                Assert.assertEquals(addresses, visited);
+            }
+        }
+    }
+
+    @Test
+    public void testForEachWithin() {
+        testAgainstBruteForce(1);
+    }
+
+    @Test
+    public void testForEachWithinWideNodes() {
+        testAgainstBruteForce(2);
+    }
+
+    @Test
+    public void testForEachWithinCollisions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < 10; i++) {
+            expected.put(generateNonRandomCell(85, layers, 15, "collision" + i), i);
+        }
+        sctm.putAll(expected);
+        final var visited = new HashMap<H3CellId<String>, Integer>();
+        sctm.forEachWithin(generateNonRandomCell(85, layers, 9, null), visited::put);
+        Assert.assertEquals(visited, expected);
+        visited.clear();
+        sctm.forEachWithin(generateNonRandomCell(85, new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 6 }, 15, null), visited::put);
+        Assert.assertTrue(visited.isEmpty());
+    }
+
+    @Test
+    public void testForEach() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            final var cellId = generateRandomCell(String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var visited = new HashMap<H3CellId<String>, Integer>();
+        sctm.forEach((k, v) -> Assert.assertNull(visited.put(k, v)));
+        Assert.assertEquals(visited, expected);
+
+        final var addresses = new HashMap<H3CellId<String>, Integer>();
+        sctm.forEachCell((address, id, v) -> addresses.put(new H3CellId<>(address, id), v));
+        Assert.assertEquals(addresses, expected);
+    }
+}
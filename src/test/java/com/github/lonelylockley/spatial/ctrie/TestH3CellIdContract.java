@@ -26,4 +26,30 @@ public class TestH3CellIdContract extends TestBase<String> {
         Assert.assertNotEquals(cell2, cell4);
         Assert.assertNotEquals(cell3, cell4);
     }
+
+    @Test
+    public void testCellsDerivedFromAddress() {
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        final var cell = generateNonRandomCell(85, layers, 15, "AaAaAa");
+
+        Assert.assertEquals(cell.getResolution(), 15);
+        Assert.assertEquals(cell.getBaseCell(), 85);
+        Assert.assertEquals(cell.getCell(0), 85);
+        for (int i = 1; i < 16; i++) {
+            Assert.assertEquals(cell.getCell(i), layers[i - 1]);
+            Assert.assertEquals(H3CellId.cell(cell.getAddress(), i), layers[i - 1]);
+        }
+        Assert.assertEquals(H3CellId.baseCell(cell.getAddress()), 85);
+        Assert.assertEquals(H3CellId.resolution(cell.getAddress()), 15);
+
+        final var coarse = generateNonRandomCell(85, layers, 4, "AaAaAa");
+        Assert.assertEquals(coarse.getResolution(), 4);
+        Assert.assertEquals(coarse.getCell(4), layers[3]);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCellBeyondMaxResolution() {
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        generateNonRandomCell(85, layers, 15, "AaAaAa").getCell(16);
+    }
 }
@@ -0,0 +1,179 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TestMappingCount extends TestBase<String> {
+
+    private static final int ENTITIES = 2000;
+
+    private void assertCount(final SpatialConcurrentTrieMap<String, Integer> sctm) {
+        Assert.assertEquals(sctm.mappingCount(), sctm.readOnlySnapshot().size());
+        Assert.assertEquals(sctm.size(), sctm.readOnlySnapshot().size());
+    }
+
+    @Test
+    public void testSingleKeyUpdates() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCell(i % 3, String.valueOf(i));
+            cells.add(cellId);
+            sctm.put(cellId, i);
+        }
+        assertCount(sctm);
+        Assert.assertEquals(sctm.mappingCount(), ENTITIES);
+        for (int i = 0; i < ENTITIES; i += 2) {
+            sctm.put(cells.get(i), -i);
+            sctm.putIfAbsent(cells.get(i), i);
+            sctm.replace(cells.get(i), i);
+        }
+        assertCount(sctm);
+        for (int i = 0; i < ENTITIES; i += 3) {
+            sctm.remove(cells.get(i));
+        }
+        assertCount(sctm);
+        sctm.clear();
+        Assert.assertEquals(sctm.mappingCount(), 0);
+        Assert.assertTrue(sctm.isEmpty());
+    }
+
+    @Test
+    public void testCollisions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 100; i++) {
+            final var cellId = generateNonRandomCell(85, layers, 15, String.valueOf(i));
+            cells.add(cellId);
+            sctm.put(cellId, i);
+            sctm.put(cellId, i);
+        }
+        assertCount(sctm);
+        sctm.putAll(Map.of(cells.get(0), 0, generateNonRandomCell(85, layers, 15, "new"), 100));
+        assertCount(sctm);
+        sctm.removeAll(cells.subList(0, 50));
+        assertCount(sctm);
+        for (int i = 50; i < 100; i++) {
+            sctm.remove(cells.get(i));
+        }
+        assertCount(sctm);
+        Assert.assertEquals(sctm.mappingCount(), 1);
+    }
+
+    @Test
+    public void testBatchUpdatesAndMoves() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var batch = new HashMap<H3CellId<String>, Integer>();
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 5, String.valueOf(i));
+            cells.add(cellId);
+            batch.put(cellId, i);
+        }
+        sctm.putAll(batch);
+        sctm.putAll(batch);
+        assertCount(sctm);
+        final var to = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            // every tenth entity replaces another one
+            to.add(i % 10 == 0 ? cells.get((i + 1) % ENTITIES) : generateNonRandomCellFullRes(i % 7, String.valueOf(i)));
+        }
+        sctm.move(cells.get(1), to.get(1));
+        sctm.move(cells.get(0), cells.get(2));
+        assertCount(sctm);
+        sctm.moveAll(cells.subList(3, ENTITIES), to.subList(3, ENTITIES));
+        assertCount(sctm);
+        sctm.removeAll(to);
+        assertCount(sctm);
+    }
+
+    @Test
+    public void testCopies() throws IOException, ClassNotFoundException {
+        final var entries = new ArrayList<Map.Entry<H3CellId<String>, Integer>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(generateRandomCell(String.valueOf(i)), i));
+        }
+        entries.add(entries.get(0));
+        final var sctm = SpatialConcurrentTrieMap.bulkLoad(entries.iterator());
+        Assert.assertEquals(sctm.mappingCount(), ENTITIES);
+
+        final var snapshot = sctm.snapshot();
+        snapshot.remove(entries.get(0).getKey());
+        Assert.assertEquals(snapshot.mappingCount(), ENTITIES - 1);
+        Assert.assertEquals(sctm.mappingCount(), ENTITIES);
+
+        final var bos = new ByteArrayOutputStream();
+        try (var oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(snapshot);
+        }
+        try (var ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            final var deserialized = (SpatialConcurrentTrieMap<String, Integer>) ois.readObject();
+            Assert.assertEquals(deserialized.mappingCount(), ENTITIES - 1);
+        }
+    }
+
+    @Test
+    public void testSnapshotsAndClears() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var first = generateNonRandomCell(0, "0");
+        sctm.put(first, 0);
+        for (int i = 1; i < ENTITIES; i++) {
+            sctm.put(generateNonRandomCell(i % 3, String.valueOf(i)), i);
+        }
+        final var snapshot = sctm.snapshot();
+        final var nested = snapshot.snapshot();
+        sctm.clear();
+        for (int i = 0; i < ENTITIES / 2; i++) {
+            sctm.put(generateNonRandomCell(i % 3, "a" + i), i);
+        }
+        assertCount(sctm);
+        Assert.assertEquals(sctm.mappingCount(), ENTITIES / 2);
+        assertCount(snapshot);
+        Assert.assertEquals(snapshot.mappingCount(), ENTITIES);
+        nested.remove(first);
+        assertCount(nested);
+        Assert.assertEquals(nested.mappingCount(), ENTITIES - 1);
+        snapshot.clear();
+        snapshot.clear();
+        Assert.assertEquals(snapshot.mappingCount(), 0);
+        Assert.assertEquals(nested.mappingCount(), ENTITIES - 1);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final ExecutorService es = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                final List<H3CellId<String>> own = new ArrayList<>();
+                for (int i = 0; i < ENTITIES; i++) {
+                    final var cellId = generateNonRandomCell(i % 4, threadNo + "-" + i);
+                    own.add(cellId);
+                    sctm.put(cellId, i);
+                    if (i % 3 == 0) {
+                        sctm.remove(own.get(i / 2));
+                    }
+                    if (i % 100 == 0) {
+                        sctm.snapshot();
+                    }
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        assertCount(sctm);
+    }
+}
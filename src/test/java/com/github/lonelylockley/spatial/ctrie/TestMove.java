@@ -0,0 +1,396 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestMove extends TestBase<String> {
+
+    private static final int N_THREADS = 4;
+    private static final int ENTITIES = 1000;
+    private static final int MOVES = 5000;
+
+    @Test
+    public void testMove() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var from = generateRandomCell("first");
+        final var to = generateRandomCell("first");
+        final var other = generateRandomCell("second");
+        sctm.put(from, 1);
+        sctm.put(other, 2);
+
+        Assert.assertEquals(sctm.move(from, to), 1);
+        Assert.assertNull(sctm.get(from));
+        Assert.assertEquals(sctm.get(to), 1);
+        Assert.assertEquals(sctm.size(), 2);
+
+        // nothing to move
+        Assert.assertNull(sctm.move(from, other));
+        Assert.assertEquals(sctm.get(other), 2);
+        Assert.assertEquals(sctm.size(), 2);
+
+        // the value of the target key is replaced
+        Assert.assertEquals(sctm.move(to, other), 1);
+        Assert.assertEquals(sctm.get(other), 1);
+        Assert.assertEquals(sctm.size(), 1);
+
+        Assert.assertEquals(sctm.move(other, other), 1);
+        Assert.assertEquals(sctm.size(), 1);
+    }
+
+    @Test
+    public void testFarMoveKeepsRoot() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var from = generateNonRandomCellFullRes(3, "first");
+        final var to = generateNonRandomCellFullRes(100, "first");
+        final var other = generateNonRandomCellFullRes(3, "second");
+        sctm.put(from, 1);
+        sctm.put(other, 2);
+        final var root = sctm.readRoot();
+        Assert.assertEquals(sctm.move(from, to), 1);
+        // a far move updates both nodes in place, the trie is not frozen
+        Assert.assertSame(sctm.readRoot(), root);
+        Assert.assertNull(sctm.get(from));
+        Assert.assertEquals(sctm.get(to), 1);
+        Assert.assertEquals(sctm.get(other), 2);
+        Assert.assertEquals(sctm.size(), 2);
+        Assert.assertEquals(sctm.mappingCount(), 2);
+        // absent keys are moved nowhere
+        Assert.assertNull(sctm.move(from, generateNonRandomCellFullRes(50, "first")));
+        Assert.assertEquals(sctm.size(), 2);
+    }
+
+    private H3CellId<String> neighbour(H3CellId<String> cellId, int resolution) {
+        final var parent = H3CellId.trimToResolution(cellId.getAddress(), resolution);
+        return generateRandomChildForCell(parent, 15, cellId.getBusinessEntityId());
+    }
+
+    @Test
+    public void testLocalMoveKeepsRoot() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 };
+        final var from = generateNonRandomCell(3, layers, 15, "first");
+        final var to = generateNonRandomCell(3, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 2 }, 15, "first");
+        final var other = generateNonRandomCell(3, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 0, 0, 1 }, 15, "second");
+        sctm.put(from, 1);
+        sctm.put(other, 2);
+        final var root = sctm.readRoot();
+        Assert.assertEquals(sctm.move(from, to), 1);
+        // a move within a single node does not freeze the trie
+        Assert.assertSame(sctm.readRoot(), root);
+        Assert.assertNull(sctm.get(from));
+        Assert.assertEquals(sctm.get(to), 1);
+        Assert.assertEquals(sctm.get(other), 2);
+        // the new key collides with an existing leaf
+        final var collision = generateNonRandomCell(3, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 0, 0, 2 }, 15, "first");
+        Assert.assertEquals(sctm.move(to, collision), 1);
+        Assert.assertSame(sctm.readRoot(), root);
+        Assert.assertEquals(sctm.get(collision), 1);
+        Assert.assertEquals(sctm.get(other), 2);
+        Assert.assertEquals(sctm.size(), 2);
+    }
+
+    @Test
+    public void testLocalMovesAgainstBruteForce() {
+        for (int stride = 1; stride <= SpatialConcurrentTrieMap.MAX_STRIDE; stride++) {
+            final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+            final var expected = new HashMap<H3CellId<String>, Integer>();
+            final var keys = new ArrayList<H3CellId<String>>();
+            final var cluster = generateNonRandomCellFullRes(11, null);
+            for (int i = 0; i < ENTITIES * 10; i++) {
+                final var cellId = neighbour(new H3CellId<>(cluster.getAddress(), String.valueOf(i % ENTITIES)), 6 + i % 5);
+                if (!expected.containsKey(cellId)) {
+                    keys.add(cellId);
+                }
+                sctm.put(cellId, i);
+                expected.put(cellId, i);
+            }
+            for (int i = 0; i < MOVES * 10; i++) {
+                final var idx = i % keys.size();
+                final var from = keys.get(idx);
+                // every now and then the new key is an existing one
+                final var to = i % 10 == 0 ? keys.get((idx + 1) % keys.size()) : neighbour(from, 10 + i % 6);
+                if (to.equals(from) || !to.getBusinessEntityId().equals(from.getBusinessEntityId()) && i % 10 == 0) {
+                    continue;
+                }
+                final var value = expected.remove(from);
+                Assert.assertEquals(sctm.move(from, to), value);
+                if (value != null) {
+                    expected.put(to, value);
+                }
+                keys.set(idx, to);
+            }
+            Assert.assertEquals(sctm.size(), expected.size());
+            for (Map.Entry<H3CellId<String>, Integer> e : expected.entrySet()) {
+                Assert.assertEquals(sctm.get(e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testMoveAll() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var keys = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 5, String.valueOf(i));
+            keys.add(cellId);
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var from = new ArrayList<H3CellId<String>>();
+        final var to = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i += 3) {
+            // every other key is absent, the rest are moved nearby or far away
+            from.add(i % 2 == 0 ? keys.get(i) : generateNonRandomCellFullRes(i % 5, String.valueOf(i)));
+            to.add(i % 4 == 0 ? neighbour(keys.get(i), 8) : generateNonRandomCellFullRes(i % 7, String.valueOf(i)));
+        }
+        final var moved = sctm.moveAll(from, to);
+        for (int i = 0; i < from.size(); i++) {
+            final var value = expected.remove(from.get(i));
+            Assert.assertEquals(moved.get(i), value != null);
+            if (value != null) {
+                expected.put(to.get(i), value);
+            }
+        }
+        Assert.assertEquals(sctm.size(), expected.size());
+        for (Map.Entry<H3CellId<String>, Integer> e : expected.entrySet()) {
+            Assert.assertEquals(sctm.get(e.getKey()), e.getValue());
+        }
+        Assert.assertTrue(sctm.moveAll(List.of(), List.of()).isEmpty());
+        Assert.assertTrue(sctm.moveAll(List.of(from.get(1)), List.of(to.get(1))).isEmpty());
+    }
+
+    @Test
+    public void testMoveAllDuplicates() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var from = generateNonRandomCellFullRes(3, "first");
+        final var near = neighbour(from, 10);
+        final var far = generateNonRandomCellFullRes(100, "first");
+        sctm.put(from, 1);
+        // the value is moved by the first occurrence of its key, not copied
+        final var moved = sctm.moveAll(List.of(from, from), List.of(far, near));
+        Assert.assertTrue(moved.get(0));
+        Assert.assertFalse(moved.get(1));
+        Assert.assertEquals(sctm.get(far), 1);
+        Assert.assertNull(sctm.get(near));
+        Assert.assertNull(sctm.get(from));
+        Assert.assertEquals(sctm.size(), 1);
+        Assert.assertEquals(sctm.mappingCount(), 1);
+
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        sharded.put(from, 1);
+        final var across = sharded.moveAll(List.of(from, from), List.of(far, generateNonRandomCellFullRes(50, "first")));
+        Assert.assertEquals(across.cardinality(), 1);
+        Assert.assertEquals(sharded.get(far), 1);
+        Assert.assertEquals(sharded.size(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMoveAllMismatch() {
+        new SpatialConcurrentTrieMap<String, Integer>().moveAll(List.of(generateRandomCell("x")), List.of());
+    }
+
+    @Test
+    public void testConcurrentMoves() throws InterruptedException {
+        testConcurrentMoves(false);
+    }
+
+    @Test
+    public void testConcurrentLocalMoves() throws InterruptedException {
+        testConcurrentMoves(true);
+    }
+
+    @Test(timeOut = 60000L)
+    public void testContendedFarMoves() throws InterruptedException {
+        // every thread moves its entities between base cells only, so every move installs a descriptor
+        final int threads = N_THREADS * 2;
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var locations = new ArrayList<H3CellId<String>>(ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 122, "entity" + i);
+            locations.add(cellId);
+            sctm.put(cellId, i);
+        }
+        final var failures = new AtomicInteger(0);
+        final var batches = new AtomicInteger(0);
+        final ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < MOVES / threads; j++) {
+                    final int i = threadNo + threads * (j % (ENTITIES / threads));
+                    final var to = generateNonRandomCellFullRes((i + j + 1) % 122, "entity" + i);
+                    if (j % 10 == 0) {
+                        // batches contend with far moves for the same nodes
+                        final int k = threadNo + threads * ((j + 1) % (ENTITIES / threads));
+                        final var next = generateNonRandomCellFullRes((k + j + 2) % 122, "entity" + k);
+                        if (sctm.moveAll(List.of(locations.get(i), locations.get(k)), List.of(to, next)).cardinality() != 2) {
+                            failures.incrementAndGet();
+                        }
+                        locations.set(k, next);
+                        batches.incrementAndGet();
+                    }
+                    else
+                    if (!Integer.valueOf(i).equals(sctm.move(locations.get(i), to))) {
+                        failures.incrementAndGet();
+                    }
+                    locations.set(i, to);
+                }
+            });
+        }
+        es.shutdown();
+        Assert.assertTrue(es.awaitTermination(60L, TimeUnit.SECONDS));
+
+        Assert.assertEquals(failures.get(), 0);
+        Assert.assertTrue(batches.get() > 0);
+        Assert.assertEquals(sctm.size(), ENTITIES);
+        Assert.assertEquals(sctm.mappingCount(), ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            Assert.assertEquals(sctm.get(locations.get(i)), i);
+        }
+    }
+
+    @Test(timeOut = 60000L)
+    public void testConcurrentCollidingMoves() throws InterruptedException {
+        // all the entities share two cells far from each other, so every move takes a key out of one collision list
+        // and puts it into the other one
+        final var cells = new long[] { generateNonRandomCellFullRes(7, null).getAddress(), generateNonRandomCellFullRes(90, null).getAddress() };
+        final int entities = 64;
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var locations = new ArrayList<H3CellId<String>>(entities);
+        for (int i = 0; i < entities; i++) {
+            final var cellId = new H3CellId<>(cells[i % 2], "entity" + i);
+            locations.add(cellId);
+            sctm.put(cellId, i);
+        }
+        final var done = new AtomicBoolean(false);
+        final var snapshots = new AtomicInteger(0);
+        final var failures = new AtomicInteger(0);
+        final ExecutorService es = Executors.newFixedThreadPool(N_THREADS);
+        final ExecutorService reader = Executors.newSingleThreadExecutor();
+        for (int t = 0; t < N_THREADS; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < MOVES; j++) {
+                    final int i = threadNo + N_THREADS * (j % (entities / N_THREADS));
+                    final var from = locations.get(i);
+                    final var to = new H3CellId<>(from.getAddress() == cells[0] ? cells[1] : cells[0], from.getBusinessEntityId());
+                    if (!Integer.valueOf(i).equals(sctm.move(from, to))) {
+                        failures.incrementAndGet();
+                    }
+                    locations.set(i, to);
+                }
+            });
+        }
+        reader.execute(() -> {
+            while (!done.get()) {
+                final var snapshot = sctm.readOnlySnapshot();
+                final var seen = new boolean[entities];
+                final var count = new AtomicInteger(0);
+                snapshot.forEach((k, v) -> {
+                    count.incrementAndGet();
+                    if (seen[v]) {
+                        failures.incrementAndGet();
+                    }
+                    seen[v] = true;
+                });
+                if (count.get() != entities) {
+                    failures.incrementAndGet();
+                }
+                snapshots.incrementAndGet();
+            }
+        });
+        es.shutdown();
+        Assert.assertTrue(es.awaitTermination(60L, TimeUnit.SECONDS));
+        done.set(true);
+        reader.shutdown();
+        reader.awaitTermination(60L, TimeUnit.SECONDS);
+
+        Assert.assertEquals(failures.get(), 0);
+        Assert.assertTrue(snapshots.get() > 0);
+        Assert.assertEquals(sctm.size(), entities);
+        Assert.assertEquals(sctm.mappingCount(), entities);
+        for (int i = 0; i < entities; i++) {
+            Assert.assertEquals(sctm.get(locations.get(i)), i);
+        }
+    }
+
+    private void testConcurrentMoves(boolean local) throws InterruptedException {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var locations = new ArrayList<H3CellId<String>>(ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 122, "entity" + i);
+            locations.add(cellId);
+            sctm.put(cellId, i);
+        }
+        final var inserted = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < MOVES; i++) {
+            inserted.add(generateRandomCell("other" + i));
+        }
+        final var done = new AtomicBoolean(false);
+        final var snapshots = new AtomicInteger(0);
+        final var failures = new AtomicInteger(0);
+        final ExecutorService es = Executors.newFixedThreadPool(N_THREADS + 1);
+        final ExecutorService reader = Executors.newSingleThreadExecutor();
+        for (int t = 0; t < N_THREADS; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < MOVES; j++) {
+                    final int i = threadNo + N_THREADS * (j % (ENTITIES / N_THREADS));
+                    final var to = local ? neighbour(locations.get(i), 10) : generateNonRandomCellFullRes(i % 122, "entity" + i);
+                    if (!Integer.valueOf(i).equals(sctm.move(locations.get(i), to))) {
+                        failures.incrementAndGet();
+                    }
+                    locations.set(i, to);
+                }
+            });
+        }
+        // concurrent updates must not be lost by moves
+        es.execute(() -> {
+            for (int i = 0; i < MOVES; i++) {
+                sctm.put(inserted.get(i), -i);
+            }
+        });
+        // every entity is seen exactly once by any snapshot
+        reader.execute(() -> {
+            while (!done.get()) {
+                final var count = new AtomicInteger(0);
+                sctm.readOnlySnapshot().forEach((k, v) -> {
+                    if (k.getBusinessEntityId().startsWith("entity")) {
+                        count.incrementAndGet();
+                    }
+                });
+                if (count.get() != ENTITIES) {
+                    failures.incrementAndGet();
+                }
+                snapshots.incrementAndGet();
+            }
+        });
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        done.set(true);
+        reader.shutdown();
+        reader.awaitTermination(3600L, TimeUnit.SECONDS);
+
+        Assert.assertEquals(failures.get(), 0);
+        Assert.assertTrue(snapshots.get() > 0);
+        Assert.assertEquals(sctm.size(), ENTITIES + MOVES);
+        for (int i = 0; i < ENTITIES; i++) {
+            Assert.assertEquals(sctm.get(locations.get(i)), i);
+        }
+        for (int i = 0; i < MOVES; i++) {
+            Assert.assertEquals(sctm.get(inserted.get(i)), -i);
+        }
+    }
+}
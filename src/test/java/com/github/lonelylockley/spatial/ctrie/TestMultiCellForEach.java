@@ -0,0 +1,182 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class TestMultiCellForEach extends TestBase<String> {
+
+    private static final int COUNT = 50000;
+
+    private final Random rng = new Random();
+
+    private Map<H3CellId<String>, Integer> withinAny(Map<H3CellId<String>, Integer> expected, List<H3CellId<String>> cells) {
+        return expected
+                .entrySet()
+                .stream()
+                .filter(e -> cells.stream().anyMatch(c -> H3CellId.isWithin(e.getKey().getAddress(), c.getAddress(), c.getResolution())))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    private void testAgainstBruteForce(int stride) {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 20; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), Math.min(cluster.getResolution(), 4 + i % 7)), null);
+            final var cellId = generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var snapshot = sctm.readOnlySnapshot();
+        for (int round = 0; round < 200; round++) {
+            // neighbouring cells of the same resolution, then cells of mixed resolutions that may overlap
+            final var cells = new ArrayList<H3CellId<String>>();
+            final var res = 1 + rng.nextInt(15);
+            final var cluster = clusters.get(rng.nextInt(clusters.size()));
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(cluster.getCellId(), Math.max(0, res - 2)), null);
+            for (int i = 0; i < 1 + rng.nextInt(30); i++) {
+                if (round % 2 == 0) {
+                    cells.add(generateRandomChildForCell(parent.getAddress(), res, null));
+                }
+                else {
+                    final var other = clusters.get(rng.nextInt(clusters.size()));
+                    cells.add(new H3CellId<>(H3CellId.trimToResolution(other.getCellId(), rng.nextInt(16)), null));
+                }
+            }
+            final var visited = new HashMap<H3CellId<String>, Integer>();
+            snapshot.forEachWithin(cells, (k, v) -> Assert.assertNull(visited.put(k, v)));
+            Assert.assertEquals(visited, withinAny(expected, cells));
+        }
+    }
+
+    @Test
+    public void testMultiCellForEach() {
+        testAgainstBruteForce(1);
+    }
+
+    @Test
+    public void testMultiCellForEachWideNodes() {
+        testAgainstBruteForce(2);
+    }
+
+    private long cell(int[] digits, int resolution) {
+        final var cells = new int[15];
+        Arrays.fill(cells, 7);
+        System.arraycopy(digits, 0, cells, 0, digits.length);
+        return generateNonRandomCell(5, cells, resolution, null).getAddress();
+    }
+
+    @Test
+    public void testCompleteSiblingsAreCompacted() {
+        final var cells = new ArrayList<Long>();
+        // all grandchildren of 1-2-3 and six children out of seven of 1-2-4
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 7; j++) {
+                cells.add(cell(new int[] { 1, 2, 3, i, j }, 5));
+            }
+            if (i != 5) {
+                cells.add(cell(new int[] { 1, 2, 4, i }, 4));
+            }
+        }
+        // a child of 1-2-4-0 is dropped as nested
+        cells.add(cell(new int[] { 1, 2, 4, 0, 6 }, 5));
+        Collections.shuffle(cells, rng);
+        final var compact = SpatialConcurrentTrieMap.compactCells(cells.stream().mapToLong(Long::longValue).toArray());
+        final var compacted = compact.cells();
+        Assert.assertEquals(compacted.length, 7);
+        Assert.assertEquals(compacted[0], cell(new int[] { 1, 2, 3 }, 3));
+        Assert.assertEquals(compact.minResolutions()[0], 5);
+        for (int i = 1; i < compacted.length; i++) {
+            Assert.assertEquals(H3CellId.resolution(compacted[i]), 4);
+            Assert.assertEquals(compact.minResolutions()[i], 4);
+        }
+
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            final var cellId = generateRandomChildForCell(cell(new int[] { 1, 2 }, 2), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var query = cells.stream().map(c -> new H3CellId<String>(c, null)).toList();
+        final var visited = new HashMap<H3CellId<String>, Integer>();
+        sctm.forEachWithin(query, (k, v) -> Assert.assertNull(visited.put(k, v)));
+        Assert.assertEquals(visited, withinAny(expected, query));
+    }
+
+    @Test
+    public void testMultiCellForEachCollisions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < 10; i++) {
+            expected.put(generateNonRandomCell(85, layers, 15, "collision" + i), i);
+        }
+        sctm.putAll(expected);
+        final var visited = new HashMap<H3CellId<String>, Integer>();
+        final var cells = List.of(
+                generateNonRandomCell(85, layers, 15, null),
+                generateNonRandomCell(85, layers, 12, null),
+                generateNonRandomCell(85, new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 6 }, 15, null)
+        );
+        sctm.forEachWithin(cells, (k, v) -> Assert.assertNull(visited.put(k, v)));
+        Assert.assertEquals(visited, expected);
+        visited.clear();
+        sctm.forEachWithin(new long[0], visited::put);
+        Assert.assertTrue(visited.isEmpty());
+    }
+
+    @Test
+    public void testCoarseKeysOutsideCompactedSiblings() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        // a key at every resolution along the path, and some finer keys around
+        final var path = new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 };
+        for (int res = 0; res < 16; res++) {
+            expected.put(new H3CellId<>(H3CellId.trimToResolution(cell(path, 15), res), "coarse" + res), res);
+        }
+        for (int i = 0; i < 5000; i++) {
+            expected.put(generateRandomChildForCell(cell(new int[] { 1 }, 1), 15, String.valueOf(i)), i);
+        }
+        sctm.putAll(expected);
+        final var children = new ArrayList<H3CellId<String>>();
+        final var grandchildren = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 7; i++) {
+            children.add(new H3CellId<>(cell(new int[] { 1, 2, i }, 3), null));
+            for (int j = 0; j < 7; j++) {
+                // six children of 1-2-3 and all of the grandchildren below the last one, the group is not collapsed
+                if (i == 3 && j < 6) {
+                    grandchildren.add(new H3CellId<>(cell(new int[] { 1, 2, 3, j }, 4), null));
+                }
+                grandchildren.add(new H3CellId<>(cell(new int[] { 1, 2, 3, 6, i, j }, 6), null));
+            }
+        }
+        for (List<H3CellId<String>> query : List.of(children, grandchildren)) {
+            final var visited = new HashMap<H3CellId<String>, Integer>();
+            sctm.forEachWithin(query, (k, v) -> Assert.assertNull(visited.put(k, v)));
+            Assert.assertEquals(visited, withinAny(expected, query));
+            final var planned = new HashMap<H3CellId<String>, Integer>();
+            sctm.readOnlySnapshot().forEachWithinPlanned(query.stream().mapToLong(H3CellId::getAddress).toArray(), (k, v) -> Assert.assertNull(planned.put(k, v)));
+            Assert.assertEquals(planned, visited);
+            Assert.assertEquals(visited.size(), query.stream().mapToInt(sctm::countWithin).sum());
+        }
+        // the key of the parent is in none of the children
+        final var parent = new HashMap<H3CellId<String>, Integer>();
+        sctm.forEachWithin(children, parent::put);
+        Assert.assertFalse(parent.containsKey(new H3CellId<>(H3CellId.trimToResolution(cell(path, 15), 2), "coarse2")));
+    }
+}
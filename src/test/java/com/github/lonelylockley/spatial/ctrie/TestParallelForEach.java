@@ -0,0 +1,97 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+public class TestParallelForEach extends TestBase<String> {
+
+    private static final int COUNT = 200000;
+
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private void testAgainstBruteForce(int stride, boolean cacheSizes) {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 10; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 2, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), Math.min(cluster.getResolution(), 2 + i % 5)), null);
+            // every tenth entry is a coarser key
+            final var cellId = i % 10 == 0 ? new H3CellId<>(parent.getAddress(), String.valueOf(i)) : generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var snapshot = sctm.readOnlySnapshot();
+        if (cacheSizes) {
+            Assert.assertEquals(snapshot.size(), expected.size());
+        }
+        for (H3CellId<String> cluster : clusters) {
+            for (int res = 0; res < 16; res += 3) {
+                final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), res), null);
+                final var visited = new ConcurrentHashMap<H3CellId<String>, Integer>();
+                snapshot.forEachWithin(parent, pool, (k, v) -> Assert.assertNull(visited.put(k, v)));
+                final Map<H3CellId<String>, Integer> within = expected
+                        .entrySet()
+                        .stream()
+                        .filter(e -> H3CellId.isWithin(e.getKey().getAddress(), parent.getAddress(), parent.getResolution()))
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                Assert.assertEquals(visited, within);
+                Assert.assertEquals(visited.size(), snapshot.countWithin(parent));
+            }
+        }
+    }
+
+    @Test
+    public void testForEachWithin() {
+        testAgainstBruteForce(1, false);
+    }
+
+    @Test
+    public void testForEachWithinCachedSizes() {
+        testAgainstBruteForce(1, true);
+    }
+
+    @Test
+    public void testForEachWithinWideNodes() {
+        testAgainstBruteForce(2, false);
+    }
+
+    @Test
+    public void testForEachWithinWritableMap() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cellId = generateRandomCell("test");
+        sctm.put(cellId, 1);
+        final var visited = new ConcurrentHashMap<H3CellId<String>, Integer>();
+        sctm.forEachWithin(new H3CellId<>(H3CellId.trimToResolution(cellId.getCellId(), 0), null), pool, visited::put);
+        Assert.assertEquals(visited, Map.of(cellId, 1));
+        visited.clear();
+        sctm.forEachWithin(generateRandomCell(null), pool, visited::put);
+        Assert.assertTrue(visited.isEmpty() || visited.equals(Map.of(cellId, 1)));
+    }
+
+    @Test
+    public void testForEachWithinCoarseKeys() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var fine = generateNonRandomCellFullRes(7, "fine");
+        final var coarse = new H3CellId<>(H3CellId.trimToResolution(fine.getAddress(), 10), "coarse");
+        sctm.put(fine, 15);
+        sctm.put(coarse, 10);
+        final var visited = new ConcurrentHashMap<H3CellId<String>, Integer>();
+        sctm.forEachWithin(new H3CellId<>(H3CellId.trimToResolution(fine.getAddress(), 12), null), pool, visited::put);
+        Assert.assertEquals(visited, Map.of(fine, 15));
+        visited.clear();
+        sctm.forEachWithin(new H3CellId<>(H3CellId.trimToResolution(fine.getAddress(), 10), null), pool, visited::put);
+        Assert.assertEquals(visited, Map.of(fine, 15, coarse, 10));
+    }
+}
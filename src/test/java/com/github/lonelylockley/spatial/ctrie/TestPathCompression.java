@@ -0,0 +1,166 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import com.github.lonelylockley.spatial.ctrie.nodes.BaseNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.BranchNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.NodeWrapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestPathCompression extends TestBase<String> {
+
+    private static final int COUNT = 50000;
+
+    private BranchNode<String, Integer> branchBelowBaseCell(SpatialConcurrentTrieMap<String, Integer> sctm) {
+        final var root = (BranchNode<String, Integer>) sctm.readRoot().getWrapped();
+        return (BranchNode<String, Integer>) ((NodeWrapper<String, Integer>) root.array[0]).getWrapped();
+    }
+
+    private int depth(BaseNode<String, Integer> node) {
+        if (node instanceof NodeWrapper<String, Integer> in) {
+            return depth(in.getWrapped());
+        }
+        else
+        if (node instanceof BranchNode<String, Integer> cn) {
+            int max = 0;
+            for (BaseNode<String, Integer> sub : cn.array) {
+                max = Math.max(max, depth(sub));
+            }
+            return max + 1;
+        }
+        else {
+            return 0;
+        }
+    }
+
+    private long countWithin(Map<H3CellId<String>, Integer> expected, H3CellId<String> parent) {
+        return expected
+                .keySet()
+                .stream()
+                .filter(k -> {
+                    if (k.getBaseCell() != parent.getBaseCell() || k.getResolution() < parent.getResolution()) {
+                        return false;
+                    }
+                    for (int i = 1; i <= parent.getResolution(); i++) {
+                        if (k.getCell(i) != parent.getCell(i)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                })
+                .count();
+    }
+
+    @Test
+    public void testSkippedCellsAreSplit() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var first = generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "first");
+        final var second = generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 0, 5, 6, 0, 1 }, 15, "second");
+        final var third = generateNonRandomCell(0, new int[] { 1, 2, 3, 0, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "third");
+        final var coarse = generateNonRandomCell(0, new int[] { 1, 2, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7 }, 2, "coarse");
+
+        sctm.put(first, 1);
+        sctm.put(second, 2);
+        var node = branchBelowBaseCell(sctm);
+        Assert.assertEquals(node.res, 11);
+        Assert.assertEquals(node.skip, 10);
+        Assert.assertEquals(node.array.length, 2);
+
+        sctm.put(third, 3);
+        node = branchBelowBaseCell(sctm);
+        Assert.assertEquals(node.res, 4);
+        Assert.assertEquals(node.skip, 3);
+        final var rest = (BranchNode<String, Integer>) ((NodeWrapper<String, Integer>) node.array[1]).getWrapped();
+        Assert.assertEquals(rest.res, 11);
+        Assert.assertEquals(rest.skip, 6);
+
+        Assert.assertNull(sctm.putIfAbsent(coarse, 4));
+        node = branchBelowBaseCell(sctm);
+        Assert.assertEquals(node.res, 3);
+        Assert.assertEquals(node.skip, 2);
+
+        Assert.assertEquals(sctm.get(first), 1);
+        Assert.assertEquals(sctm.get(second), 2);
+        Assert.assertEquals(sctm.get(third), 3);
+        Assert.assertEquals(sctm.get(coarse), 4);
+        Assert.assertNull(sctm.get(generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 2 }, 15, "first")));
+        Assert.assertNull(sctm.replace(generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 0, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "first"), 5));
+        Assert.assertEquals(sctm.size(), 4);
+
+        Assert.assertEquals(sctm.remove(first), 1);
+        Assert.assertEquals(sctm.remove(third), 3);
+        Assert.assertEquals(sctm.get(second), 2);
+        Assert.assertEquals(sctm.get(coarse), 4);
+        Assert.assertEquals(sctm.size(), 2);
+    }
+
+    @Test
+    public void testSubtreeWithinSkippedCells() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cells = new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 };
+        final var other = new int[] { 1, 2, 3, 4, 5, 0, 0, 1, 2, 3, 4, 5, 6, 0, 1 };
+        for (int i = 0; i < 10; i++) {
+            sctm.put(generateNonRandomCell(0, cells, 12, 15, "first" + i), i);
+        }
+        for (int res = 1; res < 12; res++) {
+            Assert.assertEquals(sctm.subTree(generateNonRandomCell(0, cells, res, null)).size(), 10);
+            Assert.assertEquals(sctm.subTree(generateNonRandomCell(0, other, res, null)).size(), res < 6 ? 10 : 0);
+        }
+    }
+
+    @Test
+    public void testSparseTrieIsShallow() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            sctm.put(generateNonRandomCellFullRes(i % 122, String.valueOf(i)), i);
+        }
+        // nine cells per base cell on average, which hardly ever share more than a couple of resolutions
+        Assert.assertTrue(depth(sctm.readRoot()) < 8);
+    }
+
+    @Test
+    public void testClusteredCellsAgainstBruteForce() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 20; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), Math.min(cluster.getResolution(), 4 + i % 7)), null);
+            final var cellId = generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            if (i % 3 == 0) {
+                sctm.put(cellId, i);
+            }
+            else {
+                sctm.putIfAbsent(cellId, i);
+            }
+            expected.put(cellId, i);
+        }
+        final var removed = new ArrayList<H3CellId<String>>();
+        for (H3CellId<String> cellId : expected.keySet()) {
+            if (cellId.getBusinessEntityId().hashCode() % 4 == 0) {
+                removed.add(cellId);
+            }
+        }
+        for (H3CellId<String> cellId : removed) {
+            Assert.assertEquals(sctm.remove(cellId), expected.remove(cellId));
+        }
+
+        Assert.assertEquals(sctm.size(), expected.size());
+        for (Map.Entry<H3CellId<String>, Integer> e : expected.entrySet()) {
+            Assert.assertEquals(sctm.get(e.getKey()), e.getValue());
+        }
+        for (H3CellId<String> cluster : clusters) {
+            for (int res = 0; res < 16; res++) {
+                final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), res), null);
+                Assert.assertEquals(sctm.subTree(parent).size(), countWithin(expected, parent));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class TestQueryPlan extends TestBase<String> {
+
+    private final Random rng = new Random();
+
+    private Map<H3CellId<String>, Integer> withinAny(Map<H3CellId<String>, Integer> expected, List<H3CellId<String>> cells) {
+        return expected
+                .entrySet()
+                .stream()
+                .filter(e -> cells.stream().anyMatch(c -> H3CellId.isWithin(e.getKey().getAddress(), c.getAddress(), c.getResolution())))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    private QueryPlan testAgainstBruteForce(int count, int stride) {
+        final var parent = new H3CellId<String>(H3CellId.trimToResolution(generateNonRandomCellFullRes(7, null).getAddress(), 3), null);
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(stride);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < count; i++) {
+            final var cellId = generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        // scattered cells of resolution 6 hardly ever make a complete group of siblings
+        final var cells = new ArrayList<H3CellId<String>>();
+        final var addresses = new HashSet<Long>();
+        while (cells.size() < 40) {
+            final var cell = generateRandomChildForCell(parent.getAddress(), 6, null);
+            if (addresses.add(cell.getAddress())) {
+                cells.add(cell);
+            }
+        }
+        final var visited = new HashMap<H3CellId<String>, Integer>();
+        final var plan = sctm.forEachWithinPlanned(addresses.stream().mapToLong(Long::longValue).toArray(), (k, v) -> Assert.assertNull(visited.put(k, v)));
+        Assert.assertEquals(visited, withinAny(expected, cells));
+        return plan;
+    }
+
+    @Test
+    public void testSparseAreaIsScanned() {
+        Assert.assertEquals(testAgainstBruteForce(10, 1), QueryPlan.PARENT_SCAN);
+        Assert.assertEquals(testAgainstBruteForce(10, 2), QueryPlan.PARENT_SCAN);
+    }
+
+    @Test
+    public void testDenseAreaIsLookedUpPerCell() {
+        Assert.assertEquals(testAgainstBruteForce(20000, 1), QueryPlan.CELLS);
+        Assert.assertEquals(testAgainstBruteForce(20000, 2), QueryPlan.CELLS);
+    }
+
+    @Test
+    public void testCellsOfDifferentBaseCells() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < 100; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 2, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var cells = new long[] {
+                H3CellId.trimToResolution(generateNonRandomCellFullRes(0, null).getAddress(), 0),
+                H3CellId.trimToResolution(generateNonRandomCellFullRes(1, null).getAddress(), 0)
+        };
+        final var visited = new HashMap<H3CellId<String>, Integer>();
+        final var plan = sctm.forEachWithinPlanned(cells, visited::put);
+        Assert.assertEquals(plan, QueryPlan.CELLS);
+        Assert.assertEquals(visited, expected);
+    }
+
+    @Test
+    public void testTrimToResolution() {
+        final var cell = generateNonRandomCellFullRes(3, null);
+        for (int res = 0; res <= cell.getResolution(); res++) {
+            Assert.assertEquals(H3CellId.trimToResolution(cell.getAddress(), res), Long.parseLong(H3CellId.trimToResolution(cell.getCellId(), res), 16));
+        }
+    }
+}
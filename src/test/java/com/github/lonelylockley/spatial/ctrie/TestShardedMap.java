@@ -0,0 +1,378 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestShardedMap extends TestBase<String> {
+
+    private static final int ENTITIES = 1000;
+
+    @Test
+    public void testBasicOps() {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 122, String.valueOf(i));
+            Assert.assertNull(sharded.put(cellId, i));
+            sctm.put(cellId, i);
+            cells.add(cellId);
+        }
+        Assert.assertEquals(sharded.size(), ENTITIES);
+        Assert.assertEquals(sharded.shard(5).size(), sctm.countWithin(cells.get(5).getAddress(), 0));
+        // base cells are the top level of a trie, so the iteration order is the same
+        Assert.assertEquals(new ArrayList<>(sharded.keySet()), new ArrayList<>(sctm.keySet()));
+        Assert.assertEquals(sharded, sctm);
+
+        final var cellId = cells.get(7);
+        Assert.assertEquals(sharded.get(cellId), 7);
+        Assert.assertEquals(sharded.get(cellId.getAddress(), "7"), 7);
+        Assert.assertEquals(sharded.putIfAbsent(cellId, 0), 7);
+        Assert.assertTrue(sharded.replace(cellId, 7, 8));
+        Assert.assertEquals(sharded.replace(cellId, 7), 8);
+        Assert.assertFalse(sharded.remove(cellId, 8));
+        Assert.assertTrue(sharded.remove(cellId, 7));
+        Assert.assertFalse(sharded.containsKey(cellId));
+        Assert.assertEquals(sharded.size(), ENTITIES - 1);
+
+        final var it = sharded.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() % 2 == 0) {
+                it.remove();
+            }
+        }
+        Assert.assertEquals(sharded.size(), ENTITIES / 2 - 1);
+        sharded.clear();
+        Assert.assertTrue(sharded.isEmpty());
+    }
+
+    @Test
+    public void testMoveAcrossBaseCells() {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        final var from = generateNonRandomCellFullRes(3, "first");
+        final var to = generateNonRandomCellFullRes(100, "first");
+        sharded.put(from, 1);
+        Assert.assertEquals(sharded.move(from, to), 1);
+        Assert.assertNull(sharded.get(from));
+        Assert.assertEquals(sharded.get(to), 1);
+        Assert.assertEquals(sharded.shard(3).size(), 0);
+        Assert.assertEquals(sharded.shard(100).size(), 1);
+        Assert.assertNull(sharded.move(from, to));
+
+        final var froms = new ArrayList<H3CellId<String>>();
+        final var tos = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 10, String.valueOf(i));
+            if (i % 3 != 0) {
+                sharded.put(cellId, i);
+            }
+            froms.add(cellId);
+            tos.add(generateNonRandomCellFullRes(i % 20, String.valueOf(i)));
+        }
+        final BitSet moved = sharded.moveAll(froms, tos);
+        for (int i = 0; i < ENTITIES; i++) {
+            Assert.assertEquals(moved.get(i), i % 3 != 0);
+            Assert.assertEquals(sharded.get(tos.get(i)), i % 3 != 0 ? Integer.valueOf(i) : null);
+        }
+        Assert.assertEquals(sharded.size(), 1 + moved.cardinality());
+    }
+
+    @Test
+    public void testSnapshotOfTouchedBaseCells() {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        for (int i = 0; i < ENTITIES; i++) {
+            sharded.put(generateNonRandomCellFullRes(i % 4, String.valueOf(i)), i);
+        }
+        final var touched = new BitSet();
+        touched.set(1);
+        touched.set(2);
+        final var snapshot = sharded.readOnlySnapshot(touched);
+        sharded.put(generateNonRandomCellFullRes(1, "new"), -1);
+        Assert.assertTrue(snapshot.isReadOnly());
+        Assert.assertEquals(snapshot.size(), ENTITIES / 2);
+        Assert.assertEquals(snapshot.shard(0).size(), 0);
+        Assert.assertEquals(snapshot.shard(1).size(), ENTITIES / 4);
+        Assert.assertEquals(sharded.shard(1).size(), ENTITIES / 4 + 1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSnapshotIsReadOnly() {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        sharded.readOnlySnapshot().put(generateNonRandomCellFullRes(1, "first"), 0);
+    }
+
+    @Test
+    public void testConcurrentMovesAcrossBaseCells() throws InterruptedException {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        final List<H3CellId<String>> locations = new ArrayList<>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 2, String.valueOf(i));
+            sharded.put(cellId, i);
+            locations.add(cellId);
+        }
+        final var both = new BitSet();
+        both.set(0, 2);
+        final var stop = new AtomicBoolean(false);
+        final var inconsistent = new AtomicInteger(0);
+        final var lost = new AtomicInteger(0);
+        final var reader = new Thread(() -> {
+            while (!stop.get()) {
+                // every entity is in one of the two base cells in every snapshot of both of them
+                if (sharded.readOnlySnapshot(both).size() != ENTITIES) {
+                    inconsistent.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        final ExecutorService es = Executors.newFixedThreadPool(3);
+        for (int t = 0; t < 3; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < 5000; j++) {
+                    final int i = threadNo + 3 * (j % (ENTITIES / 3));
+                    final var from = locations.get(i);
+                    final var to = generateNonRandomCellFullRes(1 - from.getBaseCell(), from.getBusinessEntityId());
+                    if (!Integer.valueOf(i).equals(sharded.move(from, to))) {
+                        lost.incrementAndGet();
+                    }
+                    locations.set(i, to);
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        stop.set(true);
+        reader.join();
+        Assert.assertEquals(lost.get(), 0);
+        Assert.assertEquals(inconsistent.get(), 0);
+        Assert.assertEquals(sharded.size(), ENTITIES);
+    }
+
+    @Test(timeOut = 60000L)
+    public void testSnapshotsUnderSaturatedMoves() throws InterruptedException {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        final List<H3CellId<String>> locations = new ArrayList<>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 2, String.valueOf(i));
+            sharded.put(cellId, i);
+            locations.add(cellId);
+        }
+        final var both = new BitSet();
+        both.set(0, 2);
+        final var stop = new AtomicBoolean(false);
+        final ExecutorService es = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            final int threadNo = t;
+            // moves across the shards without a pause, some of them are in flight at any time
+            es.execute(() -> {
+                for (int j = 0; !stop.get(); j++) {
+                    final int i = threadNo + 8 * (j % (ENTITIES / 8));
+                    final var from = locations.get(i);
+                    final var to = generateNonRandomCellFullRes(1 - from.getBaseCell(), from.getBusinessEntityId());
+                    sharded.move(from, to);
+                    locations.set(i, to);
+                }
+            });
+        }
+        try {
+            // snapshots hold the moves off once they are retried too many times instead of spinning forever
+            for (int k = 0; k < 100; k++) {
+                Assert.assertEquals(sharded.readOnlySnapshot(both).size(), ENTITIES);
+            }
+        }
+        finally {
+            stop.set(true);
+            es.shutdown();
+            es.awaitTermination(60L, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(sharded.size(), ENTITIES);
+    }
+
+    @Test
+    public void testMoveAllIsOrderIndependent() {
+        final var random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+            final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+            final var cells = new ArrayList<H3CellId<String>>();
+            for (int i = 0; i < 40; i++) {
+                // a few keys per base cell, so that moves form chains and cycles within and across base cells
+                final var cellId = generateNonRandomCellFullRes(i % 3, String.valueOf(i % 8));
+                if (!cells.contains(cellId)) {
+                    cells.add(cellId);
+                    if (random.nextInt(4) != 0) {
+                        sharded.put(cellId, i);
+                        sctm.put(cellId, i);
+                    }
+                }
+            }
+            final var targets = new ArrayList<>(cells);
+            Collections.shuffle(targets, random);
+            final var from = new ArrayList<H3CellId<String>>();
+            final var to = new ArrayList<H3CellId<String>>();
+            for (int i = 0; i < cells.size(); i++) {
+                if (random.nextBoolean()) {
+                    from.add(cells.get(i));
+                    to.add(targets.get(i));
+                }
+            }
+            Assert.assertEquals(sharded.moveAll(from, to), sctm.moveAll(from, to));
+            Assert.assertEquals(sharded, sctm);
+        }
+    }
+
+    @Test
+    public void testChainedMovesAcrossBaseCells() {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        final var a = generateNonRandomCellFullRes(0, "a");
+        final var b = generateNonRandomCellFullRes(1, "b");
+        final var c = generateNonRandomCellFullRes(1, "c");
+        final var d = generateNonRandomCellFullRes(2, "d");
+        sharded.put(a, 1);
+        sharded.put(b, 2);
+        sharded.put(c, 3);
+        // a -> b across base cells is listed first, b -> c within a base cell and c -> d across them follow
+        final BitSet moved = sharded.moveAll(List.of(a, b, c), List.of(b, c, d));
+        Assert.assertEquals(moved.cardinality(), 3);
+        Assert.assertNull(sharded.get(a));
+        Assert.assertEquals(sharded.get(b), 1);
+        Assert.assertEquals(sharded.get(c), 2);
+        Assert.assertEquals(sharded.get(d), 3);
+        // a cycle across base cells swaps the values
+        sharded.moveAll(List.of(b, d), List.of(d, b));
+        Assert.assertEquals(sharded.get(b), 3);
+        Assert.assertEquals(sharded.get(d), 1);
+        Assert.assertEquals(sharded.size(), 3);
+    }
+
+    @Test
+    public void testSnapshotsOfAllBaseCellsWithBatches() throws InterruptedException {
+        final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>();
+        final List<H3CellId<String>> locations = new ArrayList<>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 122, String.valueOf(i));
+            sharded.put(cellId, i);
+            locations.add(cellId);
+        }
+        final var stop = new AtomicBoolean(false);
+        final var inconsistent = new AtomicInteger(0);
+        final var snapshots = new AtomicInteger(0);
+        final var reader = new Thread(() -> {
+            while (!stop.get()) {
+                final var snapshot = sharded.readOnlySnapshot();
+                final var sum = new AtomicInteger(0);
+                snapshot.forEach((k, v) -> sum.addAndGet(v));
+                if (snapshot.size() != ENTITIES || sum.get() != ENTITIES * (ENTITIES - 1) / 2) {
+                    inconsistent.incrementAndGet();
+                }
+                snapshots.incrementAndGet();
+            }
+        });
+        reader.start();
+        final ExecutorService es = Executors.newFixedThreadPool(3);
+        for (int t = 0; t < 3; t++) {
+            final int threadNo = t;
+            es.execute(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    final int i = threadNo + 3 * (j % (ENTITIES / 3));
+                    final int k = threadNo + 3 * ((j + 1) % (ENTITIES / 3));
+                    final var first = generateNonRandomCellFullRes((i + j) % 122, String.valueOf(i));
+                    final var second = generateNonRandomCellFullRes((k + j + 1) % 122, String.valueOf(k));
+                    sharded.moveAll(List.of(locations.get(i), locations.get(k)), List.of(first, second));
+                    locations.set(i, first);
+                    locations.set(k, second);
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(3600L, TimeUnit.SECONDS);
+        stop.set(true);
+        reader.join();
+        Assert.assertEquals(inconsistent.get(), 0);
+        Assert.assertTrue(snapshots.get() > 0);
+        Assert.assertEquals(sharded.size(), ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            Assert.assertEquals(sharded.get(locations.get(i)), i);
+        }
+    }
+
+    @Test
+    public void testShardResolutions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var cells = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < ENTITIES; i++) {
+            final var cellId = generateNonRandomCellFullRes(i % 3, String.valueOf(i));
+            // every 10th key is coarser than the finest shards
+            final var key = i % 10 == 0 ? new H3CellId<>(H3CellId.trimToResolution(cellId.getAddress(), i % 30 / 10), cellId.getBusinessEntityId()) : cellId;
+            sctm.put(key, i);
+            cells.add(key);
+        }
+        final var min = Aggregator.<Integer>min(Integer::compare);
+        for (int shardResolution = 0; shardResolution <= ShardedSpatialConcurrentTrieMap.MAX_SHARD_RESOLUTION; shardResolution++) {
+            final var sharded = new ShardedSpatialConcurrentTrieMap<String, Integer>(SpatialConcurrentTrieMap.DEFAULT_STRIDE, shardResolution);
+            sharded.putAll(sctm);
+            Assert.assertEquals(sharded.getShardResolution(), shardResolution);
+            Assert.assertEquals(sharded.getShardCount(), ShardedSpatialConcurrentTrieMap.BASE_CELLS * (int) Math.pow(7, shardResolution));
+            Assert.assertEquals(sharded, sctm);
+            for (int i = 0; i < ENTITIES; i += 7) {
+                final var cellId = cells.get(i);
+                Assert.assertEquals(sharded.get(cellId), i);
+                Assert.assertEquals(sharded.get(cellId.getAddress(), cellId.getBusinessEntityId()), i);
+                for (int res = 0; res <= Math.min(cellId.getResolution(), 4); res++) {
+                    final long address = cellId.getAddress();
+                    Assert.assertEquals(sharded.countWithin(address, res), sctm.countWithin(address, res));
+                    Assert.assertEquals(sharded.aggregateWithin(address, res, min), sctm.aggregateWithin(address, res, min));
+                    final var parent = new H3CellId<String>(H3CellId.trimToResolution(address, res), null);
+                    final var within = new HashMap<H3CellId<String>, Integer>();
+                    sctm.forEach((k, v) -> {
+                        if (H3CellId.isWithin(k.getAddress(), parent.getAddress(), parent.getResolution())) {
+                            within.put(k, v);
+                        }
+                    });
+                    Assert.assertEquals(new HashMap<>(sharded.subTree(parent)), within);
+                    final var expected = new ArrayList<Long>();
+                    final var actual = new ArrayList<Long>();
+                    sctm.countCells(address, res, res + 2, (cell, count) -> expected.add(cell * 31 + count));
+                    sharded.countCells(address, res, res + 2, (cell, count) -> actual.add(cell * 31 + count));
+                    Assert.assertEquals(actual, expected);
+                }
+            }
+            final long[] query = new long[] {
+                    H3CellId.trimToResolution(cells.get(1).getAddress(), 0),
+                    H3CellId.trimToResolution(cells.get(2).getAddress(), 1),
+                    H3CellId.trimToResolution(cells.get(3).getAddress(), 3)
+            };
+            final var expected = new HashMap<H3CellId<String>, Integer>();
+            final var actual = new HashMap<H3CellId<String>, Integer>();
+            sctm.forEachWithin(query, expected::put);
+            final var snapshot = sharded.readOnlySnapshot(sharded.shardsWithin(query));
+            snapshot.forEachWithinPlanned(query, actual::put);
+            Assert.assertEquals(actual, expected);
+
+            // moves across shards of the same base cell
+            final var from = cells.get(1);
+            final var to = generateNonRandomCellFullRes(from.getBaseCell(), from.getBusinessEntityId());
+            Assert.assertEquals(sharded.move(from, to), 1);
+            Assert.assertEquals(sharded.move(to, from), 1);
+            Assert.assertEquals(sharded, sctm);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testShardResolutionBeyondMax() {
+        new ShardedSpatialConcurrentTrieMap<String, Integer>(SpatialConcurrentTrieMap.DEFAULT_STRIDE, ShardedSpatialConcurrentTrieMap.MAX_SHARD_RESOLUTION + 1);
+    }
+}
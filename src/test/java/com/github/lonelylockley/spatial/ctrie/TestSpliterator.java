@@ -0,0 +1,103 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+public class TestSpliterator extends TestBase<String> {
+
+    private static final int COUNT = 100000;
+
+    private Map<H3CellId<String>, Integer> generate(SpatialConcurrentTrieMap<String, Integer> sctm) {
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        for (int i = 0; i < COUNT; i++) {
+            var cellId = generateRandomCell(String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        for (int i = 0; i < 10; i++) {
+            var cellId = generateNonRandomCell(85, layers, 15, "collision" + i);
+            sctm.put(cellId, -i);
+            expected.put(cellId, -i);
+        }
+        return expected;
+    }
+
+    @Test
+    public void testParallelStream() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = generate(sctm);
+        final var collected = sctm
+                .entrySet()
+                .parallelStream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        Assert.assertEquals(collected, expected);
+        Assert.assertEquals(sctm.entrySet().parallelStream().count(), expected.size());
+        Assert.assertEquals(sctm.keySet().parallelStream().count(), expected.size());
+    }
+
+    @Test
+    public void testSplitsAreSized() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(2);
+        final var expected = generate(sctm);
+        final var root = sctm.spliterator();
+        Assert.assertTrue(root.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        Assert.assertEquals(root.estimateSize(), expected.size());
+
+        final var queue = new ArrayDeque<Spliterator<Map.Entry<H3CellId<String>, Integer>>>();
+        queue.add(root);
+        final var total = new AtomicLong();
+        var parts = 0;
+        while (!queue.isEmpty()) {
+            final var current = queue.poll();
+            final var head = current.trySplit();
+            if (head != null) {
+                queue.add(head);
+                queue.add(current);
+            }
+            else {
+                final var count = new AtomicLong();
+                final long size = current.estimateSize();
+                current.forEachRemaining(e -> {
+                    Assert.assertEquals(e.getValue(), expected.get(e.getKey()));
+                    count.incrementAndGet();
+                });
+                Assert.assertEquals(count.get(), size);
+                total.addAndGet(count.get());
+                parts += 1;
+            }
+        }
+        Assert.assertEquals(total.get(), expected.size());
+        Assert.assertTrue(parts > 122);
+    }
+
+    @Test
+    public void testSplitIsBalanced() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        generate(sctm);
+        final var tail = sctm.spliterator();
+        final long size = tail.estimateSize();
+        final var head = tail.trySplit();
+        Assert.assertEquals(head.estimateSize() + tail.estimateSize(), size);
+        Assert.assertTrue(Math.abs(head.estimateSize() - tail.estimateSize()) < size / 10);
+    }
+
+    @Test
+    public void testSnapshotIsNotAffected() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>();
+        final var expected = generate(sctm);
+        final var spliterator = sctm.spliterator();
+        sctm.clear();
+        final var count = new AtomicLong();
+        spliterator.forEachRemaining(e -> count.incrementAndGet());
+        Assert.assertEquals(count.get(), expected.size());
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.lonelylockley.spatial.ctrie;
+
+import com.github.lonelylockley.spatial.TestBase;
+import com.github.lonelylockley.spatial.ctrie.nodes.BranchNode;
+import com.github.lonelylockley.spatial.ctrie.nodes.NodeWrapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestWideBranchNode extends TestBase<String> {
+
+    private static final int COUNT = 50000;
+
+    private BranchNode<String, Integer> branchBelowBaseCell(SpatialConcurrentTrieMap<String, Integer> sctm) {
+        final var root = (BranchNode<String, Integer>) sctm.readRoot().getWrapped();
+        return (BranchNode<String, Integer>) ((NodeWrapper<String, Integer>) root.array[0]).getWrapped();
+    }
+
+    private long countWithin(Map<H3CellId<String>, Integer> expected, H3CellId<String> parent) {
+        return expected
+                .keySet()
+                .stream()
+                .filter(k -> {
+                    if (k.getBaseCell() != parent.getBaseCell() || k.getResolution() < parent.getResolution()) {
+                        return false;
+                    }
+                    for (int i = 1; i <= parent.getResolution(); i++) {
+                        if (k.getCell(i) != parent.getCell(i)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                })
+                .count();
+    }
+
+    private void compare(Map<H3CellId<String>, Integer> expected, SpatialConcurrentTrieMap<String, Integer> sctm) {
+        Assert.assertEquals(sctm.size(), expected.size());
+        for (Map.Entry<H3CellId<String>, Integer> e : expected.entrySet()) {
+            Assert.assertEquals(sctm.get(e.getKey()), e.getValue());
+        }
+    }
+
+    @Test
+    public void testNodeSpansTwoResolutions() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(2);
+        final var first = generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "first");
+        final var second = generateNonRandomCell(0, new int[] { 1, 2, 0, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "second");
+        final var third = generateNonRandomCell(0, new int[] { 1, 2, 3, 0, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "third");
+        final var fourth = generateNonRandomCell(0, new int[] { 0, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 15, "fourth");
+
+        sctm.put(first, 1);
+        sctm.put(second, 2);
+        var node = branchBelowBaseCell(sctm);
+        Assert.assertEquals(node.res, 3);
+        Assert.assertEquals(node.span, 2);
+        Assert.assertEquals(node.skip, 2);
+
+        // the cell of resolution 4 is indexed by the same node
+        sctm.put(third, 3);
+        node = branchBelowBaseCell(sctm);
+        Assert.assertEquals(node.res, 3);
+        Assert.assertEquals(node.array.length, 3);
+
+        sctm.put(fourth, 4);
+        node = branchBelowBaseCell(sctm);
+        Assert.assertEquals(node.res, 1);
+        Assert.assertEquals(node.span, 2);
+        Assert.assertEquals(node.skip, 0);
+        final var rest = (BranchNode<String, Integer>) ((NodeWrapper<String, Integer>) node.array[1]).getWrapped();
+        Assert.assertEquals(rest.res, 3);
+        Assert.assertEquals(rest.skip, 0);
+
+        Assert.assertEquals(sctm.get(first), 1);
+        Assert.assertEquals(sctm.get(second), 2);
+        Assert.assertEquals(sctm.get(third), 3);
+        Assert.assertEquals(sctm.get(fourth), 4);
+        Assert.assertEquals(sctm.subTree(generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 3, null)).size(), 2);
+        Assert.assertEquals(sctm.subTree(generateNonRandomCell(0, new int[] { 1, 2, 3, 4, 5, 6, 0, 1, 2, 3, 4, 5, 6, 0, 1 }, 1, null)).size(), 3);
+        Assert.assertEquals(sctm.remove(third), 3);
+        Assert.assertEquals(sctm.remove(fourth), 4);
+        Assert.assertEquals(sctm.size(), 2);
+    }
+
+    @Test
+    public void testRandomCellsAgainstBruteForce() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(2);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            final var cellId = generateRandomCell(String.valueOf(i));
+            Assert.assertEquals(sctm.put(cellId, i), expected.put(cellId, i));
+        }
+        compare(expected, sctm);
+        final var removed = new ArrayList<H3CellId<String>>();
+        for (H3CellId<String> cellId : expected.keySet()) {
+            if (cellId.getBusinessEntityId().hashCode() % 3 == 0) {
+                removed.add(cellId);
+            }
+        }
+        for (H3CellId<String> cellId : removed) {
+            Assert.assertEquals(sctm.remove(cellId), expected.remove(cellId));
+        }
+        compare(expected, sctm);
+    }
+
+    @Test
+    public void testClusteredCellsAgainstBruteForce() {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(2);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        final var clusters = new ArrayList<H3CellId<String>>();
+        for (int i = 0; i < 20; i++) {
+            clusters.add(generateRandomChildForCell(generateNonRandomCell(i % 3, (String) null).getAddress(), 15, null));
+        }
+        for (int i = 0; i < COUNT; i++) {
+            final var cluster = clusters.get(i % clusters.size());
+            final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), Math.min(cluster.getResolution(), 4 + i % 7)), null);
+            final var cellId = generateRandomChildForCell(parent.getAddress(), 15, String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        compare(expected, sctm);
+        // every other resolution ends in the middle of a node
+        for (H3CellId<String> cluster : clusters) {
+            for (int res = 0; res < 16; res++) {
+                final var parent = new H3CellId<String>(H3CellId.trimToResolution(Long.toHexString(cluster.getAddress()), res), null);
+                Assert.assertEquals(sctm.subTree(parent).size(), countWithin(expected, parent));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchOpsAndBulkLoad() {
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            expected.put(generateRandomCell(String.valueOf(i)), i);
+        }
+        final var layers = new int[] { 3, 4, 1, 3, 0, 2, 6, 4, 6, 5, 5, 2, 4, 5, 5 };
+        for (int i = 0; i < 10; i++) {
+            expected.put(generateNonRandomCell(85, layers, 15, "collision" + i), -i);
+        }
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(2);
+        sctm.putAll(expected);
+        compare(expected, sctm);
+
+        final var loaded = SpatialConcurrentTrieMap.bulkLoad(expected.entrySet().iterator(), true, 2);
+        Assert.assertEquals(loaded.getStride(), 2);
+        compare(expected, loaded);
+        Assert.assertEquals(loaded.readOnlySnapshot().getStride(), 2);
+        Assert.assertEquals(loaded.snapshot().getStride(), 2);
+
+        sctm.removeAll(expected.keySet());
+        Assert.assertTrue(sctm.isEmpty());
+    }
+
+    @Test
+    public void testSerializationKeepsStride() throws IOException, ClassNotFoundException {
+        final var sctm = new SpatialConcurrentTrieMap<String, Integer>(2);
+        final var expected = new HashMap<H3CellId<String>, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            final var cellId = generateRandomCell(String.valueOf(i));
+            sctm.put(cellId, i);
+            expected.put(cellId, i);
+        }
+        final var bos = new ByteArrayOutputStream();
+        try (var oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(sctm);
+        }
+        try (var ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            final var actual = (SpatialConcurrentTrieMap<String, Integer>) ois.readObject();
+            Assert.assertEquals(actual.getStride(), 2);
+            compare(expected, actual);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedStride() {
+        new SpatialConcurrentTrieMap<String, Integer>(3);
+    }
+}